@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * The part of Android's Base64 used by ADMSampleMD5ChecksumCalculator, so that
+ * it can be benchmarked on the JVM. DEFAULT output ends with a newline, as on
+ * Android.
+ */
+public class Base64 {
+
+    public static final int DEFAULT = 0;
+
+    public static byte[] encode(byte[] input, int flags) {
+        byte[] encoded = java.util.Base64.getMimeEncoder().encode(input);
+        byte[] terminated = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, terminated, 0, encoded.length);
+        terminated[encoded.length] = '\n';
+        return terminated;
+    }
+}
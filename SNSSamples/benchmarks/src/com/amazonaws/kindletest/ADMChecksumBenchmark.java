@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.kindletest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the checksum the Kindle app computes over each ADM message. Runs on
+ * the JVM with the android.util.Base64 shim of the benchmark sources.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ADMChecksumBenchmark {
+
+    private final ADMSampleMD5ChecksumCalculator calculator = new ADMSampleMD5ChecksumCalculator();
+    private Map<String, String> data;
+
+    @Setup
+    public void buildData() {
+        data = new HashMap<String, String>();
+        data.put("message", "Hello World!");
+        data.put("title", "Welcome");
+        data.put("url", "http://aws.amazon.com/sns/");
+        data.put("timeStamp", "2013-08-13T20:13:00Z");
+        data.put("badge", "9");
+    }
+
+    @Benchmark
+    public String calculateChecksum() {
+        return calculator.calculateChecksum(data);
+    }
+}
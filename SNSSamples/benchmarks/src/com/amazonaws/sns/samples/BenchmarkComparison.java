@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares a JMH run written with '-rf json' against the baseline results and
+ * prints the change of every benchmark found in both. A benchmark regresses
+ * when it is more than the threshold worse than the baseline and the
+ * difference exceeds the error margins of both runs. The exit code is 1 if
+ * any benchmark regressed.
+ *
+ * Usage: BenchmarkComparison baseline.json results.json [threshold percent]
+ */
+public class BenchmarkComparison {
+
+    private static final double DEFAULT_THRESHOLD_PERCENT = 5;
+
+    private static class Score {
+        final double score;
+        final double error;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Score(JsonNode result) {
+            JsonNode metric = result.get("primaryMetric");
+            this.score = metric.get("score").asDouble();
+            double scoreError = metric.get("scoreError").asDouble();
+            this.error = Double.isNaN(scoreError) ? 0 : scoreError;
+            this.unit = metric.get("scoreUnit").asText();
+            this.higherIsBetter = "thrpt".equals(result.get("mode").asText());
+        }
+    }
+
+    private static Map<String, Score> read(String fileName) throws IOException {
+        Map<String, Score> scores = new TreeMap<String, Score>();
+        for (JsonNode result : new ObjectMapper().readTree(new File(fileName))) {
+            StringBuilder name = new StringBuilder(result.get("benchmark")
+                    .asText());
+            JsonNode params = result.get("params");
+            if (params != null) {
+                Iterator<Map.Entry<String, JsonNode>> fields = params.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> param = fields.next();
+                    name.append(' ').append(param.getKey()).append('=')
+                            .append(param.getValue().asText());
+                }
+            }
+            scores.put(name.toString(), new Score(result));
+        }
+        return scores;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("[ERROR] Usage: BenchmarkComparison baseline.json results.json [threshold percent]");
+            System.exit(1);
+        }
+        double threshold = DEFAULT_THRESHOLD_PERCENT;
+        if (args.length > 2) {
+            try {
+                threshold = Double.parseDouble(args[2]);
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        if (!new File(args[0]).isFile()) {
+            System.err.println("[ERROR] No baseline at " + args[0]
+                    + "; record one on this machine first, see README.txt");
+            System.exit(1);
+        }
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> results = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> result : results.entrySet()) {
+            Score current = result.getValue();
+            Score base = baseline.get(result.getKey());
+            if (base == null) {
+                System.out.println(String.format("%-80s %14.3f %s  (no baseline)",
+                        result.getKey(), current.score, current.unit));
+                continue;
+            }
+            double change = 100 * (current.score - base.score) / base.score;
+            double worse = current.higherIsBetter ? -change : change;
+            boolean regressed = worse > threshold
+                    && Math.abs(current.score - base.score) > current.error
+                            + base.error;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format("%-80s %14.3f -> %14.3f %s %+7.1f%%%s",
+                    result.getKey(), base.score, current.score, current.unit,
+                    change, regressed ? "  REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regression(s)");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of building the job the CSV reader hands over for each row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CreateEndpointJobBenchmark {
+
+    static final String APPLICATION_ARN = "arn:aws:sns:us-east-1:123456789012:app/GCM/Benchmark";
+    static final String TOKEN = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    static final String USER_DATA = "user data";
+
+    private final PlatformApplicationCache applicationCache = new PlatformApplicationCache(
+            null, TimeUnit.MINUTES.toMillis(5));
+    private final AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(0);
+    private final UploadMetrics metrics = new UploadMetrics(
+            TimeUnit.SECONDS.toMillis(10), false);
+    private long lineNumber;
+
+    @Benchmark
+    public CreateEndpointJob createJob() {
+        CreateEndpointJob job = new CreateEndpointJob(null, applicationCache,
+                rateLimiter, 5, null, metrics);
+        job.setThreadProperties(++lineNumber, TOKEN, USER_DATA,
+                APPLICATION_ARN, null);
+        return job;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Time to read a whole CSV file of 1 or 10 million rows with OpenCSV's
+ * CSVReader, as readCsv did before, and with the readers behind readCsv now.
+ * One row in ten has a quoted user data field, which the mapped parser hands
+ * to OpenCSV. Divide the rows by the time for rows per second. A read of the
+ * larger file takes seconds, so the default iterations are shortened.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CsvParsingBenchmark {
+
+    @Param({ "1000000", "10000000" })
+    public int rows;
+
+    @Param({ "csvreader", "recordreader", "mapped" })
+    public String parser;
+
+    private File csvFile;
+
+    @Setup
+    public void writeCsv() throws IOException {
+        csvFile = File.createTempFile("benchmark", ".csv");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile));
+        try {
+            for (int row = 0; row < rows; row++) {
+                writer.write(String.format("%064x", row));
+                if (row % 10 == 0) {
+                    writer.write(",\"user, " + row + "\"");
+                } else {
+                    writer.write(",user" + row);
+                }
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown
+    public void deleteCsv() {
+        csvFile.delete();
+    }
+
+    @Benchmark
+    public void readRows(Blackhole blackhole) throws IOException {
+        if ("csvreader".equals(parser)) {
+            CSVReader csvReader = new CSVReader(new BufferedReader(
+                    new FileReader(csvFile)), ',', '"');
+            try {
+                String[] row;
+                while ((row = csvReader.readNext()) != null) {
+                    blackhole.consume(row);
+                }
+            } finally {
+                csvReader.close();
+            }
+            return;
+        }
+        CsvRecordSource reader;
+        if ("mapped".equals(parser)) {
+            reader = new MappedCsvRecordReader(csvFile.getPath(), 0,
+                    Long.MAX_VALUE, ',', '"');
+        } else {
+            reader = new CsvRecordReader(csvFile.getPath(), 0, Long.MAX_VALUE,
+                    ',', '"');
+        }
+        try {
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                blackhole.consume(row);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
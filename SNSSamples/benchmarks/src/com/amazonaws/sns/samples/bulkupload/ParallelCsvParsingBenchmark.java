@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to read a generated CSV file of several gigabytes the way readCsv does
+ * with 'numofreaders' set: one reader over the whole file, or the file split
+ * by CsvFileSplitter and each range read by its own thread. The time of the
+ * split scan is included. One row in ten has a quoted user data field. The
+ * file is read from the page cache after the first pass when it fits in
+ * memory, so the numbers are for parsing rather than for the disk.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelCsvParsingBenchmark {
+
+    @Param({ "2" })
+    public int gigabytes;
+
+    @Param({ "1", "2", "4" })
+    public int readers;
+
+    private File csvFile;
+
+    @Setup
+    public void writeCsv() throws IOException {
+        csvFile = File.createTempFile("benchmark", ".csv");
+        long length = (long) gigabytes << 30;
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile),
+                1024 * 1024);
+        try {
+            long written = 0;
+            for (long row = 0; written < length; row++) {
+                String line;
+                if (row % 10 == 0) {
+                    line = String.format("%064x", row) + ",\"user, " + row
+                            + "\"\n";
+                } else {
+                    line = String.format("%064x", row) + ",user" + row + "\n";
+                }
+                writer.write(line);
+                written += line.length();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown
+    public void deleteCsv() {
+        csvFile.delete();
+    }
+
+    @Benchmark
+    public long readRows() throws Exception {
+        final String fileName = csvFile.getPath();
+        if (readers == 1) {
+            return countRows(fileName, new CsvFileSplitter.Range(0,
+                    Long.MAX_VALUE, 0));
+        }
+        final AtomicLong rows = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final CsvFileSplitter.Range range : CsvFileSplitter.split(
+                fileName, readers, ',', '"')) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rows.addAndGet(countRows(fileName, range));
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException(ioe);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return rows.get();
+    }
+
+    private static long countRows(String fileName, CsvFileSplitter.Range range)
+            throws IOException {
+        CsvRecordReader reader = new CsvRecordReader(fileName,
+                range.startOffset, range.endOffset, ',', '"');
+        try {
+            long rows = 0;
+            while (reader.readNext() != null) {
+                rows++;
+            }
+            return rows;
+        } finally {
+            reader.close();
+        }
+    }
+}
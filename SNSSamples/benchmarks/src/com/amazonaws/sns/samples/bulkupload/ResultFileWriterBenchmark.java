@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Good-file records formatted and handed to the {@link ResultFileWriter} by
+ * several workers at once, as CreateEndpointJob does after each call. Each
+ * thread registers its rows in its own journal range, as a reader would.
+ *
+ * The writer queue is unbounded, so each iteration ends with a checkpoint
+ * that waits for the writer thread to catch up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(ResultFileWriterBenchmark.THREADS)
+public class ResultFileWriterBenchmark {
+
+    static final int THREADS = 8;
+    private static final long LINES_PER_THREAD = 1L << 40;
+    private static final String ENDPOINT_ARN = "arn:aws:sns:us-east-1:123456789012:endpoint/GCM/Benchmark/2bcfbf39-22a5-3d2c-9a24-c9c0c8b5ce6e";
+
+    private File directory;
+    private CheckpointJournal journal;
+    private ResultFileWriter writer;
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Worker {
+        long lineNumber;
+
+        @Setup
+        public void pickRange(ResultFileWriterBenchmark benchmark) {
+            lineNumber = benchmark.nextThread.getAndIncrement()
+                    * LINES_PER_THREAD;
+        }
+    }
+
+    @Setup
+    public void openWriter() throws IOException {
+        directory = File.createTempFile("benchmark", "");
+        directory.delete();
+        directory.mkdir();
+        List<CsvFileSplitter.Range> ranges = new ArrayList<CsvFileSplitter.Range>();
+        for (int i = 0; i < THREADS; i++) {
+            ranges.add(new CsvFileSplitter.Range(0, Long.MAX_VALUE, i
+                    * LINES_PER_THREAD));
+        }
+        journal = new CheckpointJournal(new File(directory, "journal")
+                .getPath(), "benchmark.csv", ranges);
+        writer = new ResultFileWriter(new File(directory, "good.txt").getPath(),
+                new File(directory, "bad.txt").getPath(), 1000, 100,
+                TimeUnit.SECONDS.toMillis(10), journal);
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        writer.checkpoint();
+    }
+
+    @TearDown
+    public void closeWriter() throws InterruptedException {
+        writer.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void writeGood(Worker worker) {
+        long lineNumber = ++worker.lineNumber;
+        journal.register(lineNumber, 0);
+        writer.writeGood(lineNumber, "<" + lineNumber + "> " + ENDPOINT_ARN
+                + "," + CreateEndpointJobBenchmark.TOKEN + ","
+                + CreateEndpointJobBenchmark.USER_DATA);
+    }
+}
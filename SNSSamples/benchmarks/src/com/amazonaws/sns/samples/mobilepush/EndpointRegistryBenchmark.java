@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Lookups of registered endpoints in an EndpointRegistry, which replace a
+ * GetEndpointAttributes call before each publish. The endpoints are visited
+ * in a scattered order, so large registries also measure cache misses, and
+ * the contended variant looks up from 8 threads at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class EndpointRegistryBenchmark {
+
+    private static final String ARN_PREFIX = "arn:aws:sns:us-east-1:123456789012:endpoint/GCM/app/";
+
+    @Param({ "10000", "1000000" })
+    public int endpoints;
+
+    private EndpointRegistry registry;
+    private String[] endpointArns;
+    private String[] tokens;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void register() {
+        registry = new EndpointRegistry(endpoints);
+        endpointArns = new String[endpoints];
+        tokens = new String[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            endpointArns[i] = ARN_PREFIX + UUID.randomUUID();
+            tokens[i] = UUID.randomUUID().toString().replace("-", "")
+                    + UUID.randomUUID().toString().replace("-", "");
+            registry.put(endpointArns[i], tokens[i], "user" + i, true);
+        }
+    }
+
+    private int next(Cursor cursor) {
+        cursor.next = (int) ((cursor.next + 7919L) % endpoints);
+        return cursor.next;
+    }
+
+    @Benchmark
+    public boolean byArn(Cursor cursor) {
+        return registry.get(endpointArns[next(cursor)]).isEnabled();
+    }
+
+    @Benchmark
+    public boolean byToken(Cursor cursor) {
+        return registry.getByToken(tokens[next(cursor)]).isEnabled();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean byArnContended(Cursor cursor) {
+        return registry.get(endpointArns[next(cursor)]).isEnabled();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the platform message builders and of serializing the message that
+ * publish sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageBuilderBenchmark {
+
+    private final SNSMobilePush sample = new SNSMobilePush(null);
+    private Map<String, String> messageMap;
+
+    @Setup
+    public void buildMessageMap() {
+        messageMap = new HashMap<String, String>();
+        messageMap.put("default", "This is the default message");
+        messageMap.put(SNSMobilePush.Platform.GCM.name(),
+                sample.getSampleAndroidMessage());
+    }
+
+    @Benchmark
+    public String jsonify() {
+        return SNSMobilePush.jsonify(messageMap);
+    }
+
+    @Benchmark
+    public String appleMessage() {
+        return sample.getSampleAppleMessage();
+    }
+
+    @Benchmark
+    public String kindleMessage() {
+        return sample.getSampleKindleMessage();
+    }
+
+    @Benchmark
+    public String androidMessage() {
+        return sample.getSampleAndroidMessage();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of personalizing the APNS message for one recipient: building and
+ * serializing the message maps against rendering a compiled MessageTemplate.
+ * Run with '-prof gc' to compare the bytes allocated per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    private final SNSMobilePush sample = new SNSMobilePush(null);
+    private MessageTemplate template;
+    private int recipient;
+
+    @Setup
+    public void compile() {
+        template = sample.compileGreetingTemplate(SNSMobilePush.Platform.APNS);
+    }
+
+    @Benchmark
+    public PreparedMessage serialized() {
+        int badge = recipient++ & 0xff;
+        Map<String, String> messageMap = new HashMap<String, String>();
+        messageMap.put("default", "This is the default message");
+        messageMap.put(SNSMobilePush.Platform.APNS.name(), sample
+                .getSampleAppleMessage("Hello \"Bob\", you have got email.",
+                        badge));
+        return new PreparedMessage(SNSMobilePush.jsonify(messageMap),
+                PreparedMessage.JSON_STRUCTURE);
+    }
+
+    @Benchmark
+    public PreparedMessage template() {
+        int badge = recipient++ & 0xff;
+        return template.render("\"Bob\"", Integer.toString(badge));
+    }
+}
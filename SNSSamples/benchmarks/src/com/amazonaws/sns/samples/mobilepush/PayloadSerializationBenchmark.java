@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.amazonaws.sns.samples.mobilepush.SNSMobilePush.Platform;
+
+/**
+ * Allocation profile of building a platform message and its envelope: the
+ * typed payloads written with a JsonGenerator against the maps serialized by
+ * jsonify they replaced. Run with '-prof gc' and compare gc.alloc.rate.norm.
+ * Setup fails if the two ever produce different messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PayloadSerializationBenchmark {
+
+    private static final String DEFAULT_MESSAGE = "This is the default message";
+
+    @Param({ "APNS", "GCM", "ADM" })
+    public Platform platform;
+
+    private String text;
+    private int number;
+
+    @Setup
+    public void verify() {
+        text = "Hello \"World\" \u00e9\n";
+        number = 9;
+        String maps = maps();
+        String typed = typed();
+        if (!maps.equals(typed)) {
+            throw new IllegalStateException("Typed payload differs:\n" + maps
+                    + "\n" + typed);
+        }
+    }
+
+    @Benchmark
+    public String maps() {
+        Map<String, Object> platformMap = new HashMap<String, Object>();
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("message", text);
+        switch (platform) {
+        case GCM:
+            platformMap.put("collapse_key", "Welcome");
+            platformMap.put("data", data);
+            platformMap.put("delay_while_idle", true);
+            platformMap.put("time_to_live", 125);
+            platformMap.put("dry_run", false);
+            break;
+        case ADM:
+            platformMap.put("data", data);
+            platformMap.put("consolidationKey", "Welcome");
+            platformMap.put("expiresAfter", 1000);
+            break;
+        default:
+            Map<String, Object> aps = new HashMap<String, Object>();
+            aps.put("alert", text);
+            aps.put("badge", number);
+            aps.put("sound", "default");
+            platformMap.put("aps", aps);
+        }
+        Map<String, String> messageMap = new HashMap<String, String>();
+        messageMap.put("default", DEFAULT_MESSAGE);
+        messageMap.put(platform.name(), SNSMobilePush.jsonify(platformMap));
+        return SNSMobilePush.jsonify(messageMap);
+    }
+
+    @Benchmark
+    public String typed() {
+        JsonPayload payload;
+        switch (platform) {
+        case GCM:
+            payload = new GcmPayload("Welcome", text, true, 125, false);
+            break;
+        case ADM:
+            payload = new AdmPayload(text, "Welcome", 1000);
+            break;
+        default:
+            payload = new ApnsPayload(text, number, "default");
+        }
+        return new MessageEnvelope(DEFAULT_MESSAGE, platform, payload)
+                .toJson();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+
+/**
+ * Work done for each endpoint by publish: building the request from the
+ * platform, which serializes the message again every time, against building
+ * it from a PreparedMessage made once. Run with '-prof gc' to compare the
+ * bytes allocated per publish (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PreparedMessageBenchmark {
+
+    private static final String ENDPOINT_ARN = "arn:aws:sns:us-east-1:123456789012:endpoint/GCM/app/00000000-0000-0000-0000-000000000000";
+
+    @Param({ "GCM", "APNS", "ADM" })
+    public SNSMobilePush.Platform platform;
+
+    private final SNSMobilePush sample = new SNSMobilePush(null);
+    private PreparedMessage prepared;
+
+    @Setup
+    public void prepare() {
+        prepared = sample.prepare(platform);
+    }
+
+    @Benchmark
+    public PublishRequest perEndpoint() {
+        return sample.prepare(platform).toPublishRequest(ENDPOINT_ARN);
+    }
+
+    @Benchmark
+    public PublishRequest prepared() {
+        return prepared.toPublishRequest(ENDPOINT_ARN);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * A token bucket shared by all workers which adapts its rate to SNS
+ * throttling: every throttled response halves the rate and every successful
+ * call raises it again by about one transaction per second each second, up to
+ * the target rate (additive increase, multiplicative decrease).
+ */
+public class AdaptiveRateLimiter {
+
+    private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(
+            Arrays.asList("Throttling", "Throttled", "ThrottlingException",
+                    "ThrottledException", "RequestThrottled"));
+
+    /*
+     * The rate is never decreased below this, so a burst of throttling cannot
+     * stall the run.
+     */
+    private static final double MIN_RATE = 1.0;
+
+    /*
+     * Throttles arriving within this interval of a decrease are taken to be
+     * part of the same burst and do not decrease the rate again.
+     */
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(100);
+
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 20000;
+
+    private final double targetRate;
+    private final long startNanos;
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+
+    private long requests;
+    private long throttles;
+    private long retries;
+
+    private final Random random = new Random();
+
+    /**
+     * @param targetRate
+     *            - Maximum number of calls per second, or 0 to only adapt
+     *            after SNS starts throttling
+     */
+    public AdaptiveRateLimiter(double targetRate) {
+        this.targetRate = targetRate;
+        this.rate = targetRate;
+        this.tokens = targetRate;
+        this.startNanos = System.nanoTime();
+        this.lastRefillNanos = startNanos;
+    }
+
+    /**
+     * Returns true if the exception is SNS rejecting the call because the
+     * account's request rate is too high.
+     */
+    public static boolean isThrottling(AmazonServiceException ase) {
+        return THROTTLING_ERROR_CODES.contains(ase.getErrorCode())
+                || ase.getStatusCode() == 429;
+    }
+
+    /**
+     * Takes one token, waiting until one is available.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes one token without waiting for it. The call it is taken for must
+     * not be made before the returned delay has passed; callback threads use
+     * this to schedule the call instead of sleeping.
+     *
+     * @return the delay in nanoseconds until the token is available, or 0
+     */
+    public synchronized long reserve() {
+        requests++;
+        if (rate <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= 1;
+        if (tokens < 0) {
+            return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+        return 0;
+    }
+
+    /**
+     * Takes one token only if it is available now, e.g. for a call which is
+     * not worth waiting for.
+     *
+     * @return whether a token was taken
+     */
+    public synchronized boolean tryAcquire() {
+        if (rate <= 0) {
+            requests++;
+            return true;
+        }
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        requests++;
+        tokens -= 1;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefillNanos) * rate
+                / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Records a call which was not throttled.
+     */
+    public synchronized void onSuccess() {
+        if (rate > 0 && (targetRate <= 0 || rate < targetRate)) {
+            rate += 1.0 / rate;
+            if (targetRate > 0 && rate > targetRate) {
+                rate = targetRate;
+            }
+        }
+    }
+
+    /**
+     * Records a throttled call and halves the rate.
+     */
+    public synchronized void onThrottle() {
+        throttles++;
+        long now = System.nanoTime();
+        if (rate > 0 && now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        if (rate <= 0) {
+            /*
+             * Without a target the first throttle starts limiting at half the
+             * average rate of the calls made so far.
+             */
+            double elapsedSeconds = Math.max(1.0, (now - startNanos)
+                    / (double) TimeUnit.SECONDS.toNanos(1));
+            rate = Math.max(MIN_RATE, requests / elapsedSeconds / 2);
+            lastRefillNanos = now;
+            tokens = 0;
+        } else {
+            rate = Math.max(MIN_RATE, rate / 2);
+            tokens = Math.min(tokens, rate);
+        }
+    }
+
+    /**
+     * Sleeps before the given retry of a throttled call, see
+     * {@link #backOffMillis(int)}.
+     *
+     * @param attempt
+     *            - Number of retries already made for the call
+     */
+    public void backOff(int attempt) throws InterruptedException {
+        Thread.sleep(backOffMillis(attempt));
+    }
+
+    /**
+     * Returns the delay before the given retry of a throttled call. The delay
+     * grows exponentially with the attempt and is drawn uniformly below that
+     * bound so that workers throttled together do not retry together.
+     *
+     * @param attempt
+     *            - Number of retries already made for the call
+     */
+    public synchronized long backOffMillis(int attempt) {
+        long bound = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS
+                << Math.min(attempt, 16));
+        retries++;
+        return 1 + (long) (random.nextDouble() * bound);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getThrottles() {
+        return throttles;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.services.sns.AmazonSNSAsync;
+
+/**
+ * Starts each job's create call on the async SNS client and returns at once.
+ * A semaphore caps the number of calls in flight, and the CSV reader waits
+ * for a permit once the cap is reached. Throttled calls are retried from a
+ * scheduler thread of the dispatcher rather than from the async client's
+ * callback threads, which must stay free to complete other calls.
+ */
+public class AsyncJobDispatcher implements JobDispatcher {
+
+    private final AmazonSNSAsync asyncClient;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final ScheduledExecutorService retryScheduler;
+
+    /**
+     * @param asyncClient
+     *            - Shared async client for the application's region
+     * @param maxInFlight
+     *            - Maximum number of create calls awaiting a response
+     */
+    public AsyncJobDispatcher(AmazonSNSAsync asyncClient, int maxInFlight) {
+        this.asyncClient = asyncClient;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.retryScheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "AsyncJobDispatcher-retry");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    @Override
+    public void dispatch(CreateEndpointJob job) throws InterruptedException {
+        inFlight.acquire();
+        job.runAsync(asyncClient, inFlight, retryScheduler);
+    }
+
+    @Override
+    public void awaitCompletion() throws InterruptedException {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        retryScheduler.shutdown();
+    }
+
+    /*
+     * Jobs start as soon as they are dispatched.
+     */
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+}
@@ -20,22 +20,24 @@
 
 package com.amazonaws.sns.samples.bulkupload;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import au.com.bytecode.opencsv.CSVReader;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.InvalidParameterException;
+import com.amazonaws.services.sns.model.NotFoundException;
 
 public class BatchCreatePlatformEndpointSample {
 
@@ -49,6 +51,30 @@ public class BatchCreatePlatformEndpointSample {
     private char delimiterChar = ',';
     private char quoteChar = '\"';
     private int numOfThreads = 1;
+    private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private long applicationCacheTtlSeconds = 300;
+    private int queueDepth = 1000;
+    private String mode = THREADS_MODE;
+    private int maxInFlight = 256;
+    private double targetTps = 0;
+    private int maxRetries = 5;
+    private int flushRecords = 1000;
+    private long flushIntervalMillis = 100;
+    private long checkpointIntervalSeconds = 10;
+    private String journalFileName;
+    private boolean resume = false;
+    private int numOfReaders = 1;
+    private boolean mappedParser = false;
+    private TokenDeduplicator.Policy dedupPolicy;
+    private int dedupExpectedTokens = 1000000;
+    private boolean skipExisting = false;
+    private String endpointSnapshotFileName;
+    private long endpointSnapshotMaxAgeSeconds = 3600;
+    private long metricsIntervalSeconds = 10;
+    private boolean logRows = true;
+    private String endpoint;
+    private double hedgePercentile = 0;
+    private double hedgeBudget = 0.05;
 
     private static final String APPLICATION_ARN = "applicationarn";
     private static final String CSV_FILE_NAME = "csvfilename";
@@ -57,15 +83,60 @@ public class BatchCreatePlatformEndpointSample {
     private static final String DELIMITER_CHAR = "delimiterchar";
     private static final String QUOTE_CHAR = "quotechar";
     private static final String NUM_OF_THREADS = "numofthreads";
+    private static final String MAX_CONNECTIONS = "maxconnections";
+    private static final String APPLICATION_CACHE_TTL = "applicationcachettl";
+    private static final String QUEUE_DEPTH = "queuedepth";
+    private static final String MODE = "mode";
+    private static final String MAX_IN_FLIGHT = "maxinflight";
+    private static final String TARGET_TPS = "targettps";
+    private static final String MAX_RETRIES = "maxretries";
+    private static final String FLUSH_RECORDS = "flushrecords";
+    private static final String FLUSH_INTERVAL = "flushinterval";
+    private static final String CHECKPOINT_INTERVAL = "checkpointinterval";
+    private static final String JOURNAL_FILE_NAME = "journalfilename";
+    private static final String RESUME = "resume";
+    private static final String NUM_OF_READERS = "numofreaders";
+    private static final String MAPPED_PARSER = "mappedparser";
+    private static final String DEDUP = "dedup";
+    private static final String DEDUP_EXPECTED_TOKENS = "dedupexpectedtokens";
+    private static final String SKIP_EXISTING = "skipexisting";
+    private static final String ENDPOINT_SNAPSHOT_FILE_NAME = "endpointsnapshotfilename";
+    private static final String ENDPOINT_SNAPSHOT_MAX_AGE = "endpointsnapshotmaxage";
+    private static final String METRICS_INTERVAL = "metricsinterval";
+    private static final String LOG_ROWS = "logrows";
+    private static final String ENDPOINT = "endpoint";
+    private static final String HEDGE_PERCENTILE = "hedgepercentile";
+    private static final String HEDGE_BUDGET = "hedgebudget";
+
+    /*
+     * Values of the mode property
+     */
+    static final String THREADS_MODE = "threads";
+    static final String ASYNC_MODE = "async";
+    static final String VIRTUAL_MODE = "virtual";
+
+    /*
+     * Error code under which rows that cannot be parsed are counted
+     */
+    static final String MALFORMED_ROW = "MalformedRow";
 
     static final int MALFORMED_PROPERTIES_ERROR_CODE = 1;
     static final int CREDENTIAL_RETRIEVAL_FAILURE_ERROR_CODE = 2;
     static final int FILE_ACCESS_FAILURE_ERROR_CODE = 3;
     static final int NOT_FOUND_ERROR_CODE = 4;
 
-    private CSVReader csvReader;
-    private Writer goodFileWriter;
-    private Writer badFileWriter;
+    private CheckpointJournal journal;
+    private TokenDeduplicator deduplicator;
+    private ExistingEndpointIndex existingEndpoints;
+    private UploadMetrics metrics;
+    private ResultFileWriter resultWriter;
+
+    private String region = "us-east-1";
+    private SNSClientPool clientPool;
+    private AmazonSNS client;
+    private PlatformApplicationCache applicationCache;
+    private AdaptiveRateLimiter rateLimiter;
+    private HedgingPolicy hedgingPolicy;
 
     /*
      * The properties files
@@ -90,16 +161,14 @@ public class BatchCreatePlatformEndpointSample {
                 }
             });
 
-    long lineNumber;
+    private final AtomicLong rowsRead = new AtomicLong();
 
     public BatchCreatePlatformEndpointSample(Properties mapOfProperties) {
-        lineNumber = 0;
-        String region = "us-east-1";
         if (mapOfProperties.containsKey(APPLICATION_ARN)) {
             this.applicationArn = (String) mapOfProperties.get(APPLICATION_ARN);
             try {
                 String[] applicationParts = applicationArn.split(":");
-                if (!listOfRegions.contains(region = applicationParts[3])) {
+                if (!listOfRegions.contains(this.region = applicationParts[3])) {
                     System.err.println("[ERROR] The region " + region
                             + " is invalid");
                     System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
@@ -160,55 +229,608 @@ public class BatchCreatePlatformEndpointSample {
                 this.numOfThreads = 1;
             }
         }
+        if (mapOfProperties.containsKey(MAX_CONNECTIONS)) {
+            try {
+                this.maxConnections = Integer.parseInt((String) mapOfProperties
+                        .get(MAX_CONNECTIONS));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.maxConnections <= 0) {
+                this.maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+            }
+        }
+        if (mapOfProperties.containsKey(APPLICATION_CACHE_TTL)) {
+            try {
+                this.applicationCacheTtlSeconds = Long
+                        .parseLong((String) mapOfProperties
+                                .get(APPLICATION_CACHE_TTL));
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        if (mapOfProperties.containsKey(QUEUE_DEPTH)) {
+            try {
+                this.queueDepth = Integer.parseInt((String) mapOfProperties
+                        .get(QUEUE_DEPTH));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.queueDepth <= 0) {
+                this.queueDepth = 1000;
+            }
+        }
+        if (mapOfProperties.containsKey(MODE)) {
+            String modeProperty = ((String) mapOfProperties.get(MODE)).trim();
+            if (modeProperty.length() > 0) {
+                if (!THREADS_MODE.equals(modeProperty)
+                        && !ASYNC_MODE.equals(modeProperty)
+                        && !VIRTUAL_MODE.equals(modeProperty)) {
+                    System.err.println("[ERROR] The mode " + modeProperty
+                            + " is invalid");
+                    System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+                }
+                this.mode = modeProperty;
+            }
+        }
+        if (mapOfProperties.containsKey(MAX_IN_FLIGHT)) {
+            try {
+                this.maxInFlight = Integer.parseInt((String) mapOfProperties
+                        .get(MAX_IN_FLIGHT));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.maxInFlight <= 0) {
+                this.maxInFlight = 256;
+            }
+        }
+        if (mapOfProperties.containsKey(TARGET_TPS)) {
+            try {
+                this.targetTps = Double.parseDouble((String) mapOfProperties
+                        .get(TARGET_TPS));
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        if (mapOfProperties.containsKey(MAX_RETRIES)) {
+            try {
+                this.maxRetries = Integer.parseInt((String) mapOfProperties
+                        .get(MAX_RETRIES));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.maxRetries < 0) {
+                this.maxRetries = 0;
+            }
+        }
+        if (mapOfProperties.containsKey(FLUSH_RECORDS)) {
+            try {
+                this.flushRecords = Integer.parseInt((String) mapOfProperties
+                        .get(FLUSH_RECORDS));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.flushRecords <= 0) {
+                this.flushRecords = 1000;
+            }
+        }
+        if (mapOfProperties.containsKey(FLUSH_INTERVAL)) {
+            try {
+                this.flushIntervalMillis = Long
+                        .parseLong((String) mapOfProperties.get(FLUSH_INTERVAL));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.flushIntervalMillis <= 0) {
+                this.flushIntervalMillis = 100;
+            }
+        }
+        if (mapOfProperties.containsKey(CHECKPOINT_INTERVAL)) {
+            try {
+                this.checkpointIntervalSeconds = Long
+                        .parseLong((String) mapOfProperties
+                                .get(CHECKPOINT_INTERVAL));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.checkpointIntervalSeconds <= 0) {
+                this.checkpointIntervalSeconds = 10;
+            }
+        }
+        this.journalFileName = this.csvFileName + ".journal";
+        if (mapOfProperties.containsKey(JOURNAL_FILE_NAME)) {
+            String journalProperty = ((String) mapOfProperties
+                    .get(JOURNAL_FILE_NAME)).trim();
+            if (journalProperty.length() > 0) {
+                this.journalFileName = journalProperty;
+            }
+        }
+        if (mapOfProperties.containsKey(RESUME)) {
+            this.resume = Boolean.parseBoolean(((String) mapOfProperties
+                    .get(RESUME)).trim());
+        }
+        if (mapOfProperties.containsKey(NUM_OF_READERS)) {
+            try {
+                this.numOfReaders = Integer.parseInt((String) mapOfProperties
+                        .get(NUM_OF_READERS));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.numOfReaders <= 0) {
+                this.numOfReaders = 1;
+            }
+        }
+        if (mapOfProperties.containsKey(MAPPED_PARSER)) {
+            this.mappedParser = Boolean.parseBoolean(((String) mapOfProperties
+                    .get(MAPPED_PARSER)).trim());
+            if (this.mappedParser
+                    && !MappedCsvRecordReader.isSupported(this.delimiterChar,
+                            this.quoteChar)) {
+                System.err.println("[ERROR] The " + MAPPED_PARSER
+                        + " option requires ASCII delimiter and quote characters"
+                        + " and an ASCII-compatible default charset");
+                System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+            }
+        }
+        if (mapOfProperties.containsKey(DEDUP)) {
+            String dedupProperty = ((String) mapOfProperties.get(DEDUP))
+                    .trim();
+            if ("first".equals(dedupProperty)) {
+                this.dedupPolicy = TokenDeduplicator.Policy.FIRST;
+            } else if ("last".equals(dedupProperty)) {
+                this.dedupPolicy = TokenDeduplicator.Policy.LAST;
+            } else if (dedupProperty.length() > 0
+                    && !"none".equals(dedupProperty)) {
+                System.err.println("[ERROR] The dedup policy " + dedupProperty
+                        + " is invalid");
+                System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+            }
+        }
+        if (mapOfProperties.containsKey(DEDUP_EXPECTED_TOKENS)) {
+            try {
+                this.dedupExpectedTokens = Integer
+                        .parseInt((String) mapOfProperties
+                                .get(DEDUP_EXPECTED_TOKENS));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.dedupExpectedTokens <= 0) {
+                this.dedupExpectedTokens = 1000000;
+            }
+            this.dedupExpectedTokens = Math.min(this.dedupExpectedTokens,
+                    OffHeapLongMap.MAX_SIZE);
+        }
+        if (mapOfProperties.containsKey(SKIP_EXISTING)) {
+            this.skipExisting = Boolean.parseBoolean(((String) mapOfProperties
+                    .get(SKIP_EXISTING)).trim());
+        }
+        if (mapOfProperties.containsKey(ENDPOINT_SNAPSHOT_FILE_NAME)) {
+            String snapshotProperty = ((String) mapOfProperties
+                    .get(ENDPOINT_SNAPSHOT_FILE_NAME)).trim();
+            if (snapshotProperty.length() > 0) {
+                this.endpointSnapshotFileName = snapshotProperty;
+            }
+        }
+        if (mapOfProperties.containsKey(ENDPOINT_SNAPSHOT_MAX_AGE)) {
+            try {
+                this.endpointSnapshotMaxAgeSeconds = Long
+                        .parseLong((String) mapOfProperties
+                                .get(ENDPOINT_SNAPSHOT_MAX_AGE));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.endpointSnapshotMaxAgeSeconds < 0) {
+                this.endpointSnapshotMaxAgeSeconds = 3600;
+            }
+        }
+        if (mapOfProperties.containsKey(METRICS_INTERVAL)) {
+            try {
+                this.metricsIntervalSeconds = Long
+                        .parseLong((String) mapOfProperties
+                                .get(METRICS_INTERVAL));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.metricsIntervalSeconds <= 0) {
+                this.metricsIntervalSeconds = 10;
+            }
+        }
+        if (mapOfProperties.containsKey(LOG_ROWS)) {
+            String logRowsProperty = ((String) mapOfProperties.get(LOG_ROWS))
+                    .trim();
+            if (logRowsProperty.length() > 0) {
+                this.logRows = Boolean.parseBoolean(logRowsProperty);
+            }
+        }
+        if (mapOfProperties.containsKey(ENDPOINT)) {
+            String endpointProperty = ((String) mapOfProperties.get(ENDPOINT))
+                    .trim();
+            if (endpointProperty.length() > 0) {
+                this.endpoint = endpointProperty;
+            }
+        }
+        if (mapOfProperties.containsKey(HEDGE_PERCENTILE)) {
+            try {
+                this.hedgePercentile = Double
+                        .parseDouble((String) mapOfProperties
+                                .get(HEDGE_PERCENTILE));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.hedgePercentile < 0 || this.hedgePercentile >= 100) {
+                System.err.println("[ERROR] The hedge percentile "
+                        + this.hedgePercentile + " is invalid");
+                System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+            }
+        }
+        if (mapOfProperties.containsKey(HEDGE_BUDGET)) {
+            try {
+                this.hedgeBudget = Double.parseDouble((String) mapOfProperties
+                        .get(HEDGE_BUDGET));
+            } catch (NumberFormatException nfe) {
+            }
+            if (this.hedgeBudget <= 0 || this.hedgeBudget > 1) {
+                this.hedgeBudget = 0.05;
+            }
+        }
+        /*
+         * Every in-flight call holds a connection of the shared client.
+         */
+        if (ASYNC_MODE.equals(this.mode) || VIRTUAL_MODE.equals(this.mode)) {
+            this.maxConnections = Math.max(this.maxConnections, this.maxInFlight);
+        }
 
+        /*
+         * The credentials are read once and every worker shares the client of
+         * the application's region.
+         */
         try {
-            goodFileWriter = new PrintWriter(new FileWriter(this.goodFileName,
-                    true));
+            clientPool = new SNSClientPool(new PropertiesCredentials(
+                    BatchCreatePlatformEndpointSample.class
+                            .getResourceAsStream(AWSCREDENTIALSPROPERTIES_FILE)),
+                    this.maxConnections, this.endpoint);
         } catch (IOException ioe) {
-            System.err.println("[ERROR] Error initiating write to "
-                    + this.goodFileName + ": " + ioe.getMessage());
-            System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+            System.err.println("[ERROR] Error opening file"
+                    + AWSCREDENTIALSPROPERTIES_FILE + ": " + ioe.getMessage());
+            System.exit(CREDENTIAL_RETRIEVAL_FAILURE_ERROR_CODE);
+        }
+        client = clientPool.getClient(this.region);
+        applicationCache = new PlatformApplicationCache(client,
+                TimeUnit.SECONDS.toMillis(this.applicationCacheTtlSeconds));
+        rateLimiter = new AdaptiveRateLimiter(this.targetTps);
+        if (this.hedgePercentile > 0) {
+            /*
+             * Blocking hedges get the budget's share of the workers' threads,
+             * so that hedging never runs many more calls than the mode allows.
+             */
+            int concurrency = ASYNC_MODE.equals(this.mode)
+                    || VIRTUAL_MODE.equals(this.mode) ? this.maxInFlight
+                    : this.numOfThreads;
+            hedgingPolicy = new HedgingPolicy(this.hedgePercentile,
+                    this.hedgeBudget, (int) Math.ceil(concurrency
+                            * this.hedgeBudget));
+        }
+        metrics = new UploadMetrics(
+                TimeUnit.SECONDS.toMillis(this.metricsIntervalSeconds),
+                this.logRows);
+
+        /*
+         * When resuming, rows up to the journal's line number and rows it
+         * marks as completed already have results and are skipped.
+         */
+        if (this.resume && new File(this.journalFileName).exists()) {
+            try {
+                journal = CheckpointJournal.load(this.journalFileName,
+                        this.csvFileName);
+            } catch (IOException ioe) {
+                System.err.println("[ERROR] Error initiating read from "
+                        + this.journalFileName + ": " + ioe.getMessage());
+                System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+            } catch (IllegalStateException ise) {
+                System.err.println("[ERROR] " + ise.getMessage());
+                System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+            }
+            System.out.println("[INFO] Resuming from "
+                    + this.journalFileName);
+        } else {
+            List<CsvFileSplitter.Range> ranges;
+            if (this.numOfReaders > 1) {
+                try {
+                    ranges = CsvFileSplitter.split(this.csvFileName,
+                            this.numOfReaders, this.delimiterChar,
+                            this.quoteChar);
+                } catch (IOException ioe) {
+                    System.err.println("[ERROR] Error initiating read from file "
+                            + this.csvFileName);
+                    System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+                    return;
+                }
+            } else {
+                ranges = Collections.singletonList(new CsvFileSplitter.Range(
+                        0, Long.MAX_VALUE, 0));
+            }
+            journal = new CheckpointJournal(this.journalFileName,
+                    this.csvFileName, ranges);
         }
+
         try {
-            badFileWriter = new PrintWriter(new FileWriter(this.badFileName,
-                    true));
+            resultWriter = new ResultFileWriter(this.goodFileName,
+                    this.badFileName, this.flushRecords,
+                    this.flushIntervalMillis,
+                    TimeUnit.SECONDS.toMillis(this.checkpointIntervalSeconds),
+                    journal);
         } catch (IOException ioe) {
             System.err.println("[ERROR] Error initiating write to "
-                    + this.badFileName + ": " + ioe.getMessage());
+                    + this.goodFileName + " or " + this.badFileName + ": "
+                    + ioe.getMessage());
             System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
         }
     }
 
+    /**
+     * Checks that the platform application exists, exiting if it does not.
+     * The result is cached, so workers calling this again only reach SNS once
+     * the cached entry has expired.
+     *
+     * @param applicationCache
+     *            - Cache of platform application attributes
+     * @param applicationArn
+     *            - ARN of the platform application
+     */
+    static void verifyPlatformApplication(
+            PlatformApplicationCache applicationCache, String applicationArn) {
+        try {
+            applicationCache.getAttributes(applicationArn);
+        } catch (NotFoundException nfe) {
+            System.err
+                    .println("[ERROR: APP NOT FOUND] The application ARN provided: "
+                            + applicationArn
+                            + " does not correspond to any existing platform applications. "
+                            + nfe.getMessage());
+            System.exit(NOT_FOUND_ERROR_CODE);
+        } catch (InvalidParameterException ipe) {
+            System.err
+                    .println("[ERROR: APP ARN INVALID] The application ARN provided: "
+                            + applicationArn + " is malformed" + ipe.getMessage());
+            System.exit(NOT_FOUND_ERROR_CODE);
+        }
+    }
+
     /**
      * @param numberOfThreads
      *            - Number of concurrently operating threads
      */
     public void readCsv(int numberOfThreads) {
-        ExecutorService executor = Executors
-                .newFixedThreadPool(numberOfThreads);
+        verifyPlatformApplication(this.applicationCache, this.applicationArn);
+        if (this.skipExisting) {
+            indexExistingEndpoints();
+        }
 
-        String[] lineBeingProcessed;
+        JobDispatcher dispatcher;
+        if (ASYNC_MODE.equals(this.mode)) {
+            dispatcher = new AsyncJobDispatcher(
+                    clientPool.getAsyncClient(this.region), this.maxInFlight);
+        } else if (VIRTUAL_MODE.equals(this.mode)) {
+            try {
+                dispatcher = new VirtualThreadJobDispatcher(this.maxInFlight);
+            } catch (UnsupportedOperationException uoe) {
+                System.err.println("[ERROR] The mode " + VIRTUAL_MODE
+                        + " is unavailable: " + uoe.getMessage());
+                System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+                return;
+            }
+        } else {
+            dispatcher = new ThreadPoolJobDispatcher(numberOfThreads,
+                    this.queueDepth);
+        }
 
+        /*
+         * Each range of the file is read by its own thread. Line numbers
+         * continue from the number of records before the range.
+         */
+        List<CsvFileSplitter.Range> ranges = journal.getRemainingRanges();
+
+        /*
+         * The first row of each token can be chosen while reading a single
+         * range from the start. In every other case the whole file is scanned
+         * first, so that a resumed or parallel run chooses the same rows.
+         */
+        if (this.dedupPolicy != null) {
+            boolean streaming = this.dedupPolicy == TokenDeduplicator.Policy.FIRST
+                    && ranges.size() == 1 && ranges.get(0).startOffset == 0;
+            deduplicator = new TokenDeduplicator(this.dedupPolicy, streaming,
+                    this.dedupExpectedTokens);
+            if (!streaming) {
+                try {
+                    CsvRecordSource csvReader = openCsv(0, Long.MAX_VALUE);
+                    deduplicator.scan(csvReader);
+                    csvReader.close();
+                } catch (IOException e) {
+                    System.err.println("[ERROR] Error initiating read from file "
+                            + this.csvFileName);
+                    System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+                }
+            }
+        }
+        metrics.start(dispatcher);
         try {
-            csvReader = new CSVReader(new BufferedReader(new FileReader(
-                    this.csvFileName)), this.delimiterChar, this.quoteChar);
+            if (ranges.size() == 1) {
+                readRange(ranges.get(0), dispatcher);
+            } else {
+                List<Thread> readers = new ArrayList<Thread>();
+                for (final CsvFileSplitter.Range range : ranges) {
+                    final JobDispatcher rangeDispatcher = dispatcher;
+                    Thread reader = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            readRange(range, rangeDispatcher);
+                        }
+                    });
+                    reader.start();
+                    readers.add(reader);
+                }
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+            dispatcher.awaitCompletion();
+            resultWriter.close();
+            metrics.stop();
+            System.out.println("[INFO] " + applicationCache.getValidationCalls()
+                    + " platform application validation call(s) for "
+                    + rowsRead.get() + " row(s)");
+            long requests = rateLimiter.getRequests();
+            System.out.println("[INFO] "
+                    + requests
+                    + " create call(s), "
+                    + rateLimiter.getThrottles()
+                    + " throttled ("
+                    + (requests == 0 ? 0 : 100 * rateLimiter.getThrottles()
+                            / requests) + "%), " + rateLimiter.getRetries()
+                    + " retried, final rate " + (long) rateLimiter.getRate()
+                    + " TPS");
+            if (hedgingPolicy != null) {
+                System.out.println("[INFO] Hedging: " + hedgingPolicy);
+            }
+            if (existingEndpoints != null) {
+                System.out.println("[INFO] " + existingEndpoints.size()
+                        + " existing endpoint(s) indexed with "
+                        + existingEndpoints.getListCalls() + " list call(s)");
+            }
+            if (deduplicator != null) {
+                int tokens = deduplicator.getDistinctTokens();
+                long memory = deduplicator.memoryBytes();
+                System.out.println("[INFO] "
+                        + deduplicator.getDuplicates()
+                        + " duplicate row(s) skipped, "
+                        + tokens
+                        + " distinct token(s) tracked in "
+                        + memory / (1024 * 1024)
+                        + " MB off-heap ("
+                        + (tokens == 0 ? 0 : memory * 1000000L / tokens
+                                / (1024 * 1024)) + " MB per million tokens)");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (hedgingPolicy != null) {
+                hedgingPolicy.shutdown();
+            }
+            clientPool.shutdown();
+        }
+    }
 
+    /*
+     * Loads the index of existing endpoints from the snapshot file if there is
+     * one and it is recent enough, otherwise lists the endpoints and saves the
+     * snapshot.
+     */
+    private void indexExistingEndpoints() {
+        if (this.endpointSnapshotFileName != null
+                && new File(this.endpointSnapshotFileName).exists()) {
+            try {
+                existingEndpoints = ExistingEndpointIndex.load(
+                        this.endpointSnapshotFileName, this.applicationArn,
+                        TimeUnit.SECONDS
+                                .toMillis(this.endpointSnapshotMaxAgeSeconds));
+            } catch (IOException ioe) {
+                System.err.println("[ERROR] Error initiating read from "
+                        + this.endpointSnapshotFileName + ": "
+                        + ioe.getMessage());
+                System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+            } catch (IllegalStateException ise) {
+                System.err.println("[ERROR] " + ise.getMessage());
+                System.exit(MALFORMED_PROPERTIES_ERROR_CODE);
+            }
+            if (existingEndpoints != null) {
+                System.out.println("[INFO] Existing endpoints read from "
+                        + this.endpointSnapshotFileName + ", listed "
+                        + new Date(existingEndpoints.getListedAtMillis()));
+                return;
+            }
+            System.out.println("[INFO] The snapshot "
+                    + this.endpointSnapshotFileName
+                    + " is too old, listing the endpoints again");
+        }
+        try {
+            existingEndpoints = ExistingEndpointIndex.list(this.client,
+                    this.applicationArn, this.maxRetries);
+        } catch (AmazonServiceException ase) {
+            System.err.println("[ERROR] The endpoints of " + this.applicationArn
+                    + " could not be listed. " + ase.getMessage());
+            System.exit(NOT_FOUND_ERROR_CODE);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (this.endpointSnapshotFileName != null) {
+            try {
+                existingEndpoints.save(this.endpointSnapshotFileName);
+            } catch (IOException ioe) {
+                System.err.println("[ERROR] Error initiating write to "
+                        + this.endpointSnapshotFileName + ": "
+                        + ioe.getMessage());
+                System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+            }
+        }
+    }
+
+    private CsvRecordSource openCsv(long startOffset, long endOffset)
+            throws IOException {
+        if (this.mappedParser) {
+            return new MappedCsvRecordReader(this.csvFileName, startOffset,
+                    endOffset, this.delimiterChar, this.quoteChar);
+        }
+        return new CsvRecordReader(this.csvFileName, startOffset, endOffset,
+                this.delimiterChar, this.quoteChar);
+    }
+
+    /**
+     * Reads the rows of one range of the CSV file and dispatches a job for
+     * each row which has not completed in an earlier run.
+     *
+     * @param range
+     *            - Range of the CSV file to read
+     * @param dispatcher
+     *            - Dispatcher running the jobs
+     */
+    private void readRange(CsvFileSplitter.Range range, JobDispatcher dispatcher) {
+        String[] lineBeingProcessed;
+        long lineNumber = range.linesBefore;
+
+        try {
+            CsvRecordSource csvReader = openCsv(range.startOffset,
+                    range.endOffset);
 
             while ((lineBeingProcessed = csvReader.readNext()) != null) {
                 lineNumber++;
+                rowsRead.incrementAndGet();
+                journal.register(lineNumber, csvReader.getOffset());
+                /*
+                 * Duplicates are checked before completed rows are skipped so
+                 * that a streaming filter still sees every token.
+                 */
+                if (deduplicator != null
+                        && (lineBeingProcessed.length == 1 || lineBeingProcessed.length == 2)
+                        && lineBeingProcessed[0].length() > 0
+                        && !deduplicator.isChosen(lineBeingProcessed[0],
+                                lineNumber)) {
+                    if (!journal.isCompleted(lineNumber)) {
+                        metrics.rowSkipped();
+                        if (metrics.isLoggingRows()) {
+                            System.out.println("<" + lineNumber + ">"
+                                    + "[SKIPPED] Duplicate token "
+                                    + lineBeingProcessed[0]);
+                        }
+                        journal.complete(lineNumber);
+                    }
+                    continue;
+                }
+                if (journal.isCompleted(lineNumber)) {
+                    continue;
+                }
                 /*
                  * If the csv reader reads two fields, the first is read as the
                  * token and the second is read as the customUserData
                  */
                 if (lineBeingProcessed.length == 2) {
                     if (lineBeingProcessed[0].length() == 0) {
-                        System.err
-                                .println("<"
-                                        + lineNumber
-                                        + ">"
-                                        + "[ERROR: MALFORMED CSV FILE] Null token found in "
-                                        + this.csvFileName);
-                        ((PrintWriter) badFileWriter).println("<"
+                        metrics.rowFailed(MALFORMED_ROW);
+                        if (metrics.isLoggingRows()) {
+                            System.err
+                                    .println("<"
+                                            + lineNumber
+                                            + ">"
+                                            + "[ERROR: MALFORMED CSV FILE] Null token found in "
+                                            + this.csvFileName);
+                        }
+                        resultWriter.writeBad(lineNumber, "<"
                                 + lineNumber
                                 + ">"
                                 + Arrays.toString(lineBeingProcessed)
@@ -217,16 +839,17 @@ public class BatchCreatePlatformEndpointSample {
                                                 Arrays.toString(
                                                         lineBeingProcessed)
                                                         .length() - 1));
-                        badFileWriter.flush();
                         continue;
                     }
-                    CreateEndpointJob worker = new CreateEndpointJob();
+                    CreateEndpointJob worker = new CreateEndpointJob(this.client,
+                            this.applicationCache, this.rateLimiter,
+                            this.maxRetries, this.existingEndpoints,
+                            this.metrics);
+                    worker.setHedgingPolicy(this.hedgingPolicy);
                     worker.setThreadProperties(lineNumber,
                             lineBeingProcessed[0], lineBeingProcessed[1],
-                            this.applicationArn, this.goodFileName,
-                            this.badFileName, this.goodFileWriter,
-                            this.badFileWriter);
-                    executor.execute(worker);
+                            this.applicationArn, this.resultWriter);
+                    dispatcher.dispatch(worker);
                 }
                 /*
                  * If the csv reader reads one field, it is read as the token
@@ -234,13 +857,16 @@ public class BatchCreatePlatformEndpointSample {
                  */
                 else if (lineBeingProcessed.length == 1) {
                     if (lineBeingProcessed[0].length() == 0) {
-                        System.err
-                                .println("<"
-                                        + lineNumber
-                                        + ">"
-                                        + "[ERROR: MALFORMED CSV FILE] Null token found in "
-                                        + this.csvFileName);
-                        ((PrintWriter) badFileWriter).println("<"
+                        metrics.rowFailed(MALFORMED_ROW);
+                        if (metrics.isLoggingRows()) {
+                            System.err
+                                    .println("<"
+                                            + lineNumber
+                                            + ">"
+                                            + "[ERROR: MALFORMED CSV FILE] Null token found in "
+                                            + this.csvFileName);
+                        }
+                        resultWriter.writeBad(lineNumber, "<"
                                 + lineNumber
                                 + ">"
                                 + Arrays.toString(lineBeingProcessed)
@@ -249,36 +875,41 @@ public class BatchCreatePlatformEndpointSample {
                                                 Arrays.toString(
                                                         lineBeingProcessed)
                                                         .length() - 1));
-                        badFileWriter.flush();
                         continue;
                     }
-                    CreateEndpointJob worker = new CreateEndpointJob();
-                    worker.setThreadProperties(numberOfThreads,
+                    CreateEndpointJob worker = new CreateEndpointJob(this.client,
+                            this.applicationCache, this.rateLimiter,
+                            this.maxRetries, this.existingEndpoints,
+                            this.metrics);
+                    worker.setHedgingPolicy(this.hedgingPolicy);
+                    worker.setThreadProperties(lineNumber,
                             lineBeingProcessed[0], "", this.applicationArn,
-                            this.goodFileName, this.badFileName,
-                            this.goodFileWriter, this.badFileWriter);
-                    executor.execute(worker);
+                            this.resultWriter);
+                    dispatcher.dispatch(worker);
                 } else {
-                    System.err
-                            .println("<" + lineNumber + ">"
-                                    + "[ERROR: MALFORMED CSV FILE] "
-                                    + this.csvFileName);
-                    ((PrintWriter) badFileWriter).println("<"
+                    metrics.rowFailed(MALFORMED_ROW);
+                    if (metrics.isLoggingRows()) {
+                        System.err.println("<" + lineNumber + ">"
+                                + "[ERROR: MALFORMED CSV FILE] "
+                                + this.csvFileName);
+                    }
+                    resultWriter.writeBad(lineNumber, "<"
                             + lineNumber
                             + ">"
                             + Arrays.toString(lineBeingProcessed).substring(
                                     1,
                                     Arrays.toString(lineBeingProcessed)
                                             .length() - 1));
-                    badFileWriter.flush();
                     continue;
                 }
             }
-            executor.shutdown();
+            csvReader.close();
         } catch (IOException e) {
             System.err.println("[ERROR] Error initiating read from file "
                     + this.csvFileName);
             System.exit(FILE_ACCESS_FAILURE_ERROR_CODE);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
     }
 
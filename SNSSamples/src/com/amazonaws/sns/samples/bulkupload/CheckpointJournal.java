@@ -0,0 +1,344 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Records how far a bulk upload has got so that it can be resumed. The CSV
+ * file is read as one or more ranges, see {@link CsvFileSplitter}, and for
+ * each range the journal keeps the highest line number up to which every row
+ * has a result, the byte offset in the CSV file just past that row, and a
+ * bitmap of the rows after it which have already completed out of order.
+ *
+ * The {@link ResultFileWriter} takes a {@link Snapshot} before each checkpoint
+ * and writes it to the journal file once the good and bad files are synced,
+ * so the journal never claims a row whose result could still be lost.
+ */
+public class CheckpointJournal {
+
+    private static final String CSV_FILE_NAME = "csvfilename";
+    private static final String SEGMENTS = "segments";
+    private static final String LINE_NUMBER = ".linenumber";
+    private static final String OFFSET = ".offset";
+    private static final String END_OFFSET = ".endoffset";
+    private static final String COMPLETED = ".completed";
+
+    /*
+     * A segment's bitmap is shifted down once its contiguous line number has
+     * moved this many lines past the bitmap's base.
+     */
+    private static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+    /**
+     * The state of the journal at one point in time.
+     */
+    public static class Snapshot {
+        final long[] lineNumbers;
+        final long[] offsets;
+        final long[][] completed;
+
+        Snapshot(int segments) {
+            lineNumbers = new long[segments];
+            offsets = new long[segments];
+            completed = new long[segments][];
+        }
+    }
+
+    /*
+     * The progress through one range of the CSV file
+     */
+    private static class Segment {
+        final long firstLine;
+        final long endOffset;
+
+        long lineNumber;
+        long offset;
+
+        /*
+         * Bit i is set when line bitBase + 1 + i has completed
+         */
+        BitSet completed = new BitSet();
+        long bitBase;
+
+        /*
+         * Byte offset just past each line read but not yet below lineNumber,
+         * indexed by line number modulo the array length
+         */
+        long[] offsets = new long[1024];
+        long lastRegistered;
+
+        Segment(long lineNumber, long offset, long endOffset) {
+            this.firstLine = lineNumber + 1;
+            this.endOffset = endOffset;
+            this.lineNumber = lineNumber;
+            this.offset = offset;
+            this.bitBase = lineNumber;
+            this.lastRegistered = lineNumber;
+        }
+
+        synchronized void register(long line, long endOffset) {
+            if (line - lineNumber > offsets.length) {
+                long[] larger = new long[offsets.length * 2];
+                for (long l = lineNumber + 1; l < line; l++) {
+                    larger[index(l, larger)] = offsets[index(l, offsets)];
+                }
+                offsets = larger;
+            }
+            offsets[index(line, offsets)] = endOffset;
+            lastRegistered = line;
+            advance();
+        }
+
+        synchronized void complete(long line) {
+            if (line > lineNumber) {
+                completed.set(bit(line));
+                advance();
+            }
+        }
+
+        synchronized boolean isCompleted(long line) {
+            return line <= lineNumber || completed.get(bit(line));
+        }
+
+        synchronized void snapshot(Snapshot snapshot, int i) {
+            int from = bit(lineNumber + 1);
+            snapshot.lineNumbers[i] = lineNumber;
+            snapshot.offsets[i] = offset;
+            snapshot.completed[i] = completed.get(from,
+                    Math.max(from, completed.length())).toLongArray();
+        }
+
+        private void advance() {
+            while (lineNumber < lastRegistered
+                    && completed.get(bit(lineNumber + 1))) {
+                lineNumber++;
+                completed.clear(bit(lineNumber));
+                offset = offsets[index(lineNumber, offsets)];
+            }
+            if (lineNumber - bitBase >= COMPACTION_THRESHOLD) {
+                int shift = bit(lineNumber + 1);
+                completed = completed.get(shift,
+                        Math.max(shift, completed.length()));
+                bitBase = lineNumber;
+            }
+        }
+
+        private int bit(long line) {
+            return (int) (line - bitBase - 1);
+        }
+
+        private static int index(long line, long[] array) {
+            return (int) (line % array.length);
+        }
+    }
+
+    private final String journalFileName;
+    private final String csvFileName;
+
+    /*
+     * Ordered by first line
+     */
+    private final Segment[] segments;
+
+    /**
+     * Creates an empty journal for the given ranges of the CSV file.
+     *
+     * @param journalFileName
+     *            - File the journal is written to
+     * @param csvFileName
+     *            - CSV file the journal tracks
+     * @param ranges
+     *            - Ranges of the CSV file, in file order
+     */
+    public CheckpointJournal(String journalFileName, String csvFileName,
+            List<CsvFileSplitter.Range> ranges) {
+        this.journalFileName = journalFileName;
+        this.csvFileName = csvFileName;
+        this.segments = new Segment[ranges.size()];
+        for (int i = 0; i < segments.length; i++) {
+            CsvFileSplitter.Range range = ranges.get(i);
+            segments[i] = new Segment(range.linesBefore, range.startOffset,
+                    range.endOffset);
+        }
+    }
+
+    private CheckpointJournal(String journalFileName, String csvFileName,
+            Segment[] segments) {
+        this.journalFileName = journalFileName;
+        this.csvFileName = csvFileName;
+        this.segments = segments;
+    }
+
+    /**
+     * Loads the journal written by an earlier run over the same CSV file.
+     *
+     * @throws IllegalStateException
+     *             if the journal was written for a different CSV file
+     */
+    public static CheckpointJournal load(String journalFileName,
+            String csvFileName) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(journalFileName);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        if (!csvFileName.equals(properties.getProperty(CSV_FILE_NAME))) {
+            throw new IllegalStateException("The journal " + journalFileName
+                    + " was written for "
+                    + properties.getProperty(CSV_FILE_NAME));
+        }
+        try {
+            Segment[] segments = new Segment[Integer.parseInt(properties
+                    .getProperty(SEGMENTS))];
+            for (int i = 0; i < segments.length; i++) {
+                String prefix = SEGMENTS + "." + i;
+                segments[i] = new Segment(Long.parseLong(properties
+                        .getProperty(prefix + LINE_NUMBER)),
+                        Long.parseLong(properties.getProperty(prefix + OFFSET)),
+                        Long.parseLong(properties.getProperty(prefix
+                                + END_OFFSET)));
+                String[] words = properties.getProperty(prefix + COMPLETED, "")
+                        .split(",");
+                long[] bits = new long[words[0].length() == 0 ? 0
+                        : words.length];
+                for (int w = 0; w < bits.length; w++) {
+                    bits[w] = new BigInteger(words[w], 16).longValue();
+                }
+                segments[i].completed = BitSet.valueOf(bits);
+            }
+            return new CheckpointJournal(journalFileName, csvFileName,
+                    segments);
+        } catch (RuntimeException re) {
+            throw new IOException("The journal " + journalFileName
+                    + " is malformed", re);
+        }
+    }
+
+    /**
+     * Returns the ranges still to be read: each starts just past the last
+     * row of its segment which, with all rows before it, has completed.
+     */
+    public List<CsvFileSplitter.Range> getRemainingRanges() {
+        List<CsvFileSplitter.Range> ranges = new ArrayList<CsvFileSplitter.Range>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ranges.add(new CsvFileSplitter.Range(segment.offset,
+                        segment.endOffset, segment.lineNumber));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns true if the row completed in an earlier run.
+     */
+    public boolean isCompleted(long line) {
+        return segment(line).isCompleted(line);
+    }
+
+    /**
+     * Records the byte offset just past a row. Within each range, rows must
+     * be registered in line order as they are read.
+     */
+    public void register(long line, long endOffset) {
+        segment(line).register(line, endOffset);
+    }
+
+    /**
+     * Records that a row's result has been handed to the result writer.
+     */
+    public void complete(long line) {
+        segment(line).complete(line);
+    }
+
+    /**
+     * @return the current state, to be written after the next sync
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].snapshot(snapshot, i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes a snapshot to the journal file, replacing it atomically.
+     */
+    public void write(Snapshot snapshot) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(CSV_FILE_NAME, csvFileName);
+        properties.setProperty(SEGMENTS, Integer.toString(segments.length));
+        for (int i = 0; i < segments.length; i++) {
+            String prefix = SEGMENTS + "." + i;
+            StringBuilder words = new StringBuilder();
+            for (int w = 0; w < snapshot.completed[i].length; w++) {
+                if (w > 0) {
+                    words.append(',');
+                }
+                words.append(Long.toHexString(snapshot.completed[i][w]));
+            }
+            properties.setProperty(prefix + LINE_NUMBER,
+                    Long.toString(snapshot.lineNumbers[i]));
+            properties.setProperty(prefix + OFFSET,
+                    Long.toString(snapshot.offsets[i]));
+            properties.setProperty(prefix + END_OFFSET,
+                    Long.toString(segments[i].endOffset));
+            properties.setProperty(prefix + COMPLETED, words.toString());
+        }
+
+        File journalFile = new File(journalFileName);
+        File tempFile = new File(journalFileName + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Segment segment(long line) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments[middle].firstLine <= line) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return segments[low];
+    }
+}
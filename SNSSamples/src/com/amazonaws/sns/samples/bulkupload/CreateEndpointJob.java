@@ -1,171 +1,461 @@
 package com.amazonaws.sns.samples.bulkupload;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.Writer;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.sns.AmazonSNS;
-import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.AmazonSNSAsync;
 import com.amazonaws.services.sns.model.CreatePlatformEndpointRequest;
 import com.amazonaws.services.sns.model.CreatePlatformEndpointResult;
-import com.amazonaws.services.sns.model.GetPlatformApplicationAttributesRequest;
-import com.amazonaws.services.sns.model.GetPlatformApplicationAttributesResult;
-import com.amazonaws.services.sns.model.InvalidParameterException;
-import com.amazonaws.services.sns.model.NotFoundException;
 
 public class CreateEndpointJob implements Runnable {
 
-    private static Lock lock = new ReentrantLock();
-
     private AmazonSNS client;
+    private PlatformApplicationCache applicationCache;
+    private AdaptiveRateLimiter rateLimiter;
+    private int maxRetries;
+    private ExistingEndpointIndex existingEndpoints;
+    private UploadMetrics metrics;
+    private HedgingPolicy hedgingPolicy;
 
     long lineNumber;
     private String token;
     private String userData;
     private String applicationArn;
-    private String goodFileName;
-    private String badFileName;
-    private Writer goodFileWriter;
-    private Writer badFileWriter;
-    private String region;
+    private ResultFileWriter resultWriter;
 
-    public CreateEndpointJob() {
+    /**
+     * @param client
+     *            - Shared client for the application's region, see
+     *            {@link SNSClientPool}
+     * @param applicationCache
+     *            - Cache holding the result of the startup validation of the
+     *            platform application
+     * @param rateLimiter
+     *            - Rate limiter shared by all jobs
+     * @param maxRetries
+     *            - Number of times a throttled call is retried before the row
+     *            is written to the bad file
+     * @param existingEndpoints
+     *            - Endpoints already registered with the application, or null
+     *            to call SNS for every row
+     * @param metrics
+     *            - Metrics shared by all jobs
+     */
+    public CreateEndpointJob(AmazonSNS client,
+            PlatformApplicationCache applicationCache,
+            AdaptiveRateLimiter rateLimiter, int maxRetries,
+            ExistingEndpointIndex existingEndpoints, UploadMetrics metrics) {
+        this.client = client;
+        this.applicationCache = applicationCache;
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = maxRetries;
+        this.existingEndpoints = existingEndpoints;
+        this.metrics = metrics;
+    }
 
-        try {
-            client = new AmazonSNSClient(
-                    new PropertiesCredentials(
-                            BatchCreatePlatformEndpointSample.class
-                                    .getResourceAsStream(BatchCreatePlatformEndpointSample.AWSCREDENTIALSPROPERTIES_FILE)));
-        } catch (IOException ioe) {
-            System.err
-                    .print("[ERROR] Error opening file"
-                            + BatchCreatePlatformEndpointSample.AWSCREDENTIALSPROPERTIES_FILE
-                            + ": " + ioe.getMessage());
-            System.exit(BatchCreatePlatformEndpointSample.CREDENTIAL_RETRIEVAL_FAILURE_ERROR_CODE);
-        }
+    /**
+     * Hedges the create calls of this job with the given policy, or not at
+     * all if it is null. CreatePlatformEndpoint returns the same endpoint
+     * when called again with the same token and user data, so either answer
+     * may be used.
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
     }
 
     public void setThreadProperties(long lineNumber, String token,
-            String userData, String applicationArn, String goodFileName,
-            String badFileName, Writer goodFileWriter, Writer badFileWriter) {
+            String userData, String applicationArn,
+            ResultFileWriter resultWriter) {
         this.lineNumber = lineNumber;
         this.token = token;
         this.userData = userData;
         this.applicationArn = applicationArn;
-        this.goodFileName = goodFileName;
-        this.badFileName = badFileName;
-        this.goodFileWriter = goodFileWriter;
-        this.badFileWriter = badFileWriter;
+        this.resultWriter = resultWriter;
     }
 
-    public void verifyPlatformApplication(AmazonSNS client) {
+    private CreatePlatformEndpointRequest createRequest() {
+        return new CreatePlatformEndpointRequest()
+                .withPlatformApplicationArn(this.applicationArn)
+                .withToken(this.token).withCustomUserData(this.userData);
+    }
+
+    /**
+     * Creates the endpoint and writes the row to the good or bad file. A
+     * failure to look up the platform application is written to the bad file
+     * like a failed call, so that every row gets a result.
+     */
+    @Override
+    public void run() {
         try {
-            if (!BatchCreatePlatformEndpointSample.listOfRegions
-                    .contains(this.region = this.applicationArn.split(":")[3])) {
-                System.err.println("[ERROR] The region " + region
-                        + " is invalid");
-                System.exit(BatchCreatePlatformEndpointSample.MALFORMED_PROPERTIES_ERROR_CODE);
+            BatchCreatePlatformEndpointSample.verifyPlatformApplication(
+                    this.applicationCache, this.applicationArn);
+            if (recordExisting()) {
+                return;
             }
-        } catch (ArrayIndexOutOfBoundsException aioobe) {
-            System.err.println("[ERROR] The ARN " + this.applicationArn
-                    + " is malformed");
-            System.exit(BatchCreatePlatformEndpointSample.MALFORMED_PROPERTIES_ERROR_CODE);
-        }
-        client.setEndpoint("https://sns." + this.region + ".amazonaws.com/");
-        try {
-            GetPlatformApplicationAttributesRequest applicationAttributesRequest = new GetPlatformApplicationAttributesRequest();
-            applicationAttributesRequest
-                    .setPlatformApplicationArn(this.applicationArn);
-            @SuppressWarnings("unused")
-            GetPlatformApplicationAttributesResult getAttributesResult = client
-                    .getPlatformApplicationAttributes(applicationAttributesRequest);
-        } catch (NotFoundException nfe) {
-            System.err
-                    .println("[ERROR: APP NOT FOUND] The application ARN provided: "
-                            + this.applicationArn
-                            + " does not correspond to any existing platform applications. "
-                            + nfe.getMessage());
-            System.exit(BatchCreatePlatformEndpointSample.NOT_FOUND_ERROR_CODE);
-        } catch (InvalidParameterException ipe) {
-            System.err
-                    .println("[ERROR: APP ARN INVALID] The application ARN provided: "
-                            + this.applicationArn
-                            + " is malformed"
-                            + ipe.getMessage());
-            System.exit(BatchCreatePlatformEndpointSample.NOT_FOUND_ERROR_CODE);
+            for (int attempt = 0;; attempt++) {
+                rateLimiter.acquire();
+                try {
+                    createEndpoint();
+                    return;
+                } catch (AmazonServiceException ase) {
+                    if (!shouldRetry(ase, attempt)) {
+                        recordServiceFailure(ase);
+                        return;
+                    }
+                } catch (AmazonClientException ace) {
+                    recordClientFailure(ace);
+                    return;
+                }
+                rateLimiter.backOff(attempt);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            recordClientFailure(new AmazonClientException(
+                    "Interrupted before the endpoint was created", ie));
+        } catch (RuntimeException re) {
+            recordFailure(re);
         }
     }
 
-    @Override
-    public void run() {
-        verifyPlatformApplication(this.client);
+    /**
+     * Starts the create call without waiting for it. The result is written
+     * from the async client's callback, which then releases one permit of
+     * inFlight. A throttled call is retried from retryScheduler once its
+     * backoff delay and the wait for a rate limiter token have passed, so
+     * that the callback thread of the async client is never put to sleep.
+     * A row which fails before its call is answered, e.g. because the
+     * platform application could not be looked up, is written to the bad
+     * file here and its permit released, so that the reader carries on.
+     *
+     * @param asyncClient
+     *            - Shared async client for the application's region
+     * @param inFlight
+     *            - Permit held by the caller for this job
+     * @param retryScheduler
+     *            - Scheduler starting the retries of throttled calls
+     */
+    public void runAsync(AmazonSNSAsync asyncClient, Semaphore inFlight,
+            ScheduledExecutorService retryScheduler)
+            throws InterruptedException {
         try {
-            CreatePlatformEndpointResult createResult = client
-                    .createPlatformEndpoint(new CreatePlatformEndpointRequest()
-                            .withPlatformApplicationArn(this.applicationArn)
-                            .withToken(this.token)
-                            .withCustomUserData(this.userData));
+            BatchCreatePlatformEndpointSample.verifyPlatformApplication(
+                    this.applicationCache, this.applicationArn);
+            if (recordExisting()) {
+                inFlight.release();
+                return;
+            }
+            rateLimiter.acquire();
+        } catch (InterruptedException ie) {
+            inFlight.release();
+            throw ie;
+        } catch (RuntimeException re) {
             try {
-                System.out.println("<" + lineNumber + ">"
-                        + "[SUCCESS] The endpoint was created with Arn "
-                        + createResult.getEndpointArn());
-                lock.lock();
-                ((PrintWriter) goodFileWriter).println("<" + lineNumber + "> "
-                        + createResult.getEndpointArn() + "," + this.token
-                        + "," + this.userData);
-                goodFileWriter.flush();
-            } catch (IOException ioe) {
-                System.err.println("[ERROR] Error initiating write to"
-                        + this.goodFileName + ": " + ioe.getMessage());
-                System.exit(BatchCreatePlatformEndpointSample.FILE_ACCESS_FAILURE_ERROR_CODE);
+                recordFailure(re);
             } finally {
-                lock.unlock();
+                inFlight.release();
             }
-        } catch (AmazonServiceException ase) {
-            try {
+            return;
+        }
+        startAsync(asyncClient, inFlight, retryScheduler, 0);
+    }
+
+    private void startAsync(final AmazonSNSAsync asyncClient,
+            final Semaphore inFlight,
+            final ScheduledExecutorService retryScheduler, final int attempt) {
+        try {
+            createEndpointAsync(
+                            asyncClient,
+                            new AsyncHandler<CreatePlatformEndpointRequest, CreatePlatformEndpointResult>() {
+                                @Override
+                                public void onSuccess(
+                                        CreatePlatformEndpointRequest request,
+                                        CreatePlatformEndpointResult createResult) {
+                                    try {
+                                        recordSuccess(createResult);
+                                    } finally {
+                                        inFlight.release();
+                                    }
+                                }
 
-                System.err
-                        .println("<"
-                                + lineNumber
-                                + ">"
-                                + "[ERROR] The endpoint could not be created because of an AmazonServiceException. "
-                                + ase.getMessage());
-                lock.lock();
-                ((PrintWriter) badFileWriter).println("<" + lineNumber + "> "
-                        + this.token + "," + this.userData);
-                badFileWriter.flush();
-            } catch (IOException ioe) {
-                System.err.println("[ERROR] Error initiating write to"
-                        + this.badFileName + ": " + ioe.getMessage());
-                System.exit(BatchCreatePlatformEndpointSample.FILE_ACCESS_FAILURE_ERROR_CODE);
+                                @Override
+                                public void onError(Exception exception) {
+                                    if (exception instanceof AmazonServiceException
+                                            && shouldRetry(
+                                                    (AmazonServiceException) exception,
+                                                    attempt)) {
+                                        long delayNanos = TimeUnit.MILLISECONDS
+                                                .toNanos(rateLimiter
+                                                        .backOffMillis(attempt))
+                                                + rateLimiter.reserve();
+                                        try {
+                                            retryScheduler.schedule(
+                                                    new Runnable() {
+                                                        @Override
+                                                        public void run() {
+                                                            startAsync(
+                                                                    asyncClient,
+                                                                    inFlight,
+                                                                    retryScheduler,
+                                                                    attempt + 1);
+                                                        }
+                                                    }, delayNanos,
+                                                    TimeUnit.NANOSECONDS);
+                                            return;
+                                        } catch (RejectedExecutionException ree) {
+                                            // Shut down: the row fails below
+                                        }
+                                    }
+                                    try {
+                                        recordFailure(exception);
+                                    } finally {
+                                        inFlight.release();
+                                    }
+                                }
+                            });
+        } catch (RuntimeException re) {
+            try {
+                recordFailure(re);
             } finally {
-                lock.unlock();
+                inFlight.release();
             }
+        }
+    }
+
+    /*
+     * Creates the endpoint and records the first success. The request is
+     * built once, so that a hedge still running after this returns sends the
+     * same one.
+     */
+    private void createEndpoint() throws InterruptedException {
+        final CreatePlatformEndpointRequest request = createRequest();
+        if (hedgingPolicy == null) {
+            recordSuccess(create(request, false));
+            return;
+        }
+        hedgingPolicy
+                .call(new HedgingPolicy.BlockingCall<CreatePlatformEndpointResult>() {
+                    @Override
+                    public CreatePlatformEndpointResult call(boolean hedge) {
+                        return create(request, hedge);
+                    }
+
+                    @Override
+                    public boolean mayHedge() {
+                        return rateLimiter.tryAcquire();
+                    }
+
+                    @Override
+                    public void succeeded(
+                            CreatePlatformEndpointResult createResult) {
+                        recordSuccess(createResult);
+                    }
+                });
+    }
+
+    /*
+     * Makes one create call, a hedge included, and reports it to the metrics
+     * and the rate limiter.
+     */
+    private CreatePlatformEndpointResult create(
+            CreatePlatformEndpointRequest request, boolean hedge) {
+        if (hedge) {
+            metrics.callHedged();
+        }
+        long startNanos = metrics.callStarted();
+        try {
+            CreatePlatformEndpointResult createResult = client
+                    .createPlatformEndpoint(request);
+            callSucceeded(startNanos);
+            return createResult;
+        } catch (RuntimeException re) {
+            callFailed(startNanos, re);
+            throw re;
+        }
+    }
+
+    private void createEndpointAsync(
+            final AmazonSNSAsync asyncClient,
+            AsyncHandler<CreatePlatformEndpointRequest, CreatePlatformEndpointResult> handler) {
+        final CreatePlatformEndpointRequest request = createRequest();
+        if (hedgingPolicy == null) {
+            new TimedCall(handler, false).start(asyncClient, request);
             return;
-        } catch (AmazonClientException ace) {
+        }
+        hedgingPolicy
+                .callAsync(
+                        new HedgingPolicy.AsyncCall<CreatePlatformEndpointRequest, CreatePlatformEndpointResult>() {
+                            @Override
+                            public void start(
+                                    AsyncHandler<CreatePlatformEndpointRequest, CreatePlatformEndpointResult> attempt,
+                                    boolean hedge) {
+                                new TimedCall(attempt, hedge).start(
+                                        asyncClient, request);
+                            }
+
+                            @Override
+                            public boolean mayHedge() {
+                                return rateLimiter.tryAcquire();
+                            }
+                        }, handler);
+    }
+
+    private void callSucceeded(long startNanos) {
+        metrics.callFinished(startNanos, null);
+        rateLimiter.onSuccess();
+    }
+
+    private void callFailed(long startNanos, Exception exception) {
+        metrics.callFinished(startNanos, errorCode(exception));
+        if (exception instanceof AmazonServiceException
+                && AdaptiveRateLimiter
+                        .isThrottling((AmazonServiceException) exception)) {
+            rateLimiter.onThrottle();
+        }
+    }
+
+    /*
+     * One async create call, a hedge included, reported to the metrics and
+     * the rate limiter before its handler.
+     */
+    private class TimedCall implements
+            AsyncHandler<CreatePlatformEndpointRequest, CreatePlatformEndpointResult> {
+        private final AsyncHandler<CreatePlatformEndpointRequest, CreatePlatformEndpointResult> handler;
+        private final long startNanos;
+
+        TimedCall(
+                AsyncHandler<CreatePlatformEndpointRequest, CreatePlatformEndpointResult> handler,
+                boolean hedge) {
+            this.handler = handler;
+            if (hedge) {
+                metrics.callHedged();
+            }
+            this.startNanos = metrics.callStarted();
+        }
+
+        void start(AmazonSNSAsync asyncClient,
+                CreatePlatformEndpointRequest request) {
             try {
-                System.err
-                        .println("<"
-                                + lineNumber
-                                + ">"
-                                + "[ERROR] The endpoint could not be created because of an AmazonClientException. "
-                                + ace.getMessage());
-                ((PrintWriter) badFileWriter).println("<" + lineNumber + "> "
-                        + ace.getMessage() + " " + this.token + ","
-                        + this.userData);
-                badFileWriter.flush();
-            } catch (IOException ioe) {
-                System.err.println("[ERROR] Error initiating write to"
-                        + this.badFileName + ": " + ioe.getMessage());
-                System.exit(BatchCreatePlatformEndpointSample.FILE_ACCESS_FAILURE_ERROR_CODE);
+                asyncClient.createPlatformEndpointAsync(request, this);
+            } catch (RuntimeException re) {
+                callFailed(startNanos, re);
+                throw re;
             }
-            return;
         }
+
+        @Override
+        public void onSuccess(CreatePlatformEndpointRequest request,
+                CreatePlatformEndpointResult createResult) {
+            callSucceeded(startNanos);
+            handler.onSuccess(request, createResult);
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            callFailed(startNanos, exception);
+            handler.onError(exception);
+        }
+    }
+
+    /*
+     * Service errors are counted by their error code, other failures by the
+     * class of the exception.
+     */
+    private static String errorCode(Exception exception) {
+        if (exception instanceof AmazonServiceException
+                && ((AmazonServiceException) exception).getErrorCode() != null) {
+            return ((AmazonServiceException) exception).getErrorCode();
+        }
+        return exception.getClass().getSimpleName();
     }
 
+    /*
+     * Returns true if a throttled call should be tried again. Other service
+     * errors are not retried. The throttle itself has already been reported
+     * to the rate limiter by the call.
+     */
+    private boolean shouldRetry(AmazonServiceException ase, int attempt) {
+        return AdaptiveRateLimiter.isThrottling(ase) && attempt < maxRetries;
+    }
+
+    /*
+     * Writes the ARN of an enabled endpoint already registered for the token
+     * to the good file, in the same form as a created one. Returns false if
+     * the endpoint must be created.
+     */
+    private boolean recordExisting() {
+        if (existingEndpoints == null) {
+            return false;
+        }
+        String endpointArn = existingEndpoints.getEndpointArn(this.token,
+                this.userData);
+        if (endpointArn == null) {
+            return false;
+        }
+        metrics.rowSucceeded();
+        if (metrics.isLoggingRows()) {
+            System.out.println("<" + lineNumber + ">"
+                    + "[SUCCESS] The endpoint already exists with Arn "
+                    + endpointArn);
+        }
+        resultWriter.writeGood(lineNumber, "<" + lineNumber + "> "
+                + endpointArn + "," + this.token + "," + this.userData);
+        return true;
+    }
+
+    private void recordSuccess(CreatePlatformEndpointResult createResult) {
+        metrics.rowSucceeded();
+        if (metrics.isLoggingRows()) {
+            System.out.println("<" + lineNumber + ">"
+                    + "[SUCCESS] The endpoint was created with Arn "
+                    + createResult.getEndpointArn());
+        }
+        resultWriter.writeGood(lineNumber, "<" + lineNumber + "> "
+                + createResult.getEndpointArn() + "," + this.token + ","
+                + this.userData);
+    }
+
+    private void recordFailure(Exception exception) {
+        if (exception instanceof AmazonServiceException) {
+            recordServiceFailure((AmazonServiceException) exception);
+        } else if (exception instanceof AmazonClientException) {
+            recordClientFailure((AmazonClientException) exception);
+        } else {
+            recordClientFailure(new AmazonClientException(
+                    exception.getMessage(), exception));
+        }
+    }
+
+    private void recordServiceFailure(AmazonServiceException ase) {
+        metrics.rowFailed(errorCode(ase));
+        if (metrics.isLoggingRows()) {
+            System.err
+                    .println("<"
+                            + lineNumber
+                            + ">"
+                            + "[ERROR] The endpoint could not be created because of an AmazonServiceException. "
+                            + ase.getMessage());
+        }
+        resultWriter.writeBad(lineNumber, "<" + lineNumber + "> " + this.token + ","
+                + this.userData);
+    }
+
+    private void recordClientFailure(AmazonClientException ace) {
+        metrics.rowFailed(errorCode(ace));
+        if (metrics.isLoggingRows()) {
+            System.err
+                    .println("<"
+                            + lineNumber
+                            + ">"
+                            + "[ERROR] The endpoint could not be created because of an AmazonClientException. "
+                            + ace.getMessage());
+        }
+        resultWriter.writeBad(lineNumber, "<" + lineNumber + "> " + ace.getMessage() + " "
+                + this.token + "," + this.userData);
+    }
 }
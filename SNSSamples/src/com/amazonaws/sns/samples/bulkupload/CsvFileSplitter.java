@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a CSV file into byte ranges which start and end on record
+ * boundaries, so that each range can be parsed by its own reader.
+ *
+ * A line break only ends a record outside a quoted field, so the file is
+ * scanned once from the start, tracking quotes the way OpenCSV's CSVParser
+ * does. The scan only looks at bytes and builds no strings, and it also counts
+ * the records before each range so that every reader numbers its rows as a
+ * single reader would.
+ *
+ * CSVParser also remembers whether it is inside a field across lines, and a
+ * reader starting a range does not, so a range is only started in front of a
+ * line whose parse does not depend on that.
+ */
+public class CsvFileSplitter {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /*
+     * CSVParser's default escape character
+     */
+    private static final byte ESCAPE_CHAR = '\\';
+
+    /**
+     * A range of whole records within the CSV file.
+     */
+    public static class Range {
+        final long startOffset;
+        final long endOffset;
+        final long linesBefore;
+
+        /**
+         * @param startOffset
+         *            - Byte offset of the first record in the range
+         * @param endOffset
+         *            - Byte offset just past the last record in the range
+         * @param linesBefore
+         *            - Number of records before the range
+         */
+        public Range(long startOffset, long endOffset, long linesBefore) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.linesBefore = linesBefore;
+        }
+    }
+
+    private CsvFileSplitter() {
+    }
+
+    /**
+     * @param fileName
+     *            - CSV file to split
+     * @param parts
+     *            - Number of ranges wanted; fewer are returned for small files
+     * @param separator
+     *            - Character separating the fields
+     * @param quoteChar
+     *            - Character quoting the fields
+     */
+    public static List<Range> split(String fileName, int parts, char separator,
+            char quoteChar) throws IOException {
+        List<Range> ranges = new ArrayList<Range>();
+        long targetLength = Math.max(1, new File(fileName).length() / parts);
+        InputStream in = new FileInputStream(fileName);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long offset = 0;
+            long records = 0;
+            long rangeStart = 0;
+            long rangeLinesBefore = 0;
+            long nextSplit = targetLength;
+            boolean inQuotes = false;
+            boolean inField = false;
+            /*
+             * CSVParser decides what an escape or a quote inside a field means
+             * by looking at the next character, which may be in the next
+             * buffer, so the decision is kept until that character is read.
+             */
+            boolean pendingEscape = false;
+            boolean pendingQuote = false;
+            boolean atSplit = false;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    offset++;
+                    if (atSplit) {
+                        /*
+                         * A reader starts a range outside any field, which
+                         * only changes the parse of a line starting with a
+                         * quote or an escape.
+                         */
+                        atSplit = false;
+                        if (!inField
+                                || (b != quoteChar && b != ESCAPE_CHAR
+                                        && b != '\n' && b != '\r')) {
+                            long splitOffset = offset - 1;
+                            ranges.add(new Range(rangeStart, splitOffset,
+                                    rangeLinesBefore));
+                            rangeStart = splitOffset;
+                            rangeLinesBefore = records;
+                            nextSplit = splitOffset + targetLength;
+                        }
+                    }
+                    if (pendingEscape) {
+                        /*
+                         * The escape character only escapes a quote or another
+                         * escape character, otherwise it is dropped.
+                         */
+                        pendingEscape = false;
+                        if (b == quoteChar || b == ESCAPE_CHAR) {
+                            continue;
+                        }
+                    }
+                    if (pendingQuote) {
+                        pendingQuote = false;
+                        inField = !inField;
+                        if (b == quoteChar) {
+                            continue;
+                        }
+                        inQuotes = !inQuotes;
+                    }
+                    if (b == '\n') {
+                        if (!inQuotes) {
+                            records++;
+                            atSplit = offset >= nextSplit
+                                    && ranges.size() < parts - 1;
+                        }
+                    } else if (b == '\r') {
+                        /*
+                         * Line terminators never reach CSVParser.
+                         */
+                        continue;
+                    } else if (b == ESCAPE_CHAR) {
+                        pendingEscape = inQuotes || inField;
+                    } else if (b == quoteChar) {
+                        /*
+                         * Two quotes inside a field are an escaped quote, and
+                         * a quote anywhere else opens or closes a quoted field.
+                         */
+                        if (inQuotes || inField) {
+                            pendingQuote = true;
+                        } else {
+                            inQuotes = true;
+                            inField = true;
+                        }
+                    } else if (b == separator && !inQuotes) {
+                        inField = false;
+                    } else {
+                        inField = true;
+                    }
+                }
+            }
+            if (offset > rangeStart || ranges.isEmpty()) {
+                ranges.add(new Range(rangeStart, offset, rangeLinesBefore));
+            }
+        } finally {
+            in.close();
+        }
+        return ranges;
+    }
+}
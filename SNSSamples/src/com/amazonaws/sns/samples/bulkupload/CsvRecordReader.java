@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+/*
+ * OpenCSV is licensed under Apache 2.0. Please see more details at 
+ * http://opencsv.sourceforge.net/#using-commercially
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/**
+ * Reads CSV records like OpenCSV's CSVReader, but from a byte offset and
+ * keeping track of the byte offset at which the next record starts. This lets
+ * a run resume from the middle of the file without parsing what came before.
+ */
+public class CsvRecordReader implements CsvRecordSource {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final CSVParser parser;
+    private final Charset charset = Charset.defaultCharset();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256];
+    private long offset;
+    private final long endOffset;
+
+    /**
+     * @param fileName
+     *            - CSV file to read
+     * @param startOffset
+     *            - Byte offset of the first record to read
+     * @param endOffset
+     *            - Byte offset at which reading stops, which must be a record
+     *            boundary, or Long.MAX_VALUE to read to the end of the file
+     * @param delimiterChar
+     *            - Character separating the fields
+     * @param quoteChar
+     *            - Character quoting the fields
+     */
+    public CsvRecordReader(String fileName, long startOffset, long endOffset,
+            char delimiterChar, char quoteChar) throws IOException {
+        FileInputStream fileStream = new FileInputStream(fileName);
+        try {
+            fileStream.getChannel().position(startOffset);
+        } catch (IOException ioe) {
+            fileStream.close();
+            throw ioe;
+        }
+        this.in = fileStream;
+        this.offset = startOffset;
+        this.endOffset = endOffset;
+        this.parser = new CSVParser(delimiterChar, quoteChar);
+    }
+
+    /**
+     * Reads the next record, which spans several lines if a quoted field
+     * contains line breaks.
+     */
+    @Override
+    public String[] readNext() throws IOException {
+        if (offset >= endOffset) {
+            return null;
+        }
+        String[] result = null;
+        do {
+            String nextLine = readLine();
+            if (nextLine == null) {
+                return result;
+            }
+            String[] fields = parser.parseLineMulti(nextLine);
+            if (fields.length == 0) {
+                continue;
+            }
+            if (result == null) {
+                result = fields;
+            } else {
+                String[] joined = new String[result.length + fields.length];
+                System.arraycopy(result, 0, joined, 0, result.length);
+                System.arraycopy(fields, 0, joined, result.length,
+                        fields.length);
+                result = joined;
+            }
+        } while (parser.isPending());
+        return result;
+    }
+
+    @Override
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /*
+     * Reads one line without its terminator, as BufferedReader.readLine would
+     * for "\n" and "\r\n" line ends.
+     */
+    private String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (length == 0) {
+                        return null;
+                    }
+                    break;
+                }
+            }
+            byte b = buffer[position++];
+            offset++;
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                byte[] larger = new byte[line.length * 2];
+                System.arraycopy(line, 0, larger, 0, length);
+                line = larger;
+            }
+            line[length++] = b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, charset);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A reader of CSV records which knows the byte offset just past the last
+ * record it returned, so that progress can be recorded in the
+ * {@link CheckpointJournal}.
+ */
+public interface CsvRecordSource extends Closeable {
+
+    /**
+     * @return the fields of the next record, or null at the end of the file
+     *         or range
+     */
+    String[] readNext() throws IOException;
+
+    /**
+     * @return the byte offset just past the last record read
+     */
+    long getOffset();
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.Endpoint;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationResult;
+
+/**
+ * Index of the enabled endpoints already registered with a platform
+ * application, keyed by device token. A row whose token and user data match
+ * an indexed endpoint needs no CreatePlatformEndpoint call, since SNS would
+ * return the existing endpoint anyway.
+ *
+ * Endpoint ARNs of an application share a common prefix, so only the part
+ * after it is kept, along with the 128-bit MD5 digest of the endpoint's user
+ * data, which is compared with the digest of the row's user data. A digest
+ * this long does not collide by accident, so a row whose user data changed is
+ * always sent to SNS.
+ *
+ * The index is only as current as the listing it was built from. A snapshot
+ * records when that listing started, so that an old one can be listed again
+ * instead of being reused.
+ */
+public class ExistingEndpointIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ENABLED = "Enabled";
+    private static final String CUSTOM_USER_DATA = "CustomUserData";
+    private static final String TOKEN = "Token";
+
+    /*
+     * MessageDigest instances are not thread safe and workers look up rows
+     * concurrently.
+     */
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+        }
+    };
+
+    private static class Entry {
+        final String arn;
+        final long userDataDigestHigh;
+        final long userDataDigestLow;
+
+        Entry(String arn, long userDataDigestHigh, long userDataDigestLow) {
+            this.arn = arn;
+            this.userDataDigestHigh = userDataDigestHigh;
+            this.userDataDigestLow = userDataDigestLow;
+        }
+
+        Entry(String arn, byte[] userDataDigest) {
+            this(arn, toLong(userDataDigest, 0), toLong(userDataDigest, 8));
+        }
+
+        boolean hasUserData(byte[] userDataDigest) {
+            return userDataDigestHigh == toLong(userDataDigest, 0)
+                    && userDataDigestLow == toLong(userDataDigest, 8);
+        }
+    }
+
+    private final String applicationArn;
+    private final String arnPrefix;
+    private final long listedAtMillis;
+    private final Map<String, Entry> endpoints = new HashMap<String, Entry>();
+    private long listCalls;
+
+    private ExistingEndpointIndex(String applicationArn, long listedAtMillis) {
+        this.applicationArn = applicationArn;
+        this.listedAtMillis = listedAtMillis;
+        /*
+         * arn:aws:sns:<region>:<account>:app/<platform>/<name> registers
+         * endpoints as arn:aws:sns:<region>:<account>:endpoint/<platform>/<name>/<id>
+         */
+        this.arnPrefix = applicationArn.replace(":app/", ":endpoint/") + "/";
+    }
+
+    /**
+     * Pages through ListEndpointsByPlatformApplication and indexes every
+     * enabled endpoint. Each page is requested with the token returned by
+     * the previous one, so the pages are read one after the other. Throttled
+     * calls are retried with backoff.
+     *
+     * @param client
+     *            - Client for the application's region
+     * @param applicationArn
+     *            - ARN of the platform application
+     * @param maxRetries
+     *            - Number of times a throttled page is retried
+     */
+    public static ExistingEndpointIndex list(AmazonSNS client,
+            String applicationArn, int maxRetries) throws InterruptedException {
+        ExistingEndpointIndex index = new ExistingEndpointIndex(
+                applicationArn, System.currentTimeMillis());
+        AdaptiveRateLimiter backOff = new AdaptiveRateLimiter(0);
+        String nextToken = null;
+        do {
+            ListEndpointsByPlatformApplicationResult page;
+            for (int attempt = 0;; attempt++) {
+                try {
+                    index.listCalls++;
+                    page = client
+                            .listEndpointsByPlatformApplication(new ListEndpointsByPlatformApplicationRequest()
+                                    .withPlatformApplicationArn(applicationArn)
+                                    .withNextToken(nextToken));
+                    break;
+                } catch (AmazonServiceException ase) {
+                    if (!AdaptiveRateLimiter.isThrottling(ase)
+                            || attempt >= maxRetries) {
+                        throw ase;
+                    }
+                }
+                backOff.backOff(attempt);
+            }
+            for (Endpoint endpoint : page.getEndpoints()) {
+                Map<String, String> attributes = endpoint.getAttributes();
+                if (!Boolean.parseBoolean(attributes.get(ENABLED))
+                        || attributes.get(TOKEN) == null) {
+                    continue;
+                }
+                index.put(attributes.get(TOKEN), endpoint.getEndpointArn(),
+                        userDataDigest(attributes.get(CUSTOM_USER_DATA)));
+            }
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        return index;
+    }
+
+    /**
+     * Reads an index saved by {@link #save(String)}, unless the listing it
+     * was saved from started more than maxAgeMillis ago.
+     *
+     * @return the index, or null if the snapshot is too old or was written
+     *         without the time of its listing
+     * @throws IllegalStateException
+     *             if the snapshot was taken for another application
+     */
+    public static ExistingEndpointIndex load(String snapshotFileName,
+            String applicationArn, long maxAgeMillis) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(snapshotFileName), UTF8));
+        try {
+            String line = reader.readLine();
+            String[] header = line == null ? new String[0] : line.split("\t",
+                    2);
+            if (header.length == 0 || !applicationArn.equals(header[0])) {
+                throw new IllegalStateException("The snapshot "
+                        + snapshotFileName + " was taken for "
+                        + (header.length == 0 ? null : header[0]));
+            }
+            if (header.length < 2) {
+                return null;
+            }
+            long listedAtMillis = Long.parseLong(header[1]);
+            if (System.currentTimeMillis() - listedAtMillis > maxAgeMillis) {
+                return null;
+            }
+            ExistingEndpointIndex index = new ExistingEndpointIndex(
+                    applicationArn, listedAtMillis);
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed line in "
+                            + snapshotFileName + ": " + line);
+                }
+                index.endpoints.put(fields[0], new Entry(fields[3],
+                        parseHex(fields[1]), parseHex(fields[2])));
+            }
+            return index;
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Malformed snapshot " + snapshotFileName, nfe);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the index with one tab-separated line per endpoint, after a
+     * header naming the application and the time its listing started. The file is
+     * written next to the target and then renamed over it.
+     */
+    public void save(String snapshotFileName) throws IOException {
+        File snapshotFile = new File(snapshotFileName);
+        File tempFile = new File(snapshotFileName + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    out, UTF8));
+            writer.write(applicationArn);
+            writer.write('\t');
+            writer.write(Long.toString(listedAtMillis));
+            writer.newLine();
+            for (Map.Entry<String, Entry> endpoint : endpoints.entrySet()) {
+                writer.write(endpoint.getKey());
+                writer.write('\t');
+                writer.write(Long.toHexString(endpoint.getValue().userDataDigestHigh));
+                writer.write('\t');
+                writer.write(Long.toHexString(endpoint.getValue().userDataDigestLow));
+                writer.write('\t');
+                writer.write(endpoint.getValue().arn);
+                writer.newLine();
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the ARN of the enabled endpoint registered for the token with
+     * the same user data, or null if a create call is needed.
+     *
+     * @param token
+     *            - Device token of the row
+     * @param userData
+     *            - Custom user data of the row
+     */
+    public String getEndpointArn(String token, String userData) {
+        Entry entry = endpoints.get(token);
+        if (entry == null || !entry.hasUserData(userDataDigest(userData))) {
+            return null;
+        }
+        return entry.arn.startsWith("arn:") ? entry.arn : arnPrefix + entry.arn;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    public long getListCalls() {
+        return listCalls;
+    }
+
+    /**
+     * Time in milliseconds since the epoch at which the listing of the
+     * endpoints started.
+     */
+    public long getListedAtMillis() {
+        return listedAtMillis;
+    }
+
+    private void put(String token, String endpointArn, byte[] userDataDigest) {
+        String arn = endpointArn.startsWith(arnPrefix) ? endpointArn
+                .substring(arnPrefix.length()) : endpointArn;
+        endpoints.put(token, new Entry(arn, userDataDigest));
+    }
+
+    /*
+     * An endpoint created without user data has none, and rows without user
+     * data are created with an empty string.
+     */
+    private static byte[] userDataDigest(String userData) {
+        return MD5.get().digest(
+                (userData == null ? "" : userData).getBytes(UTF8));
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /*
+     * Long.toHexString writes negative values as 16 unsigned digits, which
+     * Long.parseLong would reject.
+     */
+    private static long parseHex(String hex) {
+        if (hex.length() == 16) {
+            return (Long.parseLong(hex.substring(0, 8), 16) << 32)
+                    | Long.parseLong(hex.substring(8), 16);
+        }
+        return Long.parseLong(hex, 16);
+    }
+}
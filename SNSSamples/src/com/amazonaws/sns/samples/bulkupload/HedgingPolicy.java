@@ -0,0 +1,578 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+
+/**
+ * Hedges calls which have not answered by a percentile of the recent call
+ * latencies, e.g. the 95th: the same request is sent a second time and the
+ * first success wins. Only idempotent calls may be hedged, such as
+ * CreatePlatformEndpoint with the same token and user data, for which SNS
+ * returns the same endpoint however many times it is asked.
+ *
+ * Latencies are recorded in microseconds into an HdrHistogram
+ * {@link Recorder}, and the threshold is recomputed once a second from the
+ * last few thousand calls. No call is hedged before the first hundred calls
+ * have answered. Hedges are limited by a budget: every call earns a fraction
+ * of a hedge, e.g. 0.05, and a hedge is only sent while one is earned, so
+ * that a general slowdown adds at most that fraction of calls instead of
+ * doubling them.
+ *
+ * The first call is always made by the caller, on its own thread or client.
+ * A hedge is sent only if the call agrees through mayHedge, e.g. once it has
+ * taken a token from the rate limiter the first call waited for, so hedges
+ * count against the same rate. Blocking hedges run on a pool of at most
+ * maxHedgeThreads threads, and a call past the threshold while all of them
+ * are busy is not hedged.
+ */
+public class HedgingPolicy {
+
+    /**
+     * A blocking call which may be made twice.
+     */
+    public interface BlockingCall<RESULT> {
+        /**
+         * Makes the call once.
+         *
+         * @param hedge
+         *            - Whether this is the second call
+         */
+        RESULT call(boolean hedge);
+
+        /**
+         * Returns true if a hedge may be sent now. A hedge is never waited
+         * for, so this must not block.
+         */
+        boolean mayHedge();
+
+        /**
+         * Receives the first success, on the thread of the call which
+         * answered, possibly while the other call is still running.
+         */
+        void succeeded(RESULT result);
+    }
+
+    /**
+     * An asynchronous call which may be started twice.
+     */
+    public interface AsyncCall<REQUEST extends AmazonWebServiceRequest, RESULT> {
+        /**
+         * Starts the call once, reporting to the given handler.
+         *
+         * @param hedge
+         *            - Whether this is the second call
+         */
+        void start(AsyncHandler<REQUEST, RESULT> handler, boolean hedge);
+
+        /**
+         * Returns true if a hedge may be sent now; it must not block.
+         */
+        boolean mayHedge();
+    }
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES
+            .toMicros(1);
+    private static final long UPDATE_INTERVAL_NANOS = TimeUnit.SECONDS
+            .toNanos(1);
+    private static final long WARM_UP_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(50);
+
+    /*
+     * The threshold is first set once this many calls have answered, and the
+     * window it is computed from is restarted once it holds WINDOW_CALLS.
+     */
+    private static final long MIN_CALLS = 100;
+    private static final long WINDOW_CALLS = 10000;
+
+    /*
+     * Hedging faster calls only adds load.
+     */
+    private static final long MIN_HEDGE_DELAY_MICROS = 1000;
+
+    /*
+     * Number of hedges which may be saved up for a burst of slow calls.
+     */
+    private static final double MAX_CREDIT = 10;
+
+    private final double percentile;
+    private final double budget;
+
+    private final Recorder latencyRecorder = new Recorder(MAX_LATENCY_MICROS,
+            3);
+    private volatile long thresholdMicros = -1;
+    private volatile long nextUpdateNanos = System.nanoTime()
+            + WARM_UP_INTERVAL_NANOS;
+
+    /*
+     * Guarded by this.
+     */
+    private final Histogram window = new Histogram(MAX_LATENCY_MICROS, 3);
+    private Histogram intervalLatency;
+    private double credit;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong overBudget = new AtomicLong();
+    private final AtomicLong notSent = new AtomicLong();
+
+    private final ThreadPoolExecutor hedgeExecutor;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param percentile
+     *            - Percentile of recent latencies after which a call is
+     *            hedged, between 0 and 100
+     * @param budget
+     *            - Largest fraction of calls which may be hedged
+     * @param maxHedgeThreads
+     *            - Largest number of blocking hedges running at once
+     * @throws IllegalArgumentException
+     *             if the percentile, the budget or the number of threads is
+     *             out of range
+     */
+    public HedgingPolicy(double percentile, double budget, int maxHedgeThreads) {
+        if (!(percentile > 0 && percentile < 100)) {
+            throw new IllegalArgumentException("The hedging percentile "
+                    + percentile + " is not between 0 and 100");
+        }
+        if (!(budget > 0 && budget <= 1)) {
+            throw new IllegalArgumentException("The hedging budget " + budget
+                    + " is not between 0 and 1");
+        }
+        if (maxHedgeThreads <= 0) {
+            throw new IllegalArgumentException("The number of hedge threads "
+                    + maxHedgeThreads + " is not positive");
+        }
+        this.percentile = percentile;
+        this.budget = budget;
+        // Without a queue, a hedge finding every thread busy is rejected
+        this.hedgeExecutor = new ThreadPoolExecutor(maxHedgeThreads,
+                maxHedgeThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "HedgingPolicy");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.hedgeExecutor.allowCoreThreadTimeOut(true);
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HedgingPolicy-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Calls answered in time cancel their timer, which must not linger
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Makes a blocking call on the calling thread, hedged on a thread of the
+     * policy if it has not answered by the threshold. The first success is
+     * passed to the call's succeeded method as soon as it arrives. Returns
+     * once the calling thread's own call has answered and a hedge which
+     * succeeded has been delivered; if that call failed while a hedge was
+     * running, the hedge is waited for.
+     *
+     * @throws RuntimeException
+     *             the failure of the calling thread's call, if no call
+     *             succeeded
+     */
+    public <T> void call(final BlockingCall<T> call)
+            throws InterruptedException {
+        long delayMicros = hedgeDelayMicros();
+        if (delayMicros < 0) {
+            call.succeeded(timed(call, false));
+            return;
+        }
+        final BlockingHedge<T> hedged = new BlockingHedge<T>(call);
+        hedged.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                hedged.startHedge();
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+        T result;
+        try {
+            result = timed(call, false);
+        } catch (RuntimeException re) {
+            if (!hedged.firstFailed()) {
+                throw re;
+            }
+            return;
+        }
+        if (hedged.firstSucceeded()) {
+            call.succeeded(result);
+        }
+    }
+
+    /**
+     * Starts an asynchronous call and hedges it from the policy's timer if it
+     * has not answered by the threshold. The handler is called once: with the
+     * first success, or with the last failure once every call has failed. A
+     * RuntimeException thrown while starting the first call is passed on to
+     * the caller.
+     */
+    public <REQUEST extends AmazonWebServiceRequest, RESULT> void callAsync(
+            final AsyncCall<REQUEST, RESULT> call,
+            AsyncHandler<REQUEST, RESULT> handler) {
+        long delayMicros = hedgeDelayMicros();
+        final AsyncHedge<REQUEST, RESULT> hedged = new AsyncHedge<REQUEST, RESULT>(
+                handler);
+        call.start(hedged.attempt(false), false);
+        if (delayMicros < 0) {
+            return;
+        }
+        hedged.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (hedged.settled.get() || !takeCredit()) {
+                    return;
+                }
+                if (!call.mayHedge()) {
+                    returnCredit();
+                    return;
+                }
+                hedges.incrementAndGet();
+                hedged.pending.incrementAndGet();
+                AsyncHandler<REQUEST, RESULT> attempt = hedged.attempt(true);
+                try {
+                    call.start(attempt, true);
+                } catch (RuntimeException re) {
+                    attempt.onError(re);
+                }
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+        if (hedged.settled.get()) {
+            hedged.timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Latency after which calls are currently hedged in milliseconds, or -1
+     * until enough calls have answered.
+     */
+    public double getThresholdMillis() {
+        long threshold = thresholdMicros;
+        return threshold < 0 ? -1 : Math.max(threshold,
+                MIN_HEDGE_DELAY_MICROS) / 1000.0;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Number of calls sent a second time.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Number of hedged calls answered first by the second call.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Number of calls past the threshold which were not hedged because the
+     * budget was spent.
+     */
+    public long getOverBudget() {
+        return overBudget.get();
+    }
+
+    /**
+     * Number of calls past the threshold which were not hedged because the
+     * call refused it, e.g. for lack of a rate limiter token, or because
+     * every hedge thread was busy.
+     */
+    public long getNotSent() {
+        return notSent.get();
+    }
+
+    /**
+     * Stops the policy's threads. Calls still waiting for a hedge are not
+     * hedged.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        hedgeExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        long callCount = calls.get();
+        long hedgeCount = hedges.get();
+        return callCount
+                + " call(s), "
+                + hedgeCount
+                + " hedged ("
+                + String.format("%.1f", callCount == 0 ? 0.0 : 100.0
+                        * hedgeCount / callCount) + "%), "
+                + hedgeWins.get() + " won by the hedge, " + overBudget.get()
+                + " over budget, " + notSent.get()
+                + " not sent, threshold p"
+                + String.format("%.3g", percentile) + " "
+                + String.format("%.1f", getThresholdMillis()) + " ms";
+    }
+
+    /*
+     * Counts a call, earns its share of the budget and returns its hedge
+     * delay, or -1 if it is not to be hedged.
+     */
+    private long hedgeDelayMicros() {
+        calls.incrementAndGet();
+        synchronized (this) {
+            credit = Math.min(credit + budget, MAX_CREDIT);
+        }
+        long threshold = thresholdMicros;
+        return threshold < 0 ? -1 : Math.max(threshold,
+                MIN_HEDGE_DELAY_MICROS);
+    }
+
+    private synchronized boolean takeCredit() {
+        if (credit < 1) {
+            overBudget.incrementAndGet();
+            return false;
+        }
+        credit--;
+        return true;
+    }
+
+    /*
+     * Gives back the credit of a hedge which was not sent.
+     */
+    private void returnCredit() {
+        synchronized (this) {
+            credit = Math.min(credit + 1, MAX_CREDIT);
+        }
+        notSent.incrementAndGet();
+    }
+
+    private void record(long startNanos) {
+        long now = System.nanoTime();
+        long micros = TimeUnit.NANOSECONDS.toMicros(now - startNanos);
+        latencyRecorder.recordValue(Math.min(Math.max(micros, 0),
+                MAX_LATENCY_MICROS));
+        if (now - nextUpdateNanos >= 0) {
+            updateThreshold(now);
+        }
+    }
+
+    private synchronized void updateThreshold(long now) {
+        if (now - nextUpdateNanos < 0) {
+            return;
+        }
+        intervalLatency = latencyRecorder.getIntervalHistogram(intervalLatency);
+        window.add(intervalLatency);
+        if (window.getTotalCount() < MIN_CALLS && thresholdMicros < 0) {
+            // Checked more often until the first threshold is set
+            nextUpdateNanos = now + WARM_UP_INTERVAL_NANOS;
+            return;
+        }
+        nextUpdateNanos = now + UPDATE_INTERVAL_NANOS;
+        if (window.getTotalCount() >= MIN_CALLS) {
+            thresholdMicros = window.getValueAtPercentile(percentile);
+            if (window.getTotalCount() >= WINDOW_CALLS) {
+                window.reset();
+            }
+        }
+    }
+
+    private <T> T timed(BlockingCall<T> call, boolean hedge) {
+        long start = System.nanoTime();
+        try {
+            return call.call(hedge);
+        } finally {
+            record(start);
+        }
+    }
+
+    /*
+     * The two calls of one blocking request. The first success settles it;
+     * guarded by this.
+     */
+    private class BlockingHedge<T> {
+        private final BlockingCall<T> call;
+        private volatile ScheduledFuture<?> timeout;
+        private boolean firstDone;
+        private boolean hedgeRunning;
+        private boolean settled;
+
+        BlockingHedge(BlockingCall<T> call) {
+            this.call = call;
+        }
+
+        /*
+         * Runs on the timer: sends the hedge unless the first call has
+         * answered, the budget is spent or no hedge thread is free.
+         */
+        void startHedge() {
+            synchronized (this) {
+                if (firstDone || !takeCredit()) {
+                    return;
+                }
+                hedgeRunning = true;
+            }
+            try {
+                hedgeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runHedge();
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                returnCredit();
+                hedgeEnded();
+            }
+        }
+
+        private void runHedge() {
+            try {
+                if (!call.mayHedge()) {
+                    returnCredit();
+                    return;
+                }
+                hedges.incrementAndGet();
+                T result = timed(call, true);
+                boolean won;
+                synchronized (this) {
+                    won = !settled;
+                    settled = true;
+                }
+                if (won) {
+                    hedgeWins.incrementAndGet();
+                    call.succeeded(result);
+                }
+            } catch (RuntimeException re) {
+                // The first call's outcome stands
+            } finally {
+                hedgeEnded();
+            }
+        }
+
+        private synchronized void hedgeEnded() {
+            hedgeRunning = false;
+            notifyAll();
+        }
+
+        /*
+         * Returns true if the first call's result settles the request, or
+         * else waits until the winning hedge has delivered its own.
+         */
+        boolean firstSucceeded() throws InterruptedException {
+            timeout.cancel(false);
+            synchronized (this) {
+                firstDone = true;
+                if (!settled) {
+                    settled = true;
+                    return true;
+                }
+                while (hedgeRunning) {
+                    wait();
+                }
+                return false;
+            }
+        }
+
+        /*
+         * Waits for a running hedge and returns true if it succeeded.
+         */
+        boolean firstFailed() throws InterruptedException {
+            timeout.cancel(false);
+            synchronized (this) {
+                firstDone = true;
+                while (hedgeRunning) {
+                    wait();
+                }
+                return settled;
+            }
+        }
+    }
+
+    /*
+     * The calls of one asynchronous request, of which the first success or
+     * the last failure is passed to the caller's handler.
+     */
+    private class AsyncHedge<REQUEST extends AmazonWebServiceRequest, RESULT> {
+        private final AsyncHandler<REQUEST, RESULT> handler;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile ScheduledFuture<?> timeout;
+
+        AsyncHedge(AsyncHandler<REQUEST, RESULT> handler) {
+            this.handler = handler;
+        }
+
+        AsyncHandler<REQUEST, RESULT> attempt(final boolean hedge) {
+            final long start = System.nanoTime();
+            return new AsyncHandler<REQUEST, RESULT>() {
+                @Override
+                public void onSuccess(REQUEST request, RESULT result) {
+                    record(start);
+                    pending.decrementAndGet();
+                    if (settled.compareAndSet(false, true)) {
+                        cancelTimeout();
+                        if (hedge) {
+                            hedgeWins.incrementAndGet();
+                        }
+                        handler.onSuccess(request, result);
+                    }
+                }
+
+                @Override
+                public void onError(Exception exception) {
+                    record(start);
+                    if (pending.decrementAndGet() == 0
+                            && settled.compareAndSet(false, true)) {
+                        cancelTimeout();
+                        handler.onError(exception);
+                    }
+                }
+            };
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+}
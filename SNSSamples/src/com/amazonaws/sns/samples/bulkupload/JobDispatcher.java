@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+/**
+ * Runs the {@link CreateEndpointJob}s handed over by the CSV reader. The
+ * dispatcher chosen by the 'mode' property decides how many create calls are
+ * in flight at once.
+ */
+public interface JobDispatcher {
+
+    /**
+     * Hands a job over, blocking while the dispatcher is at capacity.
+     *
+     * @param job
+     *            - Job for one CSV row
+     */
+    void dispatch(CreateEndpointJob job) throws InterruptedException;
+
+    /**
+     * Waits until every dispatched job has written its result. No further
+     * jobs may be dispatched afterwards.
+     */
+    void awaitCompletion() throws InterruptedException;
+
+    /**
+     * @return the number of jobs handed over which have not started yet
+     */
+    int getQueueDepth();
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+/*
+ * OpenCSV is licensed under Apache 2.0. Please see more details at 
+ * http://opencsv.sourceforge.net/#using-commercially
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/**
+ * Reads CSV records from a memory-mapped file, finding delimiters on the raw
+ * bytes. Only the fields of each record become Strings; no String is built for
+ * the line as a whole. Records containing a quote or escape character are
+ * handed to OpenCSV's CSVParser so that they are parsed exactly as
+ * {@link CsvRecordReader} would parse them.
+ *
+ * The delimiter and quote characters must be ASCII and the default charset
+ * must encode ASCII as single bytes, see {@link #isSupported(char, char)}.
+ */
+public class MappedCsvRecordReader implements CsvRecordSource {
+
+    /*
+     * The file is mapped in windows of this size, so that files larger than
+     * a single mapping can hold are supported.
+     */
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /*
+     * CSVParser's default escape character
+     */
+    private static final byte ESCAPE_CHAR = '\\';
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long endOffset;
+    private final byte delimiter;
+    private final byte quote;
+    private final CSVParser parser;
+    private final Charset charset = Charset.defaultCharset();
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long offset;
+    private byte[] scratch = new byte[256];
+    private final int[] delimiters = new int[2];
+
+    /**
+     * Returns true if records using these characters can be read by this
+     * class.
+     */
+    public static boolean isSupported(char delimiterChar, char quoteChar) {
+        return delimiterChar < 0x80 && quoteChar < 0x80
+                && "a,\"\\".equals(new String("a,\"\\".getBytes(Charset
+                        .defaultCharset()), Charset.forName("US-ASCII")));
+    }
+
+    /**
+     * @param fileName
+     *            - CSV file to read
+     * @param startOffset
+     *            - Byte offset of the first record to read
+     * @param endOffset
+     *            - Byte offset at which reading stops, which must be a record
+     *            boundary, or Long.MAX_VALUE to read to the end of the file
+     * @param delimiterChar
+     *            - Character separating the fields
+     * @param quoteChar
+     *            - Character quoting the fields
+     */
+    public MappedCsvRecordReader(String fileName, long startOffset,
+            long endOffset, char delimiterChar, char quoteChar)
+            throws IOException {
+        this.file = new RandomAccessFile(fileName, "r");
+        this.channel = file.getChannel();
+        this.endOffset = Math.min(endOffset, channel.size());
+        this.offset = startOffset;
+        this.delimiter = (byte) delimiterChar;
+        this.quote = (byte) quoteChar;
+        this.parser = new CSVParser(delimiterChar, quoteChar);
+    }
+
+    @Override
+    public String[] readNext() throws IOException {
+        if (offset >= endOffset) {
+            return null;
+        }
+        int start = position(offset);
+        int delimiterCount = 0;
+        int i = start;
+        int limit = window.limit();
+        while (true) {
+            if (i == limit) {
+                if (windowStart + limit >= endOffset) {
+                    break;
+                }
+                /*
+                 * The record runs past the window, so map a new window
+                 * starting at the record and scan it again.
+                 */
+                checkRemap();
+                start = map(offset);
+                i = start;
+                limit = window.limit();
+                delimiterCount = 0;
+                continue;
+            }
+            byte b = window.get(i);
+            if (b == '\n') {
+                break;
+            }
+            if (b == quote || b == ESCAPE_CHAR) {
+                return readQuoted();
+            }
+            if (b == delimiter) {
+                if (delimiterCount < delimiters.length) {
+                    delimiters[delimiterCount] = i;
+                }
+                delimiterCount++;
+            }
+            i++;
+        }
+        int lineEnd = i;
+        offset = windowStart + Math.min(i + 1, limit);
+        if (lineEnd > start && window.get(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+        if (delimiterCount > delimiters.length) {
+            /*
+             * More fields than the sample uses; decode the whole line so the
+             * row can be reported.
+             */
+            return parser.parseLine(decode(start, lineEnd));
+        }
+        String[] fields = new String[delimiterCount + 1];
+        int fieldStart = start;
+        for (int f = 0; f < delimiterCount; f++) {
+            fields[f] = decode(fieldStart, delimiters[f]);
+            fieldStart = delimiters[f] + 1;
+        }
+        fields[delimiterCount] = decode(fieldStart, lineEnd);
+        return fields;
+    }
+
+    @Override
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    /*
+     * Parses a record containing quotes or escapes with CSVParser, line by
+     * line, while a quoted field is still open. A quote left open at the end
+     * of the range yields the fields parsed so far, or null if there are
+     * none, as CsvRecordReader does at the end of the file.
+     */
+    private String[] readQuoted() throws IOException {
+        String[] result = null;
+        do {
+            if (offset >= endOffset) {
+                return result;
+            }
+            String[] fields = parser.parseLineMulti(readLine());
+            if (fields.length == 0) {
+                continue;
+            }
+            if (result == null) {
+                result = fields;
+            } else {
+                String[] joined = new String[result.length + fields.length];
+                System.arraycopy(result, 0, joined, 0, result.length);
+                System.arraycopy(fields, 0, joined, result.length,
+                        fields.length);
+                result = joined;
+            }
+        } while (parser.isPending());
+        return result;
+    }
+
+    private String readLine() throws IOException {
+        int start = position(offset);
+        int i = start;
+        while (true) {
+            if (i == window.limit()) {
+                if (windowStart + i >= endOffset) {
+                    break;
+                }
+                checkRemap();
+                start = map(offset);
+                i = start;
+                continue;
+            }
+            if (window.get(i) == '\n') {
+                break;
+            }
+            i++;
+        }
+        int lineEnd = i;
+        offset = windowStart + Math.min(i + 1, window.limit());
+        if (lineEnd > start && window.get(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+        return decode(start, lineEnd);
+    }
+
+    /*
+     * A window which already starts at the current line and still does not
+     * hold all of it cannot be helped by mapping again.
+     */
+    private void checkRemap() throws IOException {
+        if (windowStart == offset) {
+            throw new IOException("The line at offset " + offset
+                    + " is longer than " + WINDOW_SIZE + " bytes");
+        }
+    }
+
+    /*
+     * Returns the index of the file offset within the current window,
+     * mapping a new window if the offset lies outside it.
+     */
+    private int position(long fileOffset) throws IOException {
+        if (window == null || fileOffset < windowStart
+                || fileOffset >= windowStart + window.limit()) {
+            return map(fileOffset);
+        }
+        return (int) (fileOffset - windowStart);
+    }
+
+    private int map(long fileOffset) throws IOException {
+        windowStart = fileOffset;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, fileOffset,
+                Math.min(WINDOW_SIZE, endOffset - fileOffset));
+        return 0;
+    }
+
+    private String decode(int from, int to) {
+        int length = to - from;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = window.get(from + i);
+        }
+        return new String(scratch, 0, length, charset);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * An open-addressing hash map from long keys to long values held in direct
+ * buffers, so that millions of entries add no objects to the Java heap. The
+ * key 0 is reserved to mark empty slots. A direct buffer holds less than
+ * 2 GiB, so the table is split into buffers of 1 GiB, 2^26 slots each, and
+ * the map holds at most {@link #MAX_SIZE} entries.
+ *
+ * The map is not thread-safe, but may be read from several threads once it is
+ * no longer modified.
+ */
+public class OffHeapLongMap {
+
+    /**
+     * Largest number of entries: slot numbers are ints, and the table is
+     * kept at most half full.
+     */
+    public static final int MAX_SIZE = 1 << 29;
+
+    private static final long EMPTY = 0;
+    private static final int MAX_CAPACITY = MAX_SIZE << 1;
+    private static final int SEGMENT_BITS = 26;
+
+    private final int segmentBits;
+    private LongBuffer[] segments;
+    private int capacity;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize
+     *            - Number of entries the map is sized for before it grows
+     * @throws IllegalArgumentException
+     *             if expectedSize is more than {@link #MAX_SIZE}
+     */
+    public OffHeapLongMap(int expectedSize) {
+        this(expectedSize, SEGMENT_BITS);
+    }
+
+    /*
+     * Splits the table into buffers of 2^segmentBits slots, so that tests can
+     * cross buffer boundaries without allocating gigabytes.
+     */
+    OffHeapLongMap(int expectedSize, int segmentBits) {
+        if (expectedSize > MAX_SIZE) {
+            throw new IllegalArgumentException("The map cannot hold more than "
+                    + MAX_SIZE + " entries");
+        }
+        this.segmentBits = segmentBits;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return the value mapped to key, or missing if there is none
+     */
+    public long get(long key, long missing) {
+        for (int slot = slot(key);; slot = (slot + 1) & mask) {
+            long k = keyAt(slot);
+            if (k == key) {
+                return valueAt(slot);
+            }
+            if (k == EMPTY) {
+                return missing;
+            }
+        }
+    }
+
+    /**
+     * Maps key to value unless key is already mapped.
+     *
+     * @return the existing value, or missing if the value was added
+     */
+    public long putIfAbsent(long key, long value, long missing) {
+        for (int slot = slot(key);; slot = (slot + 1) & mask) {
+            long k = keyAt(slot);
+            if (k == key) {
+                return valueAt(slot);
+            }
+            if (k == EMPTY) {
+                insert(slot, key, value);
+                return missing;
+            }
+        }
+    }
+
+    /**
+     * Maps key to value, replacing any existing value.
+     */
+    public void put(long key, long value) {
+        for (int slot = slot(key);; slot = (slot + 1) & mask) {
+            long k = keyAt(slot);
+            if (k == key) {
+                segment(slot).put(index(slot) + 1, value);
+                return;
+            }
+            if (k == EMPTY) {
+                insert(slot, key, value);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a key known not to be in the map, without comparing it against the
+     * keys it probes past.
+     */
+    public void putNew(long key, long value) {
+        int slot = slot(key);
+        while (keyAt(slot) != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        insert(slot, key, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of the direct buffers holding the table
+     */
+    public long memoryBytes() {
+        return (long) capacity * 16;
+    }
+
+    private void insert(int slot, long key, long value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("The key 0 is reserved");
+        }
+        if (size >= MAX_SIZE) {
+            throw new IllegalStateException("The map cannot hold more than "
+                    + MAX_SIZE + " entries");
+        }
+        LongBuffer segment = segment(slot);
+        int index = index(slot);
+        segment.put(index, key);
+        segment.put(index + 1, value);
+        if (++size > capacity >>> 1) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        LongBuffer[] old = segments;
+        int oldCapacity = capacity;
+        allocate(capacity << 1);
+        size = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            LongBuffer segment = old[slot >>> segmentBits];
+            int index = (slot & ((1 << segmentBits) - 1)) << 1;
+            long key = segment.get(index);
+            if (key != EMPTY) {
+                putNew(key, segment.get(index + 1));
+            }
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        int segmentSlots = Math.min(newCapacity, 1 << segmentBits);
+        LongBuffer[] newSegments = new LongBuffer[newCapacity / segmentSlots];
+        for (int i = 0; i < newSegments.length; i++) {
+            // At most 2^26 slots of 16 bytes, which fits an int
+            newSegments[i] = ByteBuffer.allocateDirect(segmentSlots * 16)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        segments = newSegments;
+        capacity = newCapacity;
+        mask = capacity - 1;
+    }
+
+    private LongBuffer segment(int slot) {
+        return segments[slot >>> segmentBits];
+    }
+
+    /*
+     * Index of the slot's key in its segment; the value follows it.
+     */
+    private int index(int slot) {
+        return (slot & ((1 << segmentBits) - 1)) << 1;
+    }
+
+    private long keyAt(int slot) {
+        return segment(slot).get(index(slot));
+    }
+
+    private long valueAt(int slot) {
+        return segment(slot).get(index(slot) + 1);
+    }
+
+    private int slot(long key) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /*
+     * Smallest power of two keeping the table at most half full
+     */
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2L * expectedSize && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
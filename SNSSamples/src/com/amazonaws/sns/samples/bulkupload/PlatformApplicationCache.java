@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.GetPlatformApplicationAttributesRequest;
+
+/**
+ * Caches the attributes of platform applications so that the application is
+ * validated with GetPlatformApplicationAttributes once per time-to-live
+ * rather than once per endpoint.
+ */
+public class PlatformApplicationCache {
+
+    private static class CachedAttributes {
+        final Map<String, String> attributes;
+        final long expiresAt;
+
+        CachedAttributes(Map<String, String> attributes, long expiresAt) {
+            this.attributes = attributes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final AmazonSNS client;
+    private final long timeToLiveMillis;
+    private final ConcurrentMap<String, CachedAttributes> cache = new ConcurrentHashMap<String, CachedAttributes>();
+    private final AtomicLong validationCalls = new AtomicLong();
+
+    /**
+     * @param client
+     *            - Client used to look up the applications
+     * @param timeToLiveMillis
+     *            - How long a successful lookup stays valid
+     */
+    public PlatformApplicationCache(AmazonSNS client, long timeToLiveMillis) {
+        this.client = client;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Returns the attributes of the platform application, calling SNS only
+     * when there is no cached entry or it has expired. Lookup failures, such
+     * as a NotFoundException, are not cached and are thrown to the caller.
+     *
+     * @param applicationArn
+     *            - ARN of the platform application
+     */
+    public Map<String, String> getAttributes(String applicationArn) {
+        CachedAttributes cached = cache.get(applicationArn);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.attributes;
+        }
+        return refresh(applicationArn);
+    }
+
+    /*
+     * Synchronized so that workers which find the same expired entry issue a
+     * single lookup between them.
+     */
+    private synchronized Map<String, String> refresh(String applicationArn) {
+        CachedAttributes cached = cache.get(applicationArn);
+        long now = System.currentTimeMillis();
+        if (cached != null && cached.expiresAt > now) {
+            return cached.attributes;
+        }
+        validationCalls.incrementAndGet();
+        Map<String, String> attributes = client.getPlatformApplicationAttributes(
+                new GetPlatformApplicationAttributesRequest()
+                        .withPlatformApplicationArn(applicationArn))
+                .getAttributes();
+        cache.put(applicationArn, new CachedAttributes(attributes, now
+                + timeToLiveMillis));
+        return attributes;
+    }
+
+    /**
+     * @return the number of GetPlatformApplicationAttributes calls made
+     */
+    public long getValidationCalls() {
+        return validationCalls.get();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the good and bad files from a single thread. Workers add records to
+ * a lock-free queue and return at once; the writer thread drains the queue in
+ * batches and flushes once enough records have been written or enough time
+ * has passed. At every checkpoint both files are flushed and synced to disk,
+ * so after a crash each file holds every record up to the last checkpoint,
+ * and the {@link CheckpointJournal} is then updated to match.
+ */
+public class ResultFileWriter {
+
+    /*
+     * A queued record, or a checkpoint when snapshot is set. The latch, if
+     * any, is released once the checkpoint is on disk.
+     */
+    private static class Record {
+        final boolean good;
+        final String line;
+        final CheckpointJournal.Snapshot snapshot;
+        final CountDownLatch latch;
+
+        Record(boolean good, String line) {
+            this.good = good;
+            this.line = line;
+            this.snapshot = null;
+            this.latch = null;
+        }
+
+        Record(CheckpointJournal.Snapshot snapshot, CountDownLatch latch) {
+            this.good = false;
+            this.line = null;
+            this.snapshot = snapshot;
+            this.latch = latch;
+        }
+    }
+
+    private static final String LINE_SEPARATOR = System
+            .getProperty("line.separator");
+
+    private final String goodFileName;
+    private final String badFileName;
+    private final FileOutputStream goodFileStream;
+    private final FileOutputStream badFileStream;
+    private final Writer goodFileWriter;
+    private final Writer badFileWriter;
+    private final CheckpointJournal journal;
+
+    private final int flushRecords;
+    private final long flushIntervalNanos;
+    private final long checkpointIntervalNanos;
+
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    /**
+     * @param goodFileName
+     *            - File receiving the created endpoints
+     * @param badFileName
+     *            - File receiving the rows which failed
+     * @param flushRecords
+     *            - Number of records written before the files are flushed
+     * @param flushIntervalMillis
+     *            - Longest time a record waits before it is flushed
+     * @param checkpointIntervalMillis
+     *            - Time between syncs of the files to disk
+     * @param journal
+     *            - Journal updated after each sync
+     */
+    public ResultFileWriter(String goodFileName, String badFileName,
+            int flushRecords, long flushIntervalMillis,
+            long checkpointIntervalMillis, CheckpointJournal journal)
+            throws IOException {
+        this.goodFileName = goodFileName;
+        this.journal = journal;
+        this.badFileName = badFileName;
+        this.flushRecords = flushRecords;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS
+                .toNanos(flushIntervalMillis);
+        this.checkpointIntervalNanos = TimeUnit.MILLISECONDS
+                .toNanos(checkpointIntervalMillis);
+
+        goodFileStream = new FileOutputStream(goodFileName, true);
+        try {
+            badFileStream = new FileOutputStream(badFileName, true);
+        } catch (IOException ioe) {
+            goodFileStream.close();
+            throw ioe;
+        }
+        goodFileWriter = new BufferedWriter(new OutputStreamWriter(
+                goodFileStream));
+        badFileWriter = new BufferedWriter(new OutputStreamWriter(
+                badFileStream));
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ResultFileWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a line for the good file and marks the row complete.
+     *
+     * @param lineNumber
+     *            - Line number of the row in the CSV file
+     */
+    public void writeGood(long lineNumber, String line) {
+        queue.add(new Record(true, line));
+        journal.complete(lineNumber);
+    }
+
+    /**
+     * Queues a line for the bad file and marks the row complete.
+     *
+     * @param lineNumber
+     *            - Line number of the row in the CSV file
+     */
+    public void writeBad(long lineNumber, String line) {
+        queue.add(new Record(false, line));
+        journal.complete(lineNumber);
+    }
+
+    /**
+     * Waits until every line queued before this call has been written and
+     * synced to disk.
+     */
+    public void checkpoint() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        queue.add(new Record(journal.snapshot(), latch));
+        LockSupport.unpark(writerThread);
+        latch.await();
+    }
+
+    /**
+     * Writes and syncs every queued line, then closes both files.
+     */
+    public void close() throws InterruptedException {
+        checkpoint();
+        closed = true;
+        LockSupport.unpark(writerThread);
+        writerThread.join();
+    }
+
+    private void writeLoop() {
+        try {
+            int unflushed = 0;
+            long lastFlush = System.nanoTime();
+            long lastCheckpoint = lastFlush;
+            while (true) {
+                Record record;
+                while ((record = queue.poll()) != null) {
+                    if (record.snapshot != null) {
+                        sync();
+                        journal.write(record.snapshot);
+                        unflushed = 0;
+                        lastFlush = lastCheckpoint = System.nanoTime();
+                        if (record.latch != null) {
+                            record.latch.countDown();
+                        }
+                        continue;
+                    }
+                    Writer writer = record.good ? goodFileWriter
+                            : badFileWriter;
+                    writer.write(record.line);
+                    writer.write(LINE_SEPARATOR);
+                    if (++unflushed >= flushRecords) {
+                        flush();
+                        unflushed = 0;
+                        lastFlush = System.nanoTime();
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastCheckpoint >= checkpointIntervalNanos) {
+                    /*
+                     * The snapshot is taken before the records still being
+                     * queued, which the next pass writes ahead of it.
+                     */
+                    queue.add(new Record(journal.snapshot(), null));
+                    lastCheckpoint = now;
+                    continue;
+                } else if (unflushed > 0
+                        && now - lastFlush >= flushIntervalNanos) {
+                    flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                LockSupport.parkNanos(flushIntervalNanos);
+            }
+            goodFileWriter.close();
+            badFileWriter.close();
+        } catch (IOException ioe) {
+            System.err.println("[ERROR] Error initiating write to "
+                    + goodFileName + ", " + badFileName + " or the journal: "
+                    + ioe.getMessage());
+            System.exit(BatchCreatePlatformEndpointSample.FILE_ACCESS_FAILURE_ERROR_CODE);
+        }
+    }
+
+    private void flush() throws IOException {
+        goodFileWriter.flush();
+        badFileWriter.flush();
+    }
+
+    private void sync() throws IOException {
+        flush();
+        goodFileStream.getFD().sync();
+        badFileStream.getFD().sync();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.AmazonSNSAsyncClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+
+/**
+ * Holds one Amazon SNS client per region. The SDK clients are thread-safe,
+ * so every worker talking to a region shares the same client and its
+ * connection pool instead of building its own.
+ */
+public class SNSClientPool {
+
+    private final AWSCredentials credentials;
+    private final ClientConfiguration clientConfiguration;
+    private final String endpoint;
+    private final Map<String, String> regionEndpoints = new HashMap<String, String>();
+    private final Map<String, AmazonSNS> clients = new HashMap<String, AmazonSNS>();
+    private final Map<String, AmazonSNSAsync> asyncClients = new HashMap<String, AmazonSNSAsync>();
+
+    /**
+     * @param credentials
+     *            - Credentials shared by every client in the pool
+     * @param maxConnections
+     *            - Maximum number of open HTTP connections per client
+     */
+    public SNSClientPool(AWSCredentials credentials, int maxConnections) {
+        this(credentials, maxConnections, null);
+    }
+
+    /**
+     * @param credentials
+     *            - Credentials shared by every client in the pool
+     * @param maxConnections
+     *            - Maximum number of open HTTP connections per client
+     * @param endpoint
+     *            - URL every client talks to instead of the regional SNS
+     *            endpoint, e.g. a local stub, or null
+     */
+    public SNSClientPool(AWSCredentials credentials, int maxConnections,
+            String endpoint) {
+        this.credentials = credentials;
+        this.clientConfiguration = new ClientConfiguration()
+                .withMaxConnections(maxConnections);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Makes the clients of one region talk to the given URL, e.g. one of
+     * several local stubs standing in for different regions. It takes effect
+     * for clients created after the call.
+     *
+     * @param region
+     *            - Region name, e.g. us-east-1
+     * @param endpoint
+     *            - URL the region's clients talk to
+     */
+    public synchronized void setEndpoint(String region, String endpoint) {
+        regionEndpoints.put(region, endpoint);
+    }
+
+    /**
+     * Returns the client for the given region, creating it on first use.
+     *
+     * @param region
+     *            - Region name, e.g. us-east-1
+     */
+    public synchronized AmazonSNS getClient(String region) {
+        AmazonSNS client = clients.get(region);
+        if (client == null) {
+            client = new AmazonSNSClient(credentials, clientConfiguration);
+            client.setEndpoint(endpointOf(region));
+            clients.put(region, client);
+        }
+        return client;
+    }
+
+    /**
+     * Returns the async client for the given region, creating it on first
+     * use. The SDK runs async calls on the client's own executor, which is
+     * sized to the maximum number of connections.
+     *
+     * @param region
+     *            - Region name, e.g. us-east-1
+     */
+    public synchronized AmazonSNSAsync getAsyncClient(String region) {
+        AmazonSNSAsync client = asyncClients.get(region);
+        if (client == null) {
+            client = new AmazonSNSAsyncClient(credentials,
+                    clientConfiguration,
+                    Executors.newFixedThreadPool(clientConfiguration
+                            .getMaxConnections()));
+            client.setEndpoint(endpointOf(region));
+            asyncClients.put(region, client);
+        }
+        return client;
+    }
+
+    /**
+     * Returns true if the region is one of the SNS regions.
+     */
+    public static boolean isRegion(String region) {
+        return BatchCreatePlatformEndpointSample.listOfRegions.contains(region);
+    }
+
+    private String endpointOf(String region) {
+        if (regionEndpoints.containsKey(region)) {
+            return regionEndpoints.get(region);
+        }
+        return endpoint != null ? endpoint : "https://sns." + region
+                + ".amazonaws.com/";
+    }
+
+    /**
+     * Releases the connection pools of every client created so far.
+     */
+    public synchronized void shutdown() {
+        for (AmazonSNS client : clients.values()) {
+            client.shutdown();
+        }
+        clients.clear();
+        for (AmazonSNSAsync client : asyncClients.values()) {
+            client.shutdown();
+        }
+        asyncClients.clear();
+    }
+}
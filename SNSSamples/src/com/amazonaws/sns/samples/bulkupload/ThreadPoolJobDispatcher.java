@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each job on a fixed pool of threads, each blocking on its create call.
+ */
+public class ThreadPoolJobDispatcher implements JobDispatcher {
+
+    /**
+     * Makes the CSV reader wait for space in the work queue instead of
+     * rejecting the job, so that at most queueDepth rows are held in memory
+     * ahead of the workers. An interrupted wait restores the interrupt flag
+     * and rejects the job with the InterruptedException as its cause, which
+     * {@link ThreadPoolJobDispatcher#dispatch} throws on.
+     */
+    private static class BlockingSubmitPolicy implements
+            RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable job, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            try {
+                executor.getQueue().put(job);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ie);
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param numberOfThreads
+     *            - Number of concurrently operating threads
+     * @param queueDepth
+     *            - Number of jobs which may wait for a free thread
+     */
+    public ThreadPoolJobDispatcher(int numberOfThreads, int queueDepth) {
+        executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueDepth), new BlockingSubmitPolicy());
+    }
+
+    @Override
+    public void dispatch(CreateEndpointJob job) throws InterruptedException {
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException ree) {
+            if (ree.getCause() instanceof InterruptedException) {
+                // The flag is cleared as an InterruptedException implies
+                Thread.interrupted();
+                throw (InterruptedException) ree.getCause();
+            }
+            throw ree;
+        }
+    }
+
+    @Override
+    public void awaitCompletion() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+}
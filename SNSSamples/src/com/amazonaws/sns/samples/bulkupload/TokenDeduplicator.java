@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Picks one row for each device token which appears more than once in the
+ * CSV file, so that CreatePlatformEndpoint is called once per token.
+ *
+ * Tokens are reduced to 64-bit hashes, which are kept in an
+ * {@link OffHeapLongMap} along with the line number of the chosen row. A Bloom
+ * filter in front of the map answers "never seen" for most new tokens, which
+ * are then added to the map without comparing them to the keys they probe
+ * past. The chance that any two different tokens in a file of 10 million
+ * tokens share a hash is about 1 in 370,000.
+ *
+ * With {@link Policy#FIRST} and a single reader the rows are chosen as they
+ * are read. Otherwise the file is scanned once beforehand to find the first or
+ * last row of every token, and the map is only read during the upload.
+ */
+public class TokenDeduplicator {
+
+    /**
+     * Which of several rows with the same token is sent.
+     */
+    public static enum Policy {
+        FIRST, LAST
+    }
+
+    private static final long MISSING = -1;
+
+    /*
+     * Bits per expected token and hash functions, giving about a 1% false
+     * positive rate
+     */
+    private static final int BLOOM_BITS_PER_TOKEN = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private final Policy policy;
+    private final boolean streaming;
+    private final OffHeapLongMap chosenLines;
+    private final ByteBuffer bloom;
+    private final long bloomMask;
+    private long duplicates;
+
+    /**
+     * @param policy
+     *            - Which of several rows with the same token is sent
+     * @param streaming
+     *            - True to choose rows as they are read, which requires a
+     *            single reader and Policy.FIRST; false if {@link #scan} is
+     *            called before the upload
+     * @param expectedTokens
+     *            - Number of distinct tokens the structures are sized for
+     */
+    public TokenDeduplicator(Policy policy, boolean streaming,
+            int expectedTokens) {
+        if (streaming && policy != Policy.FIRST) {
+            throw new IllegalArgumentException(
+                    "Only the first row can be chosen while reading");
+        }
+        this.policy = policy;
+        this.streaming = streaming;
+        this.chosenLines = new OffHeapLongMap(expectedTokens);
+        long bits = 64;
+        while (bits < (long) expectedTokens * BLOOM_BITS_PER_TOKEN
+                && bits < 1L << 33) {
+            bits <<= 1;
+        }
+        this.bloom = ByteBuffer.allocateDirect((int) (bits >>> 3));
+        this.bloomMask = bits - 1;
+    }
+
+    /**
+     * Reads every row of the file and records the line number of the row to
+     * send for each token.
+     */
+    public void scan(CsvRecordSource csvReader) throws IOException {
+        String[] fields;
+        long lineNumber = 0;
+        while ((fields = csvReader.readNext()) != null) {
+            lineNumber++;
+            if (fields.length < 1 || fields.length > 2
+                    || fields[0].length() == 0) {
+                continue;
+            }
+            long hash = hash(fields[0]);
+            if (!mightContain(hash)) {
+                addToBloom(hash);
+                chosenLines.putNew(hash, lineNumber);
+            } else if (policy == Policy.LAST) {
+                chosenLines.put(hash, lineNumber);
+            } else {
+                chosenLines.putIfAbsent(hash, lineNumber, MISSING);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the row is the one to send for its token. Must only be
+     * called from one thread when streaming.
+     *
+     * @param token
+     *            - Device token of the row
+     * @param lineNumber
+     *            - Line number of the row
+     */
+    public boolean isChosen(String token, long lineNumber) {
+        long hash = hash(token);
+        long chosen;
+        if (streaming) {
+            if (!mightContain(hash)) {
+                addToBloom(hash);
+                chosenLines.putNew(hash, lineNumber);
+                return true;
+            }
+            chosen = chosenLines.putIfAbsent(hash, lineNumber, MISSING);
+            if (chosen == MISSING) {
+                return true;
+            }
+        } else {
+            chosen = chosenLines.get(hash, MISSING);
+        }
+        if (chosen == lineNumber) {
+            return true;
+        }
+        synchronized (this) {
+            duplicates++;
+        }
+        return false;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public int getDistinctTokens() {
+        return chosenLines.size();
+    }
+
+    /**
+     * @return the off-heap memory used by the Bloom filter and the map
+     */
+    public long memoryBytes() {
+        return bloom.capacity() + chosenLines.memoryBytes();
+    }
+
+    private boolean mightContain(long hash) {
+        long h2 = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = (hash + i * h2) & bloomMask;
+            if ((bloom.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToBloom(long hash) {
+        long h2 = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = (hash + i * h2) & bloomMask;
+            int index = (int) (bit >>> 3);
+            bloom.put(index, (byte) (bloom.get(index) | (1 << (bit & 7))));
+        }
+    }
+
+    /*
+     * FNV-1a over the token's characters followed by the MurmurHash3
+     * finalizer. 0 is reserved by the map, so it is moved to 1.
+     */
+    static long hash(String token) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            h ^= token.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
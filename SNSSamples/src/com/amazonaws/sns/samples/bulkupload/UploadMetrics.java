@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Counts rows and create calls while a bulk upload runs. Create call
+ * latencies are recorded in microseconds into an HdrHistogram
+ * {@link Recorder}, which workers write to without locking.
+ *
+ * Once started, a daemon thread prints a one-line summary every interval and
+ * the counters are registered with the platform MBean server.
+ */
+public class UploadMetrics implements UploadMetricsMBean {
+
+    private static final String OBJECT_NAME = "com.amazonaws.sns.samples.bulkupload:type=UploadMetrics";
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES
+            .toMicros(1);
+
+    private final long intervalMillis;
+    private final boolean loggingRows;
+
+    private final AtomicLong rowsSucceeded = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong rowsSkipped = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicLong> errorCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final Recorder latencyRecorder = new Recorder(MAX_LATENCY_MICROS,
+            3);
+
+    /*
+     * Guarded by this. Updated by the reporting thread once per interval.
+     */
+    private final Histogram totalLatency = new Histogram(MAX_LATENCY_MICROS, 3);
+    private Histogram intervalLatency;
+    private long lastRows;
+    private long lastReportNanos;
+    private double rowsPerSecond;
+
+    private volatile JobDispatcher dispatcher;
+    private Thread reporterThread;
+    private ObjectName objectName;
+
+    /**
+     * @param intervalMillis
+     *            - Time between two summaries
+     * @param loggingRows
+     *            - Whether the result of each row is also printed
+     */
+    public UploadMetrics(long intervalMillis, boolean loggingRows) {
+        this.intervalMillis = intervalMillis;
+        this.loggingRows = loggingRows;
+    }
+
+    /**
+     * Registers the MBean and starts printing summaries.
+     *
+     * @param dispatcher
+     *            - Dispatcher whose queue depth is reported
+     */
+    public synchronized void start(JobDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.lastReportNanos = System.nanoTime();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException jme) {
+            System.err.println("[ERROR] The upload metrics could not be registered with JMX: "
+                    + jme.getMessage());
+            objectName = null;
+        }
+        reporterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalMillis);
+                        System.out.println(report());
+                    }
+                } catch (InterruptedException ie) {
+                }
+            }
+        }, "upload-metrics");
+        reporterThread.setDaemon(true);
+        reporterThread.start();
+    }
+
+    /**
+     * Stops the summaries, unregisters the MBean and prints a summary of the
+     * whole run.
+     */
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = reporterThread;
+            reporterThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+        synchronized (this) {
+            if (objectName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                            objectName);
+                } catch (JMException jme) {
+                }
+                objectName = null;
+            }
+            report();
+            System.out.println("[METRICS] Total " + rowsSucceeded.get()
+                    + " succeeded, " + rowsFailed.get() + " failed, "
+                    + rowsSkipped.get() + " skipped, " + hedges.get()
+                    + " hedged call(s), create " + latencies(totalLatency) + ", errors "
+                    + getErrorCounts());
+        }
+    }
+
+    /**
+     * @return whether the result of each row should be printed
+     */
+    public boolean isLoggingRows() {
+        return loggingRows;
+    }
+
+    /**
+     * Marks the start of a create call.
+     *
+     * @return the start time to pass to {@link #callFinished(long, String)}
+     */
+    public long callStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency of a create call started by {@link #callStarted()}.
+     *
+     * @param startNanos
+     *            - Start time of the call
+     * @param errorCode
+     *            - Error code of a failed call, or null
+     */
+    public void callFinished(long startNanos, String errorCode) {
+        inFlight.decrementAndGet();
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+                - startNanos);
+        latencyRecorder.recordValue(Math.min(Math.max(micros, 0),
+                MAX_LATENCY_MICROS));
+        if (errorCode != null) {
+            countError(errorCode);
+        }
+    }
+
+    /**
+     * Counts a create call sent a second time by a {@link HedgingPolicy}.
+     * The hedge is also timed as a call of its own.
+     */
+    public void callHedged() {
+        hedges.incrementAndGet();
+    }
+
+    public void rowSucceeded() {
+        rowsSucceeded.incrementAndGet();
+    }
+
+    /**
+     * @param errorCode
+     *            - Error code of the row's last failure
+     */
+    public void rowFailed(String errorCode) {
+        rowsFailed.incrementAndGet();
+        countError(errorCode);
+    }
+
+    public void rowSkipped() {
+        rowsSkipped.incrementAndGet();
+    }
+
+    private void countError(String errorCode) {
+        AtomicLong count = errorCounts.get(errorCode);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = errorCounts.putIfAbsent(errorCode, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /*
+     * Closes the current interval and returns its summary line.
+     */
+    private synchronized String report() {
+        long now = System.nanoTime();
+        long rows = rowsSucceeded.get() + rowsFailed.get();
+        intervalLatency = latencyRecorder.getIntervalHistogram(intervalLatency);
+        totalLatency.add(intervalLatency);
+        rowsPerSecond = (rows - lastRows) * 1e9
+                / Math.max(now - lastReportNanos, 1);
+        lastRows = rows;
+        lastReportNanos = now;
+        return "[METRICS] " + rows + " row(s) done, " + (long) rowsPerSecond
+                + "/s, " + rowsFailed.get() + " failed, " + inFlight.get()
+                + " in flight, queue " + getQueueDepth() + ", "
+                + hedges.get() + " hedged, create "
+                + latencies(intervalLatency) + ", errors " + getErrorCounts();
+    }
+
+    private static String latencies(Histogram histogram) {
+        return "p50 " + millis(histogram.getValueAtPercentile(50)) + " ms, p99 "
+                + millis(histogram.getValueAtPercentile(99)) + " ms, p99.9 "
+                + millis(histogram.getValueAtPercentile(99.9)) + " ms, max "
+                + millis(histogram.getMaxValue()) + " ms";
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+
+    private synchronized double percentile(double percentile) {
+        return intervalLatency == null ? 0 : millis(intervalLatency
+                .getValueAtPercentile(percentile));
+    }
+
+    @Override
+    public long getRowsSucceeded() {
+        return rowsSucceeded.get();
+    }
+
+    @Override
+    public long getRowsFailed() {
+        return rowsFailed.get();
+    }
+
+    @Override
+    public long getRowsSkipped() {
+        return rowsSkipped.get();
+    }
+
+    @Override
+    public long getHedgedCalls() {
+        return hedges.get();
+    }
+
+    @Override
+    public synchronized double getRowsPerSecond() {
+        return rowsPerSecond;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        JobDispatcher current = dispatcher;
+        return current == null ? 0 : current.getQueueDepth();
+    }
+
+    @Override
+    public double getLatencyMillisP50() {
+        return percentile(50);
+    }
+
+    @Override
+    public double getLatencyMillisP99() {
+        return percentile(99);
+    }
+
+    @Override
+    public double getLatencyMillisP999() {
+        return percentile(99.9);
+    }
+
+    @Override
+    public synchronized double getLatencyMillisMax() {
+        return intervalLatency == null ? 0 : millis(intervalLatency
+                .getMaxValue());
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> count : errorCounts.entrySet()) {
+            counts.put(count.getKey(), count.getValue().get());
+        }
+        return counts;
+    }
+}
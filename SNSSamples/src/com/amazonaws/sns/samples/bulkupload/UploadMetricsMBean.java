@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link UploadMetrics}. Rates and latencies cover the last
+ * reporting interval; counts cover the whole run.
+ */
+public interface UploadMetricsMBean {
+
+    long getRowsSucceeded();
+
+    long getRowsFailed();
+
+    long getRowsSkipped();
+
+    long getHedgedCalls();
+
+    double getRowsPerSecond();
+
+    int getInFlight();
+
+    int getQueueDepth();
+
+    double getLatencyMillisP50();
+
+    double getLatencyMillisP99();
+
+    double getLatencyMillisP999();
+
+    double getLatencyMillisMax();
+
+    Map<String, Long> getErrorCounts();
+}
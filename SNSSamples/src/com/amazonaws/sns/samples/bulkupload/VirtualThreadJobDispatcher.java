@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each job on its own virtual thread, so the blocking SDK call stays
+ * simple while many calls wait in parallel. A semaphore caps the
+ * number of jobs running at once to stay within the SNS rate limits.
+ *
+ * Virtual threads require Java 21. The executor is looked up reflectively so
+ * that the sample still compiles and runs on older JVMs in the other modes.
+ */
+public class VirtualThreadJobDispatcher implements JobDispatcher {
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+
+    /**
+     * @param maxInFlight
+     *            - Maximum number of jobs running at once
+     * @throws UnsupportedOperationException
+     *             if the JVM does not support virtual threads
+     */
+    public VirtualThreadJobDispatcher(int maxInFlight) {
+        try {
+            executor = (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by Java "
+                            + System.getProperty("java.version"), e);
+        }
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public void dispatch(final CreateEndpointJob job)
+            throws InterruptedException {
+        inFlight.acquire();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            inFlight.release();
+            throw re;
+        }
+    }
+
+    @Override
+    public void awaitCompletion() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        }
+    }
+
+    /*
+     * Jobs start as soon as they are dispatched.
+     */
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+}
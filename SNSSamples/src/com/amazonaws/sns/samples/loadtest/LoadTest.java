@@ -0,0 +1,838 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.loadtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.CreatePlatformEndpointRequest;
+import com.amazonaws.services.sns.model.GetPlatformApplicationAttributesRequest;
+import com.amazonaws.sns.samples.bulkupload.BatchCreatePlatformEndpointSample;
+import com.amazonaws.sns.samples.bulkupload.SNSClientPool;
+import com.amazonaws.sns.samples.mobilepush.BatchSummary;
+import com.amazonaws.sns.samples.mobilepush.FanOutPublisher;
+import com.amazonaws.sns.samples.mobilepush.PreparedMessage;
+import com.amazonaws.sns.samples.mobilepush.RegionRouter;
+import com.amazonaws.sns.samples.mobilepush.SNSMobilePush;
+import com.amazonaws.sns.samples.mobilepush.TopicBroadcaster;
+
+/**
+ * Runs the samples against an {@link SNSStubServer} started in the same JVM
+ * and reports their throughput and latency. The scenarios and the stub's
+ * fault settings are read from LoadTest.properties:
+ *
+ * 'upload' writes a CSV file of generated tokens and runs
+ * {@link BatchCreatePlatformEndpointSample} on it. Properties starting with
+ * 'upload.' are passed to the sample without the prefix.
+ *
+ * 'publish' registers endpoints with the stub and calls
+ * {@link SNSMobilePush#publish} from several threads.
+ *
+ * 'broadcast' registers endpoints with the stub and sends one message to all
+ * of them, first with {@link FanOutPublisher} and then with
+ * {@link TopicBroadcaster}, and compares the calls and time each needs.
+ *
+ * 'regions' starts one stub per region, each with its own settings, and
+ * reads a platform application kept in every region through a
+ * {@link RegionRouter}, first from its own region only and then hedged and
+ * failed over across the regions. It then publishes with
+ * {@link SNSMobilePush} through the router to endpoints registered in every
+ * region.
+ *
+ * 'hedging' runs the upload twice, first without hedging and then with
+ * create calls hedged at 'upload.hedgepercentile' (the 95th percentile if
+ * not set), so that the create latency percentiles and the hedge rate of
+ * the two runs can be compared.
+ *
+ * 'clients' creates endpoints from several threads, first with a client
+ * built for every row, as the upload did before its clients were shared,
+ * and then with the one client of an {@link SNSClientPool}, and compares
+ * their rows per second.
+ *
+ * 'heap' uploads 'heaprows' generated rows, by default 10 million, and
+ * prints the heap left after a full collection every 'heapinterval'
+ * seconds, so that the memory of the upload can be watched as it runs.
+ *
+ * 'modes' runs the upload on a fixed pool of each of 'modesizes' threads,
+ * then with the async client and then on virtual threads with as many calls
+ * in flight, and compares their rows per second.
+ */
+public class LoadTest {
+
+    static final String LOADTESTPROPERTIES_FILE = "LoadTest.properties";
+
+    static final String STUB_PORT = "stubport";
+    static final String STUB_REGION = "stubregion";
+    private static final String SCENARIOS = "scenarios";
+    private static final String APPLICATION_ARN = "applicationarn";
+    private static final String ROWS = "rows";
+    private static final String PUBLISH_COUNT = "publishcount";
+    private static final String PUBLISH_THREADS = "publishthreads";
+    private static final String PUBLISH_ENDPOINTS = "publishendpoints";
+    private static final String BROADCAST_ENDPOINTS = "broadcastendpoints";
+    private static final String BROADCAST_SHARDS = "broadcastshards";
+    private static final String BROADCAST_MAX_IN_FLIGHT = "broadcastmaxinflight";
+    private static final String REGIONS = "regions";
+    private static final String REGION_READS = "regionreads";
+    private static final String CLIENT_ROWS = "clientrows";
+    private static final String CLIENT_THREADS = "clientthreads";
+    private static final String HEAP_ROWS = "heaprows";
+    private static final String HEAP_INTERVAL = "heapinterval";
+    private static final String MODE_SIZES = "modesizes";
+    private static final String UPLOAD_PREFIX = "upload.";
+
+    private static final String UPLOAD_SCENARIO = "upload";
+    private static final String PUBLISH_SCENARIO = "publish";
+    private static final String BROADCAST_SCENARIO = "broadcast";
+    private static final String REGIONS_SCENARIO = "regions";
+    private static final String HEDGING_SCENARIO = "hedging";
+    private static final String CLIENTS_SCENARIO = "clients";
+    private static final String HEAP_SCENARIO = "heap";
+    private static final String MODES_SCENARIO = "modes";
+
+    private static final String HEDGE_PERCENTILE = "hedgepercentile";
+    private static final String THREADS_MODE = "threads";
+    private static final String ASYNC_MODE = "async";
+    private static final String VIRTUAL_MODE = "virtual";
+
+    private static final long MAX_LATENCY_MICROS = 60000000L;
+
+    private final Properties properties;
+    private final SNSStubServer stub;
+    private final String applicationArn;
+
+    public LoadTest(Properties properties, SNSStubServer stub) {
+        this.properties = properties;
+        this.stub = stub;
+        String arn = properties.getProperty(APPLICATION_ARN, "").trim();
+        this.applicationArn = arn.length() > 0 ? arn : "arn:aws:sns:"
+                + stubRegion(properties) + ":123456789012:app/GCM/LoadTest";
+    }
+
+    static String stubRegion(Properties properties) {
+        String region = properties.getProperty(STUB_REGION, "").trim();
+        return region.length() > 0 ? region : "us-east-1";
+    }
+
+    private long number(String key, long defaultValue) {
+        try {
+            return Long.parseLong(properties.getProperty(key, "").trim());
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Generates the CSV file and uploads it through the stub.
+     */
+    public void runUpload() throws IOException {
+        upload(number(ROWS, 100000), new Properties());
+    }
+
+    /**
+     * Uploads the generated CSV file without hedging and then hedged, so that
+     * the create latencies of the two runs can be compared. The second run
+     * creates the same endpoints again, which the stub answers as SNS does.
+     */
+    public void runHedging() throws IOException {
+        String percentile = properties.getProperty(
+                UPLOAD_PREFIX + HEDGE_PERCENTILE, "").trim();
+        try {
+            if (Double.parseDouble(percentile) <= 0) {
+                percentile = "95";
+            }
+        } catch (NumberFormatException nfe) {
+            percentile = "95";
+        }
+        long rows = number(ROWS, 100000);
+        System.out.println("[LOADTEST] Uploading without hedging");
+        Properties overrides = new Properties();
+        overrides.setProperty(HEDGE_PERCENTILE, "0");
+        upload(rows, overrides);
+        System.out.println("[LOADTEST] Uploading with create calls hedged at p"
+                + percentile);
+        overrides.setProperty(HEDGE_PERCENTILE, percentile);
+        upload(rows, overrides);
+    }
+
+    /**
+     * Uploads a large generated CSV file while a sampler prints the heap
+     * used after a full collection. The stub forgets its endpoints before
+     * each sample, so that only the memory of the upload is measured; run
+     * with a small -Xmx to check that it does not grow with the file.
+     */
+    public void runHeap() throws IOException, InterruptedException {
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(number(
+                HEAP_INTERVAL, 10));
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final List<Long> samples = Collections
+                .synchronizedList(new ArrayList<Long>());
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalMillis);
+                        stub.clearEndpoints();
+                        System.gc();
+                        long used = memory.getHeapMemoryUsage().getUsed();
+                        samples.add(used);
+                        Long creates = stub.getCounts().get(
+                                SNSStubServer.CREATE_PLATFORM_ENDPOINT);
+                        System.out.println("[LOADTEST] Heap after GC "
+                                + megabytes(used) + " MB at "
+                                + (creates == null ? 0 : creates)
+                                + " create call(s)");
+                    }
+                } catch (InterruptedException ie) {
+                }
+            }
+        }, "loadtest-heap");
+        sampler.setDaemon(true);
+        sampler.start();
+        try {
+            upload(number(HEAP_ROWS, 10000000), new Properties());
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+        }
+
+        synchronized (samples) {
+            if (samples.isEmpty()) {
+                System.out.println("[LOADTEST] The upload ended before the first heap sample");
+                return;
+            }
+            System.out.println("[LOADTEST] Heap after GC over "
+                    + samples.size() + " sample(s): first "
+                    + megabytes(samples.get(0)) + " MB, max "
+                    + megabytes(Collections.max(samples)) + " MB, last "
+                    + megabytes(samples.get(samples.size() - 1))
+                    + " MB, limit "
+                    + megabytes(memory.getHeapMemoryUsage().getMax()) + " MB");
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Uploads the same generated rows in the 'threads' mode with each of the
+     * 'modesizes' numbers of threads, and then in the 'async' and 'virtual'
+     * modes with each of them as the number of calls in flight, and prints
+     * the rows per second and the peak number of live threads of every run,
+     * the stub's included. The stub forgets its endpoints before each run,
+     * so that every run creates them. Every run gets a connection for each
+     * call at once. The virtual runs are skipped on JVMs without virtual
+     * threads.
+     */
+    public void runModes() throws IOException {
+        long rows = number(ROWS, 100000);
+        String sizeList = properties.getProperty(MODE_SIZES, "").trim();
+        if (sizeList.length() == 0) {
+            sizeList = "16,64,256";
+        }
+        List<String> modes = new ArrayList<String>();
+        modes.add(THREADS_MODE);
+        modes.add(ASYNC_MODE);
+        try {
+            Thread.class.getMethod("ofVirtual");
+            modes.add(VIRTUAL_MODE);
+        } catch (NoSuchMethodException nsme) {
+            System.out.println("[LOADTEST] Java "
+                    + System.getProperty("java.version")
+                    + " has no virtual threads, the virtual mode is skipped");
+        }
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Map<String, String> results = new LinkedHashMap<String, String>();
+        for (String mode : modes) {
+            for (String size : sizeList.split(",")) {
+                size = size.trim();
+                Properties overrides = new Properties();
+                overrides.setProperty("mode", mode);
+                overrides.setProperty("numofthreads", size);
+                overrides.setProperty("maxinflight", size);
+                overrides.setProperty("maxconnections", size);
+                System.out.println("[LOADTEST] Uploading in the " + mode
+                        + " mode with " + size + " at once");
+                stub.clearEndpoints();
+                threadBean.resetPeakThreadCount();
+                long rowsPerSecond = (long) upload(rows, overrides);
+                results.put(mode + " " + size, rowsPerSecond + " rows/s "
+                        + threadBean.getPeakThreadCount() + " threads");
+            }
+        }
+        System.out.println("[LOADTEST] Rows/s and peak live threads of the JVM by mode and concurrency "
+                + results);
+    }
+
+    /*
+     * Uploads the given number of generated rows with the given properties
+     * in place of the 'upload.' ones, and returns the rows per second.
+     */
+    private double upload(long rows, Properties overrides) throws IOException {
+        File directory = Files.createTempDirectory("sns-loadtest").toFile();
+        File csvFile = new File(directory, "tokens.csv");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile));
+        try {
+            for (long row = 0; row < rows; row++) {
+                writer.write("token" + row + ",user" + row);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        Properties upload = new Properties();
+        upload.setProperty("logrows", "false");
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(UPLOAD_PREFIX)) {
+                upload.setProperty(key.substring(UPLOAD_PREFIX.length()),
+                        properties.getProperty(key));
+            }
+        }
+        upload.setProperty("applicationarn", applicationArn);
+        upload.setProperty("csvfilename", csvFile.getPath());
+        upload.setProperty("goodfilename",
+                new File(directory, "good.txt").getPath());
+        upload.setProperty("badfilename",
+                new File(directory, "bad.txt").getPath());
+        upload.setProperty("journalfilename",
+                new File(directory, "tokens.journal").getPath());
+        upload.setProperty("endpoint", stub.getEndpoint());
+        upload.putAll(overrides);
+        int threads = 1;
+        try {
+            threads = Integer.parseInt(upload.getProperty("numofthreads", "1")
+                    .trim());
+        } catch (NumberFormatException nfe) {
+        }
+
+        System.out.println("[LOADTEST] Uploading " + rows + " row(s) from "
+                + csvFile);
+        long start = System.nanoTime();
+        new BatchCreatePlatformEndpointSample(upload).readCsv(threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("[LOADTEST] Upload took "
+                + String.format("%.1f", seconds) + " s, "
+                + (long) (rows / seconds) + " rows/s, "
+                + stub.getEndpointCount() + " endpoint(s) registered");
+        return rows / seconds;
+    }
+
+    /**
+     * Publishes to endpoints registered with the stub from several threads.
+     */
+    public void runPublish() throws InterruptedException {
+        final long count = number(PUBLISH_COUNT, 100000);
+        int threads = (int) number(PUBLISH_THREADS, 32);
+        int endpointCount = (int) number(PUBLISH_ENDPOINTS, 1000);
+
+        AmazonSNS client = new AmazonSNSClient(new BasicAWSCredentials(
+                "stub", "stub"),
+                new ClientConfiguration().withMaxConnections(threads));
+        client.setEndpoint(stub.getEndpoint());
+        final List<String> endpointArns = registerEndpoints(client,
+                endpointCount, "publish", threads);
+        final SNSMobilePush sample = new SNSMobilePush(client);
+        sample.setDisplayMessages(false);
+        final PreparedMessage message = sample
+                .prepare(SNSMobilePush.Platform.GCM);
+
+        final AtomicLong next = new AtomicLong();
+        final Recorder latencies = new Recorder(MAX_LATENCY_MICROS, 3);
+        final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+        System.out.println("[LOADTEST] Publishing " + count
+                + " message(s) to " + endpointCount + " endpoint(s) from "
+                + threads + " thread(s)");
+        long start = System.nanoTime();
+        List<Thread> publishers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread publisher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long i;
+                    while ((i = next.getAndIncrement()) < count) {
+                        long callStart = System.nanoTime();
+                        String error = null;
+                        try {
+                            sample.publish(
+                                    endpointArns.get((int) (i % endpointArns
+                                            .size())), message);
+                        } catch (AmazonServiceException ase) {
+                            error = ase.getErrorCode();
+                        } catch (AmazonClientException ace) {
+                            error = ace.getClass().getSimpleName();
+                        }
+                        latencies.recordValue(Math.min(
+                                (System.nanoTime() - callStart) / 1000,
+                                MAX_LATENCY_MICROS));
+                        if (error != null) {
+                            AtomicLong errorCount = errors.putIfAbsent(error,
+                                    new AtomicLong(1));
+                            if (errorCount != null) {
+                                errorCount.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            publisher.start();
+            publishers.add(publisher);
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        client.shutdown();
+
+        Histogram histogram = latencies.getIntervalHistogram();
+        Map<String, Long> errorCounts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+            errorCounts.put(error.getKey(), error.getValue().get());
+        }
+        System.out.println("[LOADTEST] Publish took "
+                + String.format("%.1f", seconds) + " s, "
+                + (long) (count / seconds) + " messages/s, p50 "
+                + histogram.getValueAtPercentile(50) / 1000.0 + " ms, p99 "
+                + histogram.getValueAtPercentile(99) / 1000.0 + " ms, max "
+                + histogram.getMaxValue() / 1000.0 + " ms, errors "
+                + errorCounts);
+    }
+
+    /**
+     * Sends one message to every endpoint by fan-out and through topics.
+     * Subscribing is paid once, so the comparison also reports after how
+     * many broadcasts the topics cost fewer calls and less time.
+     */
+    public void runBroadcast() throws IOException, InterruptedException {
+        int endpointCount = (int) number(BROADCAST_ENDPOINTS, 10000);
+        int shards = (int) number(BROADCAST_SHARDS, 4);
+        int maxInFlight = (int) number(BROADCAST_MAX_IN_FLIGHT, 64);
+        String region = stubRegion(properties);
+
+        SNSClientPool clientPool = new SNSClientPool(new BasicAWSCredentials(
+                "stub", "stub"), maxInFlight, stub.getEndpoint());
+        List<String> endpointArns = registerEndpoints(
+                clientPool.getClient(region), endpointCount, "broadcast",
+                (int) number(PUBLISH_THREADS, 32));
+        PreparedMessage message = new SNSMobilePush(null)
+                .prepare(SNSMobilePush.Platform.GCM);
+        File directory = Files.createTempDirectory("sns-loadtest").toFile();
+        System.out.println("[LOADTEST] Broadcasting to " + endpointCount
+                + " endpoint(s), fan-out against " + shards + " topic(s)");
+
+        Map<String, Long> before = stub.getCounts();
+        BatchSummary fanOut = new FanOutPublisher(clientPool, maxInFlight, 0,
+                5, new File(directory, "fanout-failed.txt").getPath())
+                .publish(endpointArns.iterator(), message);
+        long fanOutCalls = calls(before, SNSStubServer.PUBLISH);
+        System.out.println("[LOADTEST] Fan-out: " + fanOutCalls
+                + " Publish call(s), " + fanOut);
+
+        TopicBroadcaster broadcaster = new TopicBroadcaster(clientPool,
+                region, "LoadTest", shards, new File(directory,
+                        "topics.txt").getPath(), maxInFlight, 0, 5);
+        before = stub.getCounts();
+        BatchSummary subscribe = broadcaster.subscribe(
+                endpointArns.iterator(), new File(directory,
+                        "subscribe-failed.txt").getPath());
+        long setupCalls = calls(before, SNSStubServer.CREATE_TOPIC)
+                + calls(before, SNSStubServer.SUBSCRIBE);
+        System.out.println("[LOADTEST] Topic setup: " + setupCalls
+                + " CreateTopic and Subscribe call(s), " + subscribe);
+
+        before = stub.getCounts();
+        BatchSummary broadcast = broadcaster.broadcast(message, null);
+        long broadcastCalls = calls(before, SNSStubServer.PUBLISH);
+        System.out.println("[LOADTEST] Broadcast: " + broadcastCalls
+                + " Publish call(s) delivered to "
+                + calls(before, SNSStubServer.TOPIC_DELIVERIES)
+                + " endpoint(s), " + broadcast);
+        clientPool.shutdown();
+
+        /*
+         * b broadcasts cost b * fanOut by fan-out and setup + b * broadcast
+         * through topics.
+         */
+        System.out.println("[LOADTEST] Topics need fewer calls from broadcast "
+                + breakEven(setupCalls, fanOutCalls, broadcastCalls)
+                + " and less time from broadcast "
+                + breakEven(subscribe.getElapsedMillis(),
+                        fanOut.getElapsedMillis(),
+                        broadcast.getElapsedMillis()));
+    }
+
+    /**
+     * Reads the attributes of the load test application, which is taken to
+     * exist in every region, through stubs standing in for each region, and
+     * publishes through the router to endpoints of every region. Settings
+     * prefixed with a region, e.g. 'eu-west-1.latencymedian', apply to that
+     * region's stub only.
+     */
+    public void runRegions() throws IOException, InterruptedException {
+        String regionList = properties.getProperty(REGIONS, "").trim();
+        if (regionList.length() == 0) {
+            regionList = stubRegion(properties) + ",eu-west-1";
+        }
+        List<String> regions = new ArrayList<String>();
+        for (String region : regionList.split(",")) {
+            regions.add(region.trim());
+        }
+        final long count = number(REGION_READS, 20000);
+        int threads = (int) number(PUBLISH_THREADS, 32);
+
+        SNSClientPool clientPool = new SNSClientPool(new BasicAWSCredentials(
+                "stub", "stub"), threads * 2);
+        List<SNSStubServer> stubs = new ArrayList<SNSStubServer>();
+        try {
+            for (String region : regions) {
+                SNSStubServer regionStub = new SNSStubServer(0, region,
+                        regionProperties(region));
+                regionStub.start();
+                stubs.add(regionStub);
+                clientPool.setEndpoint(region, regionStub.getEndpoint());
+            }
+            final RegionRouter router = new RegionRouter(clientPool, regions);
+            final String homeArn = RegionRouter.inRegion(applicationArn,
+                    regions.get(0));
+            final RegionRouter.RegionCall<Map<String, String>> getAttributes = new RegionRouter.RegionCall<Map<String, String>>() {
+                @Override
+                public Map<String, String> call(AmazonSNS client, String arn) {
+                    return client.getPlatformApplicationAttributes(
+                            new GetPlatformApplicationAttributesRequest()
+                                    .withPlatformApplicationArn(arn))
+                            .getAttributes();
+                }
+            };
+            System.out.println("[LOADTEST] Reading " + homeArn + " " + count
+                    + " time(s) from " + threads + " thread(s) across "
+                    + regions);
+
+            timeCalls("Reads from " + regions.get(0), count, threads,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            router.execute(homeArn, getAttributes);
+                        }
+                    });
+            timeCalls("Hedged reads", count, threads, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        router.read(homeArn, getAttributes);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            final List<String> endpointArns = new ArrayList<String>();
+            for (String region : regions) {
+                String regionalArn = RegionRouter.inRegion(applicationArn,
+                        region);
+                for (int i = 0; i < 100; i++) {
+                    endpointArns.add(clientPool.getClient(region)
+                            .createPlatformEndpoint(
+                                    new CreatePlatformEndpointRequest()
+                                            .withPlatformApplicationArn(
+                                                    regionalArn).withToken(
+                                                    "regions" + i))
+                            .getEndpointArn());
+                }
+            }
+            final SNSMobilePush sample = new SNSMobilePush(
+                    clientPool.getClient(regions.get(0)));
+            sample.setDisplayMessages(false);
+            sample.setRegionRouter(router);
+            final PreparedMessage message = sample
+                    .prepare(SNSMobilePush.Platform.GCM);
+            final AtomicLong nextEndpoint = new AtomicLong();
+            timeCalls("Routed publishes", count, threads, new Runnable() {
+                @Override
+                public void run() {
+                    sample.publish(endpointArns.get((int) (nextEndpoint
+                            .getAndIncrement() % endpointArns.size())),
+                            message);
+                }
+            });
+            System.out.println("[LOADTEST] Regions " + router);
+            router.shutdown();
+        } finally {
+            clientPool.shutdown();
+            for (int i = 0; i < stubs.size(); i++) {
+                System.out.println("[LOADTEST] Stub calls in "
+                        + regions.get(i) + " " + stubs.get(i).getCounts());
+                stubs.get(i).stop();
+            }
+        }
+    }
+
+    /**
+     * Creates endpoints with a new client for every row and then with one
+     * shared client. Each row's client reads AwsCredentials.properties and
+     * builds its own connection pool, as every CreateEndpointJob did before
+     * the clients were shared; unlike those jobs it is shut down after its
+     * call, so that the run does not exhaust the sockets, which makes the
+     * figure for the client per row somewhat optimistic.
+     */
+    public void runClients() throws InterruptedException {
+        long rows = number(CLIENT_ROWS, 20000);
+        int threads = (int) number(CLIENT_THREADS, 32);
+        final AtomicLong nextRow = new AtomicLong();
+        System.out.println("[LOADTEST] Creating " + rows
+                + " endpoint(s) from " + threads
+                + " thread(s) with a client per row, then with a shared client");
+
+        timeCalls("Client per row", rows, threads, new Runnable() {
+            @Override
+            public void run() {
+                AmazonSNSClient rowClient;
+                try {
+                    rowClient = new AmazonSNSClient(new PropertiesCredentials(
+                            BatchCreatePlatformEndpointSample.class
+                                    .getResourceAsStream("AwsCredentials.properties")));
+                } catch (IOException ioe) {
+                    throw new AmazonClientException(
+                            "The credentials could not be read", ioe);
+                }
+                rowClient.setEndpoint(stub.getEndpoint());
+                try {
+                    createEndpoint(rowClient,
+                            "perrow" + nextRow.getAndIncrement());
+                } finally {
+                    rowClient.shutdown();
+                }
+            }
+        });
+
+        SNSClientPool clientPool = new SNSClientPool(new BasicAWSCredentials(
+                "stub", "stub"), threads, stub.getEndpoint());
+        final AmazonSNS client = clientPool.getClient(stubRegion(properties));
+        nextRow.set(0);
+        timeCalls("Shared client", rows, threads, new Runnable() {
+            @Override
+            public void run() {
+                createEndpoint(client, "shared" + nextRow.getAndIncrement());
+            }
+        });
+        clientPool.shutdown();
+    }
+
+    private void createEndpoint(AmazonSNS client, String token) {
+        client.createPlatformEndpoint(new CreatePlatformEndpointRequest()
+                .withPlatformApplicationArn(applicationArn).withToken(token));
+    }
+
+    private Properties regionProperties(String region) {
+        Properties regionProperties = new Properties();
+        regionProperties.putAll(properties);
+        String prefix = region + ".";
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)
+                    && properties.getProperty(key).trim().length() > 0) {
+                regionProperties.setProperty(key.substring(prefix.length()),
+                        properties.getProperty(key));
+            }
+        }
+        return regionProperties;
+    }
+
+    /*
+     * Makes count calls from several threads and prints their latency
+     * percentiles and errors.
+     */
+    private void timeCalls(String label, final long count, int threads,
+            final Runnable call) throws InterruptedException {
+        final AtomicLong next = new AtomicLong();
+        final Recorder latencies = new Recorder(MAX_LATENCY_MICROS, 3);
+        final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+        long start = System.nanoTime();
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread caller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (next.getAndIncrement() < count) {
+                        long callStart = System.nanoTime();
+                        String error = null;
+                        try {
+                            call.run();
+                        } catch (AmazonServiceException ase) {
+                            error = ase.getErrorCode();
+                        } catch (AmazonClientException ace) {
+                            error = ace.getClass().getSimpleName();
+                        }
+                        latencies.recordValue(Math.min(
+                                (System.nanoTime() - callStart) / 1000,
+                                MAX_LATENCY_MICROS));
+                        if (error != null) {
+                            AtomicLong errorCount = errors.putIfAbsent(error,
+                                    new AtomicLong(1));
+                            if (errorCount != null) {
+                                errorCount.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Histogram histogram = latencies.getIntervalHistogram();
+        Map<String, Long> errorCounts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+            errorCounts.put(error.getKey(), error.getValue().get());
+        }
+        System.out.println("[LOADTEST] " + label + " took "
+                + String.format("%.1f", seconds) + " s, "
+                + (long) (count / seconds) + " calls/s, p50 "
+                + histogram.getValueAtPercentile(50) / 1000.0 + " ms, p99 "
+                + histogram.getValueAtPercentile(99) / 1000.0 + " ms, max "
+                + histogram.getMaxValue() / 1000.0 + " ms, errors "
+                + errorCounts);
+    }
+
+    private static String breakEven(long setup, long fanOut, long broadcast) {
+        if (fanOut <= broadcast) {
+            return "never";
+        }
+        return Long.toString(setup / (fanOut - broadcast) + 1);
+    }
+
+    private long calls(Map<String, Long> before, String action) {
+        Long after = stub.getCounts().get(action);
+        Long previous = before.get(action);
+        return (after == null ? 0 : after) - (previous == null ? 0 : previous);
+    }
+
+    /*
+     * Registers the endpoints from several threads and returns their ARNs.
+     */
+    private List<String> registerEndpoints(final AmazonSNS client,
+            final int count, final String tokenPrefix, int threads)
+            throws InterruptedException {
+        final String[] endpointArns = new String[count];
+        final AtomicLong next = new AtomicLong();
+        List<Thread> registrars = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread registrar = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = (int) next.getAndIncrement()) < count) {
+                        endpointArns[i] = client.createPlatformEndpoint(
+                                new CreatePlatformEndpointRequest()
+                                        .withPlatformApplicationArn(
+                                                applicationArn)
+                                        .withToken(tokenPrefix + i))
+                                .getEndpointArn();
+                    }
+                }
+            });
+            registrar.start();
+            registrars.add(registrar);
+        }
+        for (Thread registrar : registrars) {
+            registrar.join();
+        }
+        return Arrays.asList(endpointArns);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties properties = new Properties();
+        properties.load(new InputStreamReader(LoadTest.class
+                .getResourceAsStream(LOADTESTPROPERTIES_FILE)));
+        int port = 0;
+        try {
+            port = Integer.parseInt(properties.getProperty(STUB_PORT, "0")
+                    .trim());
+        } catch (NumberFormatException nfe) {
+        }
+        SNSStubServer stub = new SNSStubServer(port, stubRegion(properties),
+                properties);
+        stub.start();
+        System.out.println("[LOADTEST] SNS stub listening on "
+                + stub.getEndpoint());
+        try {
+            LoadTest loadTest = new LoadTest(properties, stub);
+            String scenarios = properties.getProperty(SCENARIOS, "").trim();
+            if (scenarios.length() == 0) {
+                scenarios = UPLOAD_SCENARIO + "," + PUBLISH_SCENARIO;
+            }
+            for (String scenario : scenarios.split(",")) {
+                scenario = scenario.trim();
+                if (UPLOAD_SCENARIO.equals(scenario)) {
+                    loadTest.runUpload();
+                } else if (PUBLISH_SCENARIO.equals(scenario)) {
+                    loadTest.runPublish();
+                } else if (BROADCAST_SCENARIO.equals(scenario)) {
+                    loadTest.runBroadcast();
+                } else if (REGIONS_SCENARIO.equals(scenario)) {
+                    loadTest.runRegions();
+                } else if (HEDGING_SCENARIO.equals(scenario)) {
+                    loadTest.runHedging();
+                } else if (CLIENTS_SCENARIO.equals(scenario)) {
+                    loadTest.runClients();
+                } else if (HEAP_SCENARIO.equals(scenario)) {
+                    loadTest.runHeap();
+                } else if (MODES_SCENARIO.equals(scenario)) {
+                    loadTest.runModes();
+                } else {
+                    System.err.println("[ERROR] Unknown scenario " + scenario);
+                }
+            }
+            System.out.println("[LOADTEST] Stub calls " + stub.getCounts());
+        } finally {
+            stub.stop();
+        }
+    }
+}
@@ -0,0 +1,738 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the Amazon SNS Query API, for load testing the samples without
+ * calling SNS. It keeps platform applications and endpoints in memory and
+ * answers CreatePlatformApplication, DeletePlatformApplication,
+ * GetPlatformApplicationAttributes, CreatePlatformEndpoint,
+ * ListEndpointsByPlatformApplication, GetEndpointAttributes,
+ * SetEndpointAttributes, DeleteEndpoint and Publish in the XML the AWS SDK expects. Signatures are not checked.
+ *
+ * Every response is delayed, throttled or replaced by an error according to
+ * the {@link StubFaultProfile} of its action. Delayed responses are sent from
+ * a scheduler, so a slow stub does not tie up a thread per call.
+ *
+ * Applications need not be created first: any well-formed application ARN is
+ * taken to exist.
+ */
+public class SNSStubServer {
+
+    private static final String NAMESPACE = "http://sns.amazonaws.com/doc/2010-03-31/";
+    private static final String ACCOUNT = "123456789012";
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_MESSAGE_BYTES = 256 * 1024;
+
+    static final String CREATE_PLATFORM_APPLICATION = "CreatePlatformApplication";
+    static final String DELETE_PLATFORM_APPLICATION = "DeletePlatformApplication";
+    static final String GET_PLATFORM_APPLICATION_ATTRIBUTES = "GetPlatformApplicationAttributes";
+    static final String CREATE_PLATFORM_ENDPOINT = "CreatePlatformEndpoint";
+    static final String LIST_ENDPOINTS_BY_PLATFORM_APPLICATION = "ListEndpointsByPlatformApplication";
+    static final String GET_ENDPOINT_ATTRIBUTES = "GetEndpointAttributes";
+    static final String SET_ENDPOINT_ATTRIBUTES = "SetEndpointAttributes";
+    static final String DELETE_ENDPOINT = "DeleteEndpoint";
+    static final String PUBLISH = "Publish";
+    static final String CREATE_TOPIC = "CreateTopic";
+    static final String SUBSCRIBE = "Subscribe";
+    static final String TOPIC_DELIVERIES = "TopicDeliveries";
+
+    private static final String[] ACTIONS = { CREATE_PLATFORM_APPLICATION,
+            DELETE_PLATFORM_APPLICATION, GET_PLATFORM_APPLICATION_ATTRIBUTES,
+            CREATE_PLATFORM_ENDPOINT, LIST_ENDPOINTS_BY_PLATFORM_APPLICATION,
+            GET_ENDPOINT_ATTRIBUTES, SET_ENDPOINT_ATTRIBUTES, DELETE_ENDPOINT,
+            PUBLISH, CREATE_TOPIC, SUBSCRIBE };
+
+    /**
+     * Thrown while handling a call to answer it with an error response.
+     */
+    private static class StubException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        final String code;
+
+        StubException(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    private static class StubApplication {
+        final String arn;
+        final Map<String, String> attributes;
+        final ConcurrentNavigableMap<String, StubEndpoint> endpoints = new ConcurrentSkipListMap<String, StubEndpoint>();
+        final Map<String, StubEndpoint> endpointsByToken = new HashMap<String, StubEndpoint>();
+
+        StubApplication(String arn, Map<String, String> attributes) {
+            this.arn = arn;
+            this.attributes = attributes;
+        }
+    }
+
+    /*
+     * The attributes are guarded by the endpoint's application.
+     */
+    private static class StubEndpoint {
+        final String arn;
+        final StubApplication application;
+        String token;
+        String customUserData;
+        boolean enabled = true;
+
+        StubEndpoint(String arn, StubApplication application) {
+            this.arn = arn;
+            this.application = application;
+        }
+
+        Map<String, String> attributes() {
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            attributes.put("Token", token);
+            attributes.put("Enabled", Boolean.toString(enabled));
+            if (customUserData != null && customUserData.length() > 0) {
+                attributes.put("CustomUserData", customUserData);
+            }
+            return attributes;
+        }
+    }
+
+    /*
+     * Subscription ARNs by endpoint ARN. Only application endpoints can
+     * subscribe to the stub's topics.
+     */
+    private static class StubTopic {
+        final String arn;
+        final ConcurrentMap<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+
+        StubTopic(String arn) {
+            this.arn = arn;
+        }
+    }
+
+    private final String region;
+    private final Map<String, StubFaultProfile> profiles = new HashMap<String, StubFaultProfile>();
+    private final ConcurrentMap<String, StubApplication> applications = new ConcurrentHashMap<String, StubApplication>();
+    private final ConcurrentMap<String, StubEndpoint> endpoints = new ConcurrentHashMap<String, StubEndpoint>();
+    private final ConcurrentMap<String, StubTopic> topics = new ConcurrentHashMap<String, StubTopic>();
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final HttpServer server;
+    private final ExecutorService handlerExecutor;
+    private final ScheduledExecutorService responseScheduler;
+
+    /**
+     * @param port
+     *            - Port to listen on, or 0 for any free port
+     * @param region
+     *            - Region named in the ARNs the stub hands out
+     * @param properties
+     *            - Fault settings, see {@link StubFaultProfile}
+     */
+    public SNSStubServer(int port, String region, Properties properties)
+            throws IOException {
+        this.region = region;
+        for (String action : ACTIONS) {
+            profiles.put(action, new StubFaultProfile(properties, action));
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleExchange(exchange);
+            }
+        });
+        handlerExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors());
+        responseScheduler = Executors.newScheduledThreadPool(2);
+        server.setExecutor(handlerExecutor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlerExecutor.shutdownNow();
+        responseScheduler.shutdownNow();
+    }
+
+    /**
+     * @return the URL to set as the endpoint of an SNS client
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return the number of calls per action, and of calls throttled or
+     *         answered with each error code
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> count : counts.entrySet()) {
+            snapshot.put(count.getKey(), count.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the number of endpoints currently registered
+     */
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
+
+    /**
+     * Forgets every endpoint, so that a long upload can be measured without
+     * the memory of the stub growing with it.
+     */
+    void clearEndpoints() {
+        for (StubApplication application : applications.values()) {
+            synchronized (application) {
+                application.endpoints.clear();
+                application.endpointsByToken.clear();
+            }
+        }
+        endpoints.clear();
+    }
+
+    /**
+     * @return the number of subscriptions of all topics
+     */
+    public int getSubscriptionCount() {
+        int subscriptions = 0;
+        for (StubTopic topic : topics.values()) {
+            subscriptions += topic.subscriptions.size();
+        }
+        return subscriptions;
+    }
+
+    private void handleExchange(final HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parseForm(exchange);
+        String action = parameters.get("Action");
+        String body;
+        int status = 200;
+        try {
+            StubFaultProfile profile = profiles.get(action);
+            if (profile == null) {
+                throw new StubException(400, "InvalidAction",
+                        "The action " + action + " is not valid for this endpoint");
+            }
+            count(action);
+            if (profile.shouldThrottle()) {
+                throw new StubException(400, "Throttling", "Rate exceeded");
+            }
+            String error = profile.sampleError();
+            if (error != null) {
+                throw new StubException(statusOf(error), error,
+                        "Injected by the stub");
+            }
+            body = respond(action, handle(action, parameters));
+        } catch (StubException se) {
+            count(se.code);
+            status = se.status;
+            body = errorResponse(se);
+        }
+
+        final int responseStatus = status;
+        final byte[] response = body.getBytes("UTF-8");
+        StubFaultProfile profile = profiles.get(action);
+        long latency = profile == null ? 0 : profile.sampleLatencyMillis();
+        if (latency <= 0) {
+            send(exchange, responseStatus, response);
+            return;
+        }
+        responseScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                send(exchange, responseStatus, response);
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] response) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(status, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        } catch (IOException ioe) {
+            exchange.close();
+        }
+    }
+
+    /*
+     * Returns the content of the action's result element.
+     */
+    private String handle(String action, Map<String, String> parameters)
+            throws StubException {
+        if (CREATE_PLATFORM_APPLICATION.equals(action)) {
+            return createPlatformApplication(parameters);
+        } else if (DELETE_PLATFORM_APPLICATION.equals(action)) {
+            StubApplication application = applications.remove(required(
+                    parameters, "PlatformApplicationArn"));
+            if (application != null) {
+                for (String endpointArn : application.endpoints.keySet()) {
+                    endpoints.remove(endpointArn);
+                }
+            }
+            return null;
+        } else if (GET_PLATFORM_APPLICATION_ATTRIBUTES.equals(action)) {
+            return attributes(application(required(parameters,
+                    "PlatformApplicationArn")).attributes);
+        } else if (CREATE_PLATFORM_ENDPOINT.equals(action)) {
+            return createPlatformEndpoint(parameters);
+        } else if (LIST_ENDPOINTS_BY_PLATFORM_APPLICATION.equals(action)) {
+            return listEndpoints(parameters);
+        } else if (GET_ENDPOINT_ATTRIBUTES.equals(action)) {
+            StubEndpoint endpoint = endpoint(required(parameters,
+                    "EndpointArn"));
+            synchronized (endpoint.application) {
+                return attributes(endpoint.attributes());
+            }
+        } else if (SET_ENDPOINT_ATTRIBUTES.equals(action)) {
+            setEndpointAttributes(parameters);
+            return null;
+        } else if (DELETE_ENDPOINT.equals(action)) {
+            StubEndpoint endpoint = endpoints.remove(required(parameters,
+                    "EndpointArn"));
+            if (endpoint != null) {
+                synchronized (endpoint.application) {
+                    endpoint.application.endpoints.remove(endpoint.arn);
+                    endpoint.application.endpointsByToken
+                            .remove(endpoint.token);
+                }
+            }
+            return null;
+        } else if (CREATE_TOPIC.equals(action)) {
+            return createTopic(parameters);
+        } else if (SUBSCRIBE.equals(action)) {
+            return subscribe(parameters);
+        } else {
+            return publish(parameters);
+        }
+    }
+
+    private String createPlatformApplication(Map<String, String> parameters)
+            throws StubException {
+        String arn = "arn:aws:sns:" + region + ":" + ACCOUNT + ":app/"
+                + required(parameters, "Platform") + "/"
+                + required(parameters, "Name");
+        StubApplication application = new StubApplication(arn,
+                attributeParameters(parameters));
+        StubApplication existing = applications.putIfAbsent(arn, application);
+        if (existing != null && !existing.attributes.equals(application.attributes)) {
+            throw new StubException(400, "InvalidParameter",
+                    "Invalid parameter: Name Reason: An application with the same name but different properties already exists");
+        }
+        return element("PlatformApplicationArn", arn);
+    }
+
+    private String createPlatformEndpoint(Map<String, String> parameters)
+            throws StubException {
+        StubApplication application = application(required(parameters,
+                "PlatformApplicationArn"));
+        String token = required(parameters, "Token");
+        String customUserData = parameters.get("CustomUserData");
+        if (customUserData == null) {
+            customUserData = "";
+        }
+        synchronized (application) {
+            StubEndpoint endpoint = application.endpointsByToken.get(token);
+            if (endpoint != null) {
+                if (!customUserData.equals(endpoint.customUserData)) {
+                    throw new StubException(400, "InvalidParameter",
+                            "Invalid parameter: Token Reason: Endpoint "
+                                    + endpoint.arn
+                                    + " already exists with the same Token, but different attributes.");
+                }
+                return element("EndpointArn", endpoint.arn);
+            }
+            endpoint = new StubEndpoint(application.arn.replace(":app/",
+                    ":endpoint/") + "/" + UUID.randomUUID(), application);
+            endpoint.token = token;
+            endpoint.customUserData = customUserData;
+            application.endpoints.put(endpoint.arn, endpoint);
+            application.endpointsByToken.put(token, endpoint);
+            endpoints.put(endpoint.arn, endpoint);
+            return element("EndpointArn", endpoint.arn);
+        }
+    }
+
+    /*
+     * The next token is the ARN of the last endpoint on the page, so pages
+     * stay consistent while endpoints are added or deleted.
+     */
+    private String listEndpoints(Map<String, String> parameters)
+            throws StubException {
+        StubApplication application = application(required(parameters,
+                "PlatformApplicationArn"));
+        String nextToken = parameters.get("NextToken");
+        Map<String, StubEndpoint> page = nextToken == null ? application.endpoints
+                : application.endpoints.tailMap(nextToken, false);
+        StringBuilder result = new StringBuilder("<Endpoints>");
+        String last = null;
+        int size = 0;
+        for (StubEndpoint endpoint : page.values()) {
+            if (size == PAGE_SIZE) {
+                break;
+            }
+            Map<String, String> attributes;
+            synchronized (application) {
+                attributes = endpoint.attributes();
+            }
+            result.append("<member>")
+                    .append(element("EndpointArn", endpoint.arn))
+                    .append(attributes(attributes)).append("</member>");
+            last = endpoint.arn;
+            size++;
+        }
+        result.append("</Endpoints>");
+        if (size == PAGE_SIZE
+                && application.endpoints.higherKey(last) != null) {
+            result.append(element("NextToken", last));
+        }
+        return result.toString();
+    }
+
+    private void setEndpointAttributes(Map<String, String> parameters)
+            throws StubException {
+        StubEndpoint endpoint = endpoint(required(parameters, "EndpointArn"));
+        Map<String, String> attributes = attributeParameters(parameters);
+        synchronized (endpoint.application) {
+            if (attributes.containsKey("Token")) {
+                endpoint.application.endpointsByToken.remove(endpoint.token);
+                endpoint.token = attributes.get("Token");
+                endpoint.application.endpointsByToken.put(endpoint.token,
+                        endpoint);
+            }
+            if (attributes.containsKey("CustomUserData")) {
+                endpoint.customUserData = attributes.get("CustomUserData");
+            }
+            if (attributes.containsKey("Enabled")) {
+                endpoint.enabled = Boolean.parseBoolean(attributes
+                        .get("Enabled"));
+            }
+        }
+    }
+
+    private String createTopic(Map<String, String> parameters)
+            throws StubException {
+        String name = required(parameters, "Name");
+        if (!name.matches("[A-Za-z0-9_-]{1,256}")) {
+            throw new StubException(400, "InvalidParameter",
+                    "Invalid parameter: Topic Name");
+        }
+        String arn = "arn:aws:sns:" + region + ":" + ACCOUNT + ":" + name;
+        topics.putIfAbsent(arn, new StubTopic(arn));
+        return element("TopicArn", arn);
+    }
+
+    private String subscribe(Map<String, String> parameters)
+            throws StubException {
+        StubTopic topic = topic(required(parameters, "TopicArn"));
+        if (!"application".equals(required(parameters, "Protocol"))) {
+            throw new StubException(400, "InvalidParameter",
+                    "Invalid parameter: Protocol Reason: The stub only subscribes application endpoints");
+        }
+        StubEndpoint endpoint = endpoint(required(parameters, "Endpoint"));
+        String subscriptionArn = topic.arn + ":" + UUID.randomUUID();
+        String existing = topic.subscriptions.putIfAbsent(endpoint.arn,
+                subscriptionArn);
+        return element("SubscriptionArn", existing == null ? subscriptionArn
+                : existing);
+    }
+
+    private String publish(Map<String, String> parameters) throws StubException {
+        String targetArn = parameters.get("TargetArn");
+        String topicArn = parameters.get("TopicArn");
+        if (targetArn == null && topicArn == null) {
+            throw new StubException(400, "InvalidParameter",
+                    "Invalid parameter: TopicArn or TargetArn Reason: no value for required parameter");
+        }
+        String message = required(parameters, "Message");
+        try {
+            if (message.getBytes("UTF-8").length > MAX_MESSAGE_BYTES) {
+                throw new StubException(400, "InvalidParameter",
+                        "Invalid parameter: Message too long");
+            }
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+        if ("json".equals(parameters.get("MessageStructure"))
+                && !message.contains("\"default\"")) {
+            throw new StubException(400, "InvalidParameter",
+                    "Invalid parameter: Message Structure - No default entry in JSON message body");
+        }
+        if (targetArn == null) {
+            // Counts the deliveries SNS would make to enabled endpoints
+            long deliveries = 0;
+            for (String endpointArn : topic(topicArn).subscriptions.keySet()) {
+                StubEndpoint endpoint = endpoints.get(endpointArn);
+                if (endpoint == null) {
+                    continue;
+                }
+                synchronized (endpoint.application) {
+                    if (endpoint.enabled) {
+                        deliveries++;
+                    }
+                }
+            }
+            count(TOPIC_DELIVERIES, deliveries);
+            return element("MessageId", UUID.randomUUID().toString());
+        }
+        StubEndpoint endpoint = endpoint(targetArn);
+        synchronized (endpoint.application) {
+            if (!endpoint.enabled) {
+                throw new StubException(400, "EndpointDisabled",
+                        "Endpoint is disabled");
+            }
+        }
+        return element("MessageId", UUID.randomUUID().toString());
+    }
+
+    private StubApplication application(String arn) throws StubException {
+        StubApplication application = applications.get(arn);
+        if (application != null) {
+            return application;
+        }
+        if (!arn.matches("arn:aws:sns:[^:]+:[0-9]+:app/[^/]+/[^/]+")) {
+            throw new StubException(404, "NotFound",
+                    "PlatformApplication does not exist");
+        }
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("Enabled", "true");
+        application = new StubApplication(arn, attributes);
+        StubApplication existing = applications.putIfAbsent(arn, application);
+        return existing == null ? application : existing;
+    }
+
+    private StubTopic topic(String arn) throws StubException {
+        StubTopic topic = topics.get(arn);
+        if (topic == null) {
+            throw new StubException(404, "NotFound", "Topic does not exist");
+        }
+        return topic;
+    }
+
+    private StubEndpoint endpoint(String arn) throws StubException {
+        StubEndpoint endpoint = endpoints.get(arn);
+        if (endpoint == null) {
+            throw new StubException(404, "NotFound", "Endpoint does not exist");
+        }
+        return endpoint;
+    }
+
+    private static String required(Map<String, String> parameters, String name)
+            throws StubException {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new StubException(400, "InvalidParameter",
+                    "Invalid parameter: " + name);
+        }
+        return value;
+    }
+
+    /*
+     * Attributes are sent as Attributes.entry.N.key and Attributes.entry.N.value
+     */
+    private static Map<String, String> attributeParameters(
+            Map<String, String> parameters) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 1;; i++) {
+            String key = parameters.get("Attributes.entry." + i + ".key");
+            if (key == null) {
+                return attributes;
+            }
+            attributes.put(key, parameters.get("Attributes.entry." + i
+                    + ".value"));
+        }
+    }
+
+    private static int statusOf(String errorCode) {
+        if ("InternalError".equals(errorCode)) {
+            return 500;
+        } else if ("ServiceUnavailable".equals(errorCode)) {
+            return 503;
+        } else if ("NotFound".equals(errorCode)) {
+            return 404;
+        } else if ("AuthorizationError".equals(errorCode)) {
+            return 403;
+        }
+        return 400;
+    }
+
+    private void count(String name) {
+        count(name, 1);
+    }
+
+    private void count(String name, long delta) {
+        AtomicLong count = counts.get(name);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent(name, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.addAndGet(delta);
+    }
+
+    private static Map<String, String> parseForm(HttpExchange exchange)
+            throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        String form = exchange.getRequestURI().getRawQuery();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            form = read(exchange.getRequestBody());
+        }
+        if (form == null) {
+            return parameters;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals),
+                        "UTF-8"), URLDecoder.decode(pair.substring(equals + 1),
+                        "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) > 0) {
+            text.append(buffer, 0, read);
+        }
+        reader.close();
+        return text.toString();
+    }
+
+    private static String respond(String action, String result) {
+        StringBuilder response = new StringBuilder();
+        response.append("<").append(action).append("Response xmlns=\"")
+                .append(NAMESPACE).append("\">");
+        if (result != null) {
+            response.append("<").append(action).append("Result>")
+                    .append(result).append("</").append(action)
+                    .append("Result>");
+        }
+        response.append("<ResponseMetadata>")
+                .append(element("RequestId", UUID.randomUUID().toString()))
+                .append("</ResponseMetadata></").append(action)
+                .append("Response>");
+        return response.toString();
+    }
+
+    private static String errorResponse(StubException se) {
+        return "<ErrorResponse xmlns=\"" + NAMESPACE + "\"><Error>"
+                + element("Type", se.status >= 500 ? "Receiver" : "Sender")
+                + element("Code", se.code) + element("Message", se.getMessage())
+                + "</Error>" + element("RequestId", UUID.randomUUID().toString())
+                + "</ErrorResponse>";
+    }
+
+    private static String attributes(Map<String, String> attributes) {
+        StringBuilder xml = new StringBuilder("<Attributes>");
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            xml.append("<entry>").append(element("key", attribute.getKey()))
+                    .append(element("value", attribute.getValue()))
+                    .append("</entry>");
+        }
+        return xml.append("</Attributes>").toString();
+    }
+
+    private static String element(String name, String value) {
+        StringBuilder xml = new StringBuilder();
+        xml.append('<').append(name).append('>');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '<':
+                xml.append("&lt;");
+                break;
+            case '>':
+                xml.append("&gt;");
+                break;
+            case '&':
+                xml.append("&amp;");
+                break;
+            case '"':
+                xml.append("&quot;");
+                break;
+            default:
+                xml.append(c);
+            }
+        }
+        return xml.append("</").append(name).append('>').toString();
+    }
+
+    /**
+     * Runs the stub on its own so that the samples can be pointed at it
+     * through their endpoint setting. The port, region and fault settings are
+     * read from LoadTest.properties.
+     */
+    public static void main(String[] args) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new InputStreamReader(SNSStubServer.class
+                .getResourceAsStream(LoadTest.LOADTESTPROPERTIES_FILE)));
+        int port = 8080;
+        try {
+            port = Integer.parseInt(properties.getProperty(LoadTest.STUB_PORT,
+                    "8080").trim());
+        } catch (NumberFormatException nfe) {
+        }
+        SNSStubServer stub = new SNSStubServer(port,
+                LoadTest.stubRegion(properties), properties);
+        stub.start();
+        System.out.println("[INFO] SNS stub listening on "
+                + stub.getEndpoint());
+    }
+}
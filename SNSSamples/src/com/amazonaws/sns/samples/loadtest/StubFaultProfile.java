@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency, throttling and errors injected by the {@link SNSStubServer} for
+ * one action. Each setting is read from the property named after the action,
+ * e.g. 'CreatePlatformEndpoint.latencymedian', and falls back to the plain
+ * property, e.g. 'latencymedian'.
+ *
+ * Latencies follow a log-normal distribution, the usual shape of service
+ * response times: half of the calls take less than the median, and a sigma
+ * of 0 makes every call take exactly the median.
+ */
+public class StubFaultProfile {
+
+    static final String LATENCY_MEDIAN = "latencymedian";
+    static final String LATENCY_SIGMA = "latencysigma";
+    static final String LATENCY_MAX = "latencymax";
+    static final String THROTTLE_RATE = "throttlerate";
+    static final String MAX_TPS = "maxtps";
+    static final String ERRORS = "errors";
+
+    private final double latencyMedianMillis;
+    private final double latencySigma;
+    private final double latencyMaxMillis;
+    private final double throttleRate;
+    private final double maxTps;
+    private final Map<String, Double> errorRates = new LinkedHashMap<String, Double>();
+
+    /*
+     * Token bucket holding up to one second of maxTps calls. Guarded by this.
+     */
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param properties
+     *            - Stub settings
+     * @param action
+     *            - Query API action the profile applies to
+     */
+    public StubFaultProfile(Properties properties, String action) {
+        this.latencyMedianMillis = number(properties, action, LATENCY_MEDIAN, 0);
+        this.latencySigma = number(properties, action, LATENCY_SIGMA, 0);
+        this.latencyMaxMillis = number(properties, action, LATENCY_MAX, 10000);
+        this.throttleRate = number(properties, action, THROTTLE_RATE, 0);
+        this.maxTps = number(properties, action, MAX_TPS, 0);
+        this.tokens = this.maxTps;
+
+        /*
+         * errors is a list of error codes and the fraction of calls failing
+         * with each, e.g. InternalError:0.01,EndpointDisabled:0.001
+         */
+        String errors = value(properties, action, ERRORS);
+        if (errors != null) {
+            for (String error : errors.split(",")) {
+                String[] parts = error.trim().split(":");
+                if (parts.length != 2) {
+                    continue;
+                }
+                try {
+                    errorRates.put(parts[0].trim(),
+                            Double.parseDouble(parts[1].trim()));
+                } catch (NumberFormatException nfe) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the time in milliseconds to wait before responding to a call
+     */
+    public long sampleLatencyMillis() {
+        if (latencyMedianMillis <= 0) {
+            return 0;
+        }
+        double latency = latencyMedianMillis
+                * Math.exp(latencySigma
+                        * ThreadLocalRandom.current().nextGaussian());
+        return (long) Math.min(latency, latencyMaxMillis);
+    }
+
+    /**
+     * @return true if the call should be throttled, either at random or
+     *         because the action's calls per second exceed maxtps
+     */
+    public boolean shouldThrottle() {
+        if (throttleRate > 0
+                && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            return true;
+        }
+        if (maxTps <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(maxTps, tokens + (now - lastRefillNanos)
+                    * maxTps / 1e9);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return true;
+            }
+            tokens--;
+            return false;
+        }
+    }
+
+    /**
+     * @return the code of the error to inject into the call, or null
+     */
+    public String sampleError() {
+        if (errorRates.isEmpty()) {
+            return null;
+        }
+        double sample = ThreadLocalRandom.current().nextDouble();
+        for (Map.Entry<String, Double> errorRate : errorRates.entrySet()) {
+            sample -= errorRate.getValue();
+            if (sample < 0) {
+                return errorRate.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static String value(Properties properties, String action,
+            String key) {
+        String value = properties.getProperty(action + "." + key);
+        if (value == null || value.trim().length() == 0) {
+            value = properties.getProperty(key);
+        }
+        return value == null || value.trim().length() == 0 ? null : value
+                .trim();
+    }
+
+    private static double number(Properties properties, String action,
+            String key, double defaultValue) {
+        String value = value(properties, action, key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Message for ADM, whose data carries the text under "message".
+ */
+public final class AdmPayload extends PlatformPayload {
+
+    private final String message;
+    private final String consolidationKey;
+    private final int expiresAfter;
+
+    public AdmPayload(String message, String consolidationKey,
+            int expiresAfter) {
+        this.message = message;
+        this.consolidationKey = consolidationKey;
+        this.expiresAfter = expiresAfter;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getConsolidationKey() {
+        return consolidationKey;
+    }
+
+    public int getExpiresAfter() {
+        return expiresAfter;
+    }
+
+    @Override
+    public String getText() {
+        return message;
+    }
+
+    @Override
+    public AdmPayload withText(String text) {
+        return new AdmPayload(text, consolidationKey, expiresAfter);
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator generator) throws IOException {
+        generator.writeStringField("consolidationKey", consolidationKey);
+        generator.writeNumberField("expiresAfter", expiresAfter);
+        generator.writeObjectFieldStart("data");
+        generator.writeStringField("message", message);
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Message for APNS and APNS_SANDBOX: {"aps":{"badge":..,"alert":..,"sound":..}}
+ */
+public final class ApnsPayload extends PlatformPayload {
+
+    private final String alert;
+    private final int badge;
+    private final String sound;
+    /*
+     * When set, the MessageTemplate slot written in place of the badge
+     */
+    private final String badgeSlot;
+
+    public ApnsPayload(String alert, int badge, String sound) {
+        this(alert, badge, sound, null);
+    }
+
+    private ApnsPayload(String alert, int badge, String sound,
+            String badgeSlot) {
+        this.alert = alert;
+        this.badge = badge;
+        this.sound = sound;
+        this.badgeSlot = badgeSlot;
+    }
+
+    /**
+     * Returns a copy writing the number slot of a {@link MessageTemplate} in
+     * place of the badge.
+     */
+    public ApnsPayload withBadgeSlot(String slotName) {
+        return new ApnsPayload(alert, badge, sound,
+                MessageTemplate.numberSlot(slotName));
+    }
+
+    public String getAlert() {
+        return alert;
+    }
+
+    public int getBadge() {
+        return badge;
+    }
+
+    public String getSound() {
+        return sound;
+    }
+
+    @Override
+    public String getText() {
+        return alert;
+    }
+
+    @Override
+    public ApnsPayload withText(String text) {
+        return new ApnsPayload(text, badge, sound, badgeSlot);
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart("aps");
+        if (badgeSlot != null) {
+            generator.writeStringField("badge", badgeSlot);
+        } else {
+            generator.writeNumberField("badge", badge);
+        }
+        generator.writeStringField("alert", alert);
+        generator.writeStringField("sound", sound);
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.sns.samples.bulkupload.AdaptiveRateLimiter;
+import com.amazonaws.sns.samples.bulkupload.SNSClientPool;
+
+/**
+ * Makes many calls of one kind through the async clients of a
+ * {@link SNSClientPool}. At most maxInFlight calls are outstanding at once,
+ * and every region has its own {@link AdaptiveRateLimiter}, since SNS limits
+ * the call rate per region.
+ *
+ * Throttled calls, server errors and client errors the SDK marks retryable
+ * are retried with backoff. The retry is started from a scheduler thread of
+ * the batch once the backoff and the wait for the rate limiter have passed,
+ * so the callback threads of the async clients never sleep. Requests which
+ * still fail, or fail for other reasons, are written to the result file as
+ * 'request,errorCode,message'.
+ *
+ * A batch is used once: submit every request, then call finish.
+ */
+abstract class AsyncCallBatch<REQUEST extends AmazonWebServiceRequest, RESULT> {
+
+    private final SNSClientPool clientPool;
+    private final int maxInFlight;
+    private final double targetTps;
+    private final int maxRetries;
+    private final String resultFileName;
+
+    private final Map<String, AdaptiveRateLimiter> rateLimiters = new HashMap<String, AdaptiveRateLimiter>();
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService retryScheduler;
+    private volatile RegionRouter regionRouter;
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Writer resultWriter;
+    private final long startMillis;
+
+    /**
+     * @param clientPool
+     *            - Pool providing the async client of each region; its
+     *            maximum number of connections should be at least maxInFlight
+     * @param maxInFlight
+     *            - Maximum number of calls awaiting a response
+     * @param targetTps
+     *            - Maximum calls per second in each region, or 0 to limit the
+     *            rate only once throttling starts
+     * @param maxRetries
+     *            - Number of times a throttled or transient failure is
+     *            retried before the request is written to the result file
+     * @param resultFileName
+     *            - File receiving the requests which failed, or null
+     */
+    AsyncCallBatch(SNSClientPool clientPool, int maxInFlight,
+            double targetTps, int maxRetries, String resultFileName)
+            throws IOException {
+        this.clientPool = clientPool;
+        this.maxInFlight = maxInFlight;
+        this.targetTps = targetTps;
+        this.maxRetries = maxRetries;
+        this.resultFileName = resultFileName;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.retryScheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "AsyncCallBatch-retry");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.resultWriter = resultFileName == null ? null
+                : new BufferedWriter(new FileWriter(resultFileName));
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Records the latency and errors of every call with the router's region
+     * averages, or with none if null.
+     */
+    void setRegionRouter(RegionRouter regionRouter) {
+        this.regionRouter = regionRouter;
+    }
+
+    /**
+     * Starts the call on the client without waiting for it.
+     */
+    protected abstract Future<RESULT> call(AmazonSNSAsync client,
+            REQUEST request, AsyncHandler<REQUEST, RESULT> handler);
+
+    /**
+     * Returns what identifies the request in the result file.
+     */
+    protected abstract String describe(REQUEST request);
+
+    /**
+     * Called once for every request that succeeded.
+     */
+    protected void onSuccess(REQUEST request, RESULT result) {
+    }
+
+    /**
+     * Called once for every request that failed and will not be retried,
+     * before it is written to the result file.
+     */
+    protected void onFailure(REQUEST request, Exception exception) {
+    }
+
+    /**
+     * Starts the call in the region, waiting first for a free slot and for
+     * the region's rate limiter.
+     */
+    void submit(String region, REQUEST request) throws InterruptedException {
+        AdaptiveRateLimiter rateLimiter = rateLimiter(region);
+        inFlight.acquire();
+        try {
+            rateLimiter.acquire();
+        } catch (InterruptedException ie) {
+            inFlight.release();
+            throw ie;
+        }
+        start(region, clientPool.getAsyncClient(region), rateLimiter, request,
+                0);
+    }
+
+    /**
+     * Records a request which is not worth sending.
+     */
+    void fail(String request, String errorCode, String message) {
+        failed.incrementAndGet();
+        if (resultWriter == null) {
+            return;
+        }
+        synchronized (resultWriter) {
+            try {
+                resultWriter.write(request + "," + errorCode + "," + message);
+                resultWriter.write(System.getProperty("line.separator"));
+            } catch (IOException ioe) {
+                System.err.println("[ERROR] Error writing to "
+                        + resultFileName + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits for the calls in flight and closes the result file.
+     */
+    BatchSummary finish() throws IOException {
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        retryScheduler.shutdown();
+        if (resultWriter != null) {
+            synchronized (resultWriter) {
+                resultWriter.close();
+            }
+        }
+
+        long throttles = 0;
+        long retries = 0;
+        synchronized (rateLimiters) {
+            for (AdaptiveRateLimiter rateLimiter : rateLimiters.values()) {
+                throttles += rateLimiter.getThrottles();
+                retries += rateLimiter.getRetries();
+            }
+        }
+        return new BatchSummary(succeeded.get(), failed.get(), throttles,
+                retries, System.currentTimeMillis() - startMillis);
+    }
+
+    private AdaptiveRateLimiter rateLimiter(String region) {
+        synchronized (rateLimiters) {
+            AdaptiveRateLimiter rateLimiter = rateLimiters.get(region);
+            if (rateLimiter == null) {
+                rateLimiter = new AdaptiveRateLimiter(targetTps);
+                rateLimiters.put(region, rateLimiter);
+            }
+            return rateLimiter;
+        }
+    }
+
+    /*
+     * The callback releases the slot of the request once it has its outcome.
+     */
+    private void start(final String region, final AmazonSNSAsync asyncClient,
+            final AdaptiveRateLimiter rateLimiter, final REQUEST request,
+            final int attempt) {
+        final long startNanos = System.nanoTime();
+        try {
+            call(asyncClient, request, new AsyncHandler<REQUEST, RESULT>() {
+                @Override
+                public void onSuccess(REQUEST request, RESULT result) {
+                    recordCall(region, startNanos, null);
+                    rateLimiter.onSuccess();
+                    succeeded.incrementAndGet();
+                    try {
+                        AsyncCallBatch.this.onSuccess(request, result);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+
+                @Override
+                public void onError(Exception exception) {
+                    recordCall(region, startNanos, exception);
+                    if (shouldRetry(rateLimiter, exception, attempt)) {
+                        long delayNanos = TimeUnit.MILLISECONDS
+                                .toNanos(rateLimiter.backOffMillis(attempt))
+                                + rateLimiter.reserve();
+                        try {
+                            retryScheduler.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    start(region, asyncClient, rateLimiter,
+                                            request, attempt + 1);
+                                }
+                            }, delayNanos, TimeUnit.NANOSECONDS);
+                            return;
+                        } catch (RejectedExecutionException ree) {
+                            // Shut down: the request fails below
+                        }
+                    }
+                    try {
+                        AsyncCallBatch.this.onFailure(request, exception);
+                        fail(describe(request), errorCode(exception),
+                                errorMessage(exception));
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            try {
+                onFailure(request, re);
+                fail(describe(request), errorCode(re), errorMessage(re));
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private void recordCall(String region, long startNanos,
+            Exception exception) {
+        RegionRouter router = regionRouter;
+        if (router != null) {
+            router.record(region, startNanos, exception);
+        }
+    }
+
+    /*
+     * Reports throttling to the rate limiter and returns true if the call
+     * should be tried again.
+     */
+    private boolean shouldRetry(AdaptiveRateLimiter rateLimiter,
+            Exception exception, int attempt) {
+        boolean transientFailure;
+        if (exception instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) exception;
+            if (AdaptiveRateLimiter.isThrottling(ase)) {
+                rateLimiter.onThrottle();
+                transientFailure = true;
+            } else {
+                transientFailure = ase.getStatusCode() >= 500;
+            }
+        } else if (exception instanceof AmazonClientException) {
+            transientFailure = ((AmazonClientException) exception)
+                    .isRetryable();
+        } else {
+            transientFailure = false;
+        }
+        return transientFailure && attempt < maxRetries;
+    }
+
+    static String errorCode(Exception exception) {
+        if (exception instanceof AmazonServiceException
+                && ((AmazonServiceException) exception).getErrorCode() != null) {
+            return ((AmazonServiceException) exception).getErrorCode();
+        }
+        return exception.getClass().getSimpleName();
+    }
+
+    static String errorMessage(Exception exception) {
+        if (exception instanceof AmazonServiceException) {
+            return ((AmazonServiceException) exception).getErrorMessage();
+        }
+        return exception.getMessage();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+/**
+ * Outcome of a batch of calls made by {@link FanOutPublisher} or
+ * {@link TopicBroadcaster}.
+ */
+public class BatchSummary {
+    private final long succeeded;
+    private final long failed;
+    private final long throttles;
+    private final long retries;
+    private final long elapsedMillis;
+
+    BatchSummary(long succeeded, long failed, long throttles, long retries,
+            long elapsedMillis) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.throttles = throttles;
+        this.retries = retries;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getThrottles() {
+        return throttles;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return succeeded + " succeeded, " + failed + " failed, " + throttles
+                + " throttled, " + retries + " retried in " + elapsedMillis
+                + " ms";
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads endpoint ARNs from a file, one per line, for {@link FanOutPublisher}
+ * and {@link TopicBroadcaster}. Lines may also be records of the good file
+ * written by the bulk upload sample, '<line> endpointArn,token,userData', of
+ * which the ARN is taken. Blank lines are skipped.
+ */
+public class EndpointArnReader implements Iterator<String>, Closeable {
+
+    private final String fileName;
+    private final BufferedReader reader;
+    private String next;
+
+    public EndpointArnReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        this.reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), "UTF-8"));
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                String line = reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+                next = endpointArn(line);
+            }
+            return true;
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Error reading " + fileName, ioe);
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String endpointArn = next;
+        next = null;
+        return endpointArn;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /*
+     * Returns the ARN of the line, or null for a blank line.
+     */
+    private static String endpointArn(String line) {
+        line = line.trim();
+        if (line.startsWith("<")) {
+            int end = line.indexOf('>');
+            if (end > 0) {
+                line = line.substring(end + 1).trim();
+            }
+        }
+        int comma = line.indexOf(',');
+        if (comma >= 0) {
+            line = line.substring(0, comma).trim();
+        }
+        return line.length() == 0 ? null : line;
+    }
+}
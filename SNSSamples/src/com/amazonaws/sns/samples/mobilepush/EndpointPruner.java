@@ -0,0 +1,610 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.DeleteEndpointRequest;
+import com.amazonaws.services.sns.model.DeleteEndpointResult;
+import com.amazonaws.services.sns.model.GetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.GetEndpointAttributesResult;
+import com.amazonaws.services.sns.model.SetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.SetEndpointAttributesResult;
+import com.amazonaws.sns.samples.bulkupload.SNSClientPool;
+
+/**
+ * Keeps track of endpoints which SNS has disabled, usually because the push
+ * service reported their token as invalid, so that they are not published
+ * to again. Publishers record every EndpointDisabled failure here and skip
+ * the recorded endpoints on later sends.
+ *
+ * The disabled endpoints are kept in a store file with one ARN per line,
+ * which is appended to as endpoints are recorded and read back on start.
+ * Pruning removes the endpoints from SNS: an endpoint whose device has
+ * registered a new token, as told by the {@link TokenSource}, gets the new
+ * token and is enabled again, and any other is deleted if GetEndpointAttributes
+ * shows it still disabled. An endpoint the application has enabled again in
+ * the meantime is only dropped from the store, so a live device is never
+ * deleted. Pruned endpoints are dropped from the store, which is then
+ * rewritten, so it only ever holds the endpoints still waiting to be pruned.
+ *
+ * Pruning calls are made as by {@link FanOutPublisher}, with bounded
+ * concurrency, adaptive rate limiting and retries.
+ */
+public class EndpointPruner {
+
+    /**
+     * Error code of a publish to a disabled endpoint.
+     */
+    public static final String ENDPOINT_DISABLED = "EndpointDisabled";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Knows the tokens devices registered after their endpoint was created,
+     * e.g. from the application's own registration records.
+     */
+    public interface TokenSource {
+        /**
+         * Returns the token the device of the endpoint registered since the
+         * endpoint was disabled, or null if it has not registered a new one.
+         */
+        String getNewToken(String endpointArn);
+    }
+
+    private final SNSClientPool clientPool;
+    private final String storeFileName;
+    private final int maxInFlight;
+    private final double targetTps;
+    private final int maxRetries;
+    private volatile TokenSource tokenSource;
+    private volatile EndpointRegistry endpointRegistry;
+
+    private final Set<String> disabled = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /*
+     * Guards the store file, which is appended to and rewritten
+     */
+    private final Object storeLock = new Object();
+    private Writer storeWriter;
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong reenabled = new AtomicLong();
+    private final AtomicLong pruneFailures = new AtomicLong();
+
+    /**
+     * Reads the endpoints recorded by earlier runs from the store file, if it
+     * exists.
+     *
+     * @param clientPool
+     *            - Pool providing the async client of each region
+     * @param storeFileName
+     *            - File holding the disabled endpoints
+     * @param maxInFlight
+     *            - Maximum number of pruning calls awaiting a response
+     * @param targetTps
+     *            - Maximum pruning calls per second in each region, or 0 to
+     *            limit the rate only once throttling starts
+     * @param maxRetries
+     *            - Number of times a throttled or transient failure is
+     *            retried before the endpoint is left for the next prune
+     */
+    public EndpointPruner(SNSClientPool clientPool, String storeFileName,
+            int maxInFlight, double targetTps, int maxRetries)
+            throws IOException {
+        this.clientPool = clientPool;
+        this.storeFileName = storeFileName;
+        this.maxInFlight = maxInFlight;
+        this.targetTps = targetTps;
+        this.maxRetries = maxRetries;
+        if (new File(storeFileName).exists()) {
+            load();
+        }
+        storeWriter = openStore();
+    }
+
+    /**
+     * Sets where pruning looks for new tokens. Without one, every disabled
+     * endpoint is deleted.
+     */
+    public void setTokenSource(TokenSource tokenSource) {
+        this.tokenSource = tokenSource;
+    }
+
+    /**
+     * Sets the registry sharing the disabled endpoints, or null for none.
+     * The endpoints recorded so far and from now on are disabled in the
+     * registry, which is told about the endpoints pruning deletes or enables
+     * again.
+     */
+    public void setEndpointRegistry(EndpointRegistry endpointRegistry) {
+        this.endpointRegistry = endpointRegistry;
+        if (endpointRegistry != null) {
+            for (String endpointArn : disabled) {
+                endpointRegistry.onDisabled(endpointArn);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the exception is SNS rejecting a publish because the
+     * endpoint is disabled.
+     */
+    public static boolean isEndpointDisabled(Exception exception) {
+        return exception instanceof AmazonServiceException
+                && ENDPOINT_DISABLED.equals(((AmazonServiceException) exception)
+                        .getErrorCode());
+    }
+
+    public boolean isDisabled(String endpointArn) {
+        return disabled.contains(endpointArn);
+    }
+
+    /**
+     * Returns true, and counts the endpoint as skipped, if it is disabled and
+     * should not be published to.
+     */
+    public boolean skip(String endpointArn) {
+        if (disabled.contains(endpointArn)) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true, and counts the endpoint as skipped, if it is disabled
+     * here or in the registry, whose disabled endpoints are recorded for
+     * pruning.
+     */
+    public boolean skip(String endpointArn, EndpointRegistry registry) {
+        if (skip(endpointArn)) {
+            return true;
+        }
+        if (registry == null || !registry.isDisabled(endpointArn)) {
+            return false;
+        }
+        record(endpointArn);
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records the endpoint if the exception failing a publish to it shows
+     * that it is disabled.
+     *
+     * @return true if the endpoint was recorded as disabled
+     */
+    public boolean recordFailure(String endpointArn, Exception exception) {
+        if (!isEndpointDisabled(exception)) {
+            return false;
+        }
+        record(endpointArn);
+        return true;
+    }
+
+    /**
+     * Records the endpoint as disabled.
+     */
+    public void record(String endpointArn) {
+        synchronized (storeLock) {
+            if (!disabled.add(endpointArn)) {
+                return;
+            }
+            EndpointRegistry registry = endpointRegistry;
+            if (registry != null) {
+                registry.onDisabled(endpointArn);
+            }
+            try {
+                storeWriter.write(endpointArn);
+                storeWriter.write(System.getProperty("line.separator"));
+                storeWriter.flush();
+            } catch (IOException ioe) {
+                System.err.println("[ERROR] Error writing to " + storeFileName
+                        + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Enables again or deletes every endpoint recorded so far, waits for the
+     * last call to complete and rewrites the store without the endpoints
+     * pruned. Endpoints found enabled again are dropped without being
+     * deleted. Endpoints whose calls failed stay in the store for the next
+     * prune.
+     *
+     * @return the number of endpoints pruned
+     */
+    public synchronized int prune() throws IOException, InterruptedException {
+        TokenSource tokens = tokenSource;
+        Map<String, String> newTokens = new HashMap<String, String>();
+        List<String> obsolete = new ArrayList<String>();
+        for (String endpointArn : disabled) {
+            String token = tokens == null ? null : tokens
+                    .getNewToken(endpointArn);
+            if (token == null) {
+                obsolete.add(endpointArn);
+            } else {
+                newTokens.put(endpointArn, token);
+            }
+        }
+
+        long before = deleted.get() + refreshed.get();
+        refresh(newTokens);
+        delete(stillDisabled(obsolete));
+        synchronized (storeLock) {
+            storeWriter.close();
+            try {
+                save();
+            } finally {
+                // Endpoints are still recorded after a failed save
+                storeWriter = openStore();
+            }
+        }
+        return (int) (deleted.get() + refreshed.get() - before);
+    }
+
+    /**
+     * Prunes in the background every period until {@link #stop} is called.
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            throw new IllegalStateException("The pruner is already started");
+        }
+        scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "EndpointPruner");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prune();
+                } catch (IOException ioe) {
+                    System.err.println("[ERROR] Error pruning endpoints: "
+                            + ioe.getMessage());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException re) {
+                    /*
+                     * The executor cancels a task which throws, so a bad pass
+                     * is logged and the next one runs as scheduled.
+                     */
+                    System.err.println("[ERROR] Error pruning endpoints: "
+                            + re);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops background pruning, waiting for a prune in progress, and closes
+     * the store file.
+     */
+    public void stop() throws IOException, InterruptedException {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = scheduler;
+            scheduler = null;
+        }
+        if (stopped != null) {
+            stopped.shutdown();
+            stopped.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        synchronized (storeLock) {
+            storeWriter.close();
+        }
+    }
+
+    /**
+     * Number of publishes skipped because the endpoint was disabled.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Number of disabled endpoints waiting to be pruned.
+     */
+    public int getDisabledCount() {
+        return disabled.size();
+    }
+
+    /**
+     * Number of endpoints deleted by pruning, or found to be deleted already.
+     */
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * Number of endpoints given a new token and enabled again by pruning.
+     */
+    public long getRefreshed() {
+        return refreshed.get();
+    }
+
+    /**
+     * Number of endpoints dropped by pruning because they had been enabled
+     * again since they were recorded.
+     */
+    public long getReenabled() {
+        return reenabled.get();
+    }
+
+    /**
+     * Number of pruning calls which failed, leaving the endpoint in the
+     * store.
+     */
+    public long getPruneFailures() {
+        return pruneFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return disabled.size() + " disabled, " + skipped.get() + " skipped, "
+                + deleted.get() + " deleted, " + refreshed.get()
+                + " refreshed, " + reenabled.get() + " enabled again, "
+                + pruneFailures.get() + " failed to prune";
+    }
+
+    private void refresh(final Map<String, String> newTokens)
+            throws IOException, InterruptedException {
+        AsyncCallBatch<SetEndpointAttributesRequest, SetEndpointAttributesResult> batch = new AsyncCallBatch<SetEndpointAttributesRequest, SetEndpointAttributesResult>(
+                clientPool, maxInFlight, targetTps, maxRetries, null) {
+            @Override
+            protected Future<SetEndpointAttributesResult> call(
+                    AmazonSNSAsync client, SetEndpointAttributesRequest request,
+                    AsyncHandler<SetEndpointAttributesRequest, SetEndpointAttributesResult> handler) {
+                return client.setEndpointAttributesAsync(request, handler);
+            }
+
+            @Override
+            protected String describe(SetEndpointAttributesRequest request) {
+                return request.getEndpointArn();
+            }
+
+            @Override
+            protected void onSuccess(SetEndpointAttributesRequest request,
+                    SetEndpointAttributesResult result) {
+                disabled.remove(request.getEndpointArn());
+                refreshed.incrementAndGet();
+                EndpointRegistry registry = endpointRegistry;
+                if (registry != null) {
+                    registry.onAttributesSet(request.getEndpointArn(),
+                            request.getAttributes());
+                }
+            }
+
+            @Override
+            protected void onFailure(SetEndpointAttributesRequest request,
+                    Exception exception) {
+                pruneFailed(request.getEndpointArn(), exception);
+            }
+        };
+        try {
+            for (Map.Entry<String, String> newToken : newTokens.entrySet()) {
+                String region = RegionRouter.regionOf(newToken.getKey());
+                if (region == null) {
+                    disabled.remove(newToken.getKey());
+                    continue;
+                }
+                Map<String, String> attributes = new HashMap<String, String>();
+                attributes.put("Token", newToken.getValue());
+                attributes.put("Enabled", "true");
+                batch.submit(region, new SetEndpointAttributesRequest()
+                        .withEndpointArn(newToken.getKey())
+                        .withAttributes(attributes));
+            }
+        } finally {
+            batch.finish();
+        }
+    }
+
+    /*
+     * Returns the endpoints GetEndpointAttributes shows to be disabled still.
+     * The others are dropped from the store, and the registry is given their
+     * current attributes.
+     */
+    private List<String> stillDisabled(List<String> obsolete)
+            throws IOException, InterruptedException {
+        final ConcurrentLinkedQueue<String> confirmed = new ConcurrentLinkedQueue<String>();
+        AsyncCallBatch<GetEndpointAttributesRequest, GetEndpointAttributesResult> batch = new AsyncCallBatch<GetEndpointAttributesRequest, GetEndpointAttributesResult>(
+                clientPool, maxInFlight, targetTps, maxRetries, null) {
+            @Override
+            protected Future<GetEndpointAttributesResult> call(
+                    AmazonSNSAsync client, GetEndpointAttributesRequest request,
+                    AsyncHandler<GetEndpointAttributesRequest, GetEndpointAttributesResult> handler) {
+                return client.getEndpointAttributesAsync(request, handler);
+            }
+
+            @Override
+            protected String describe(GetEndpointAttributesRequest request) {
+                return request.getEndpointArn();
+            }
+
+            @Override
+            protected void onSuccess(GetEndpointAttributesRequest request,
+                    GetEndpointAttributesResult result) {
+                String endpointArn = request.getEndpointArn();
+                if ("false".equalsIgnoreCase(result.getAttributes().get(
+                        "Enabled"))) {
+                    confirmed.add(endpointArn);
+                    return;
+                }
+                disabled.remove(endpointArn);
+                reenabled.incrementAndGet();
+                EndpointRegistry registry = endpointRegistry;
+                if (registry != null) {
+                    registry.onAttributesSet(endpointArn,
+                            result.getAttributes());
+                }
+            }
+
+            @Override
+            protected void onFailure(GetEndpointAttributesRequest request,
+                    Exception exception) {
+                pruneFailed(request.getEndpointArn(), exception);
+            }
+        };
+        try {
+            for (String endpointArn : obsolete) {
+                String region = RegionRouter.regionOf(endpointArn);
+                if (region == null) {
+                    disabled.remove(endpointArn);
+                    continue;
+                }
+                batch.submit(region, new GetEndpointAttributesRequest()
+                        .withEndpointArn(endpointArn));
+            }
+        } finally {
+            batch.finish();
+        }
+        return new ArrayList<String>(confirmed);
+    }
+
+    private void delete(List<String> obsolete) throws IOException,
+            InterruptedException {
+        AsyncCallBatch<DeleteEndpointRequest, DeleteEndpointResult> batch = new AsyncCallBatch<DeleteEndpointRequest, DeleteEndpointResult>(
+                clientPool, maxInFlight, targetTps, maxRetries, null) {
+            @Override
+            protected Future<DeleteEndpointResult> call(AmazonSNSAsync client,
+                    DeleteEndpointRequest request,
+                    AsyncHandler<DeleteEndpointRequest, DeleteEndpointResult> handler) {
+                return client.deleteEndpointAsync(request, handler);
+            }
+
+            @Override
+            protected String describe(DeleteEndpointRequest request) {
+                return request.getEndpointArn();
+            }
+
+            @Override
+            protected void onSuccess(DeleteEndpointRequest request,
+                    DeleteEndpointResult result) {
+                disabled.remove(request.getEndpointArn());
+                deleted.incrementAndGet();
+                EndpointRegistry registry = endpointRegistry;
+                if (registry != null) {
+                    registry.onDeleted(request.getEndpointArn());
+                }
+            }
+
+            @Override
+            protected void onFailure(DeleteEndpointRequest request,
+                    Exception exception) {
+                pruneFailed(request.getEndpointArn(), exception);
+            }
+        };
+        try {
+            for (String endpointArn : obsolete) {
+                String region = RegionRouter.regionOf(endpointArn);
+                if (region == null) {
+                    disabled.remove(endpointArn);
+                    continue;
+                }
+                batch.submit(region, new DeleteEndpointRequest()
+                        .withEndpointArn(endpointArn));
+            }
+        } finally {
+            batch.finish();
+        }
+    }
+
+    /*
+     * An endpoint which no longer exists needs no pruning; any other failure
+     * leaves it for the next prune.
+     */
+    private void pruneFailed(String endpointArn, Exception exception) {
+        if ("NotFound".equals(AsyncCallBatch.errorCode(exception))) {
+            disabled.remove(endpointArn);
+            deleted.incrementAndGet();
+            EndpointRegistry registry = endpointRegistry;
+            if (registry != null) {
+                registry.onDeleted(endpointArn);
+            }
+        } else {
+            pruneFailures.incrementAndGet();
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(storeFileName), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    disabled.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Writer openStore() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                storeFileName, true), UTF8));
+    }
+
+    private void save() throws IOException {
+        FileReplacer.replace(storeFileName, new FileReplacer.Contents() {
+            @Override
+            public void write(BufferedWriter writer) throws IOException {
+                for (String endpointArn : disabled) {
+                    writer.write(endpointArn);
+                    writer.newLine();
+                }
+            }
+        });
+    }
+}
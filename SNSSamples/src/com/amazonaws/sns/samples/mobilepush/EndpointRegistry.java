@@ -0,0 +1,494 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.Endpoint;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationResult;
+import com.amazonaws.sns.samples.bulkupload.AdaptiveRateLimiter;
+
+/**
+ * In-process copy of the endpoint attributes a publisher checks before
+ * sending, so that Enabled and CustomUserData are looked up in memory
+ * instead of with a GetEndpointAttributes call per endpoint. Endpoints are
+ * found by ARN or by device token. {@link SNSMobilePush} and
+ * {@link FanOutPublisher} skip the endpoints it knows to be disabled.
+ *
+ * An {@link EndpointPruner} given the registry shares its disabled
+ * endpoints with it: the endpoints recorded by the pruner are disabled
+ * here, and a publisher with both skips and records with the pruner the
+ * endpoints disabled here.
+ *
+ * The registry is filled from the good file of the bulk upload sample or by
+ * listing the endpoints of a platform application, and is then kept current
+ * from the results of the calls the application makes: created endpoints
+ * are added, a publish failing with EndpointDisabled disables the endpoint,
+ * deleted endpoints are removed and new attributes are applied. Changes made
+ * outside the application, e.g. SNS disabling an endpoint after feedback
+ * from the push service, are seen at the next publish to the endpoint.
+ *
+ * At most maxEntries endpoints are kept; beyond that a least recently used
+ * endpoint is evicted. Each endpoint is one immutable {@link Registration}
+ * which both indexes share, along with the ARN and token strings. Besides
+ * those strings and its user data, an endpoint costs the Registration and
+ * an entry in each index, about 120 bytes on a 64-bit JVM with compressed
+ * references. A lookup allocates nothing.
+ *
+ * Every lookup reorders the endpoints for eviction, so the endpoints are
+ * split by ARN hash between stripes, each with its own lock, and lookups of
+ * endpoints in different stripes do not wait for each other. The endpoint
+ * evicted is the least recently used of the stripe an endpoint is added to,
+ * which is close to the least recently used overall.
+ */
+public class EndpointRegistry {
+
+    private static final String ENABLED = "Enabled";
+    private static final String CUSTOM_USER_DATA = "CustomUserData";
+    private static final String TOKEN = "Token";
+
+    /**
+     * Attributes of a registered endpoint. Updates replace the registration,
+     * so one returned by a lookup never changes.
+     */
+    public static final class Registration {
+        private final String endpointArn;
+        private final String token;
+        private final String userData;
+        private final boolean enabled;
+
+        Registration(String endpointArn, String token, String userData,
+                boolean enabled) {
+            this.endpointArn = endpointArn;
+            this.token = token;
+            this.userData = userData;
+            this.enabled = enabled;
+        }
+
+        public String getEndpointArn() {
+            return endpointArn;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getUserData() {
+            return userData;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public String toString() {
+            return endpointArn + "," + token + "," + userData
+                    + (enabled ? "" : ",disabled");
+        }
+    }
+
+    private static final int MAX_STRIPES = 16;
+
+    /*
+     * Registries of fewer than this many endpoints per stripe have fewer
+     * stripes, so that eviction stays close to least recently used.
+     */
+    private static final int MIN_STRIPE_ENTRIES = 64;
+
+    /**
+     * The endpoints whose ARNs hash to one stripe. The ARN map and the
+     * counters are guarded by the stripe's lock. The map is kept in access
+     * order, so its eldest entry is the least recently used.
+     */
+    private final class Stripe {
+        private final LinkedHashMap<String, Registration> byArn;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Stripe(int capacity) {
+            this.byArn = new LinkedHashMap<String, Registration>(capacity,
+                    0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                /*
+                 * Called after an endpoint is added and counted. The stripe
+                 * keeps at least the endpoint just added.
+                 */
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Registration> eldest) {
+                    if (entries.get() <= maxEntries || size() == 1) {
+                        return false;
+                    }
+                    removeToken(eldest.getValue());
+                    entries.decrementAndGet();
+                    evictions++;
+                    return true;
+                }
+            };
+        }
+    }
+
+    private final int maxEntries;
+    private final Stripe[] stripes;
+    private final AtomicInteger entries = new AtomicInteger();
+    /*
+     * A registration is only added to or removed from the token map under
+     * the lock of its ARN's stripe.
+     */
+    private final ConcurrentHashMap<String, Registration> byToken;
+
+    /**
+     * @param maxEntries
+     *            - Number of endpoints kept before a least recently used one
+     *            is evicted
+     */
+    public EndpointRegistry(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        int stripeCount = Integer.highestOneBit(Math.max(1,
+                Math.min(MAX_STRIPES, maxEntries / MIN_STRIPE_ENTRIES)));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe((int) Math.min(1 << 30, maxEntries
+                    / stripeCount / 3L * 4 + 16));
+        }
+        int capacity = (int) Math.min(1 << 30, maxEntries / 3L * 4 + 16);
+        this.byToken = new ConcurrentHashMap<String, Registration>(capacity,
+                0.75f, stripeCount);
+    }
+
+    /**
+     * Registers the endpoints of a good file written by the bulk upload
+     * sample, with lines '&lt;lineNumber&gt; endpointArn,token,userData'. The
+     * endpoints are taken to be enabled, as they were when uploaded.
+     *
+     * @return the number of endpoints read
+     */
+    public int loadGoodFile(String fileName) throws IOException {
+        int loaded = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("<")) {
+                    int end = line.indexOf('>');
+                    if (end > 0) {
+                        line = line.substring(end + 1).trim();
+                    }
+                }
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] fields = line.split(",", 3);
+                if (fields.length < 2) {
+                    throw new IOException("Malformed line in " + fileName
+                            + ": " + line);
+                }
+                put(fields[0], fields[1], fields.length > 2 ? fields[2] : "",
+                        true);
+                loaded++;
+            }
+        } finally {
+            reader.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * Pages through ListEndpointsByPlatformApplication and registers every
+     * endpoint of the application, enabled or not. Throttled calls are
+     * retried with backoff.
+     *
+     * @param client
+     *            - Client for the application's region
+     * @param applicationArn
+     *            - ARN of the platform application
+     * @param maxRetries
+     *            - Number of times a throttled page is retried
+     * @return the number of endpoints listed
+     */
+    public int list(AmazonSNS client, String applicationArn, int maxRetries)
+            throws InterruptedException {
+        AdaptiveRateLimiter backOff = new AdaptiveRateLimiter(0);
+        int listed = 0;
+        String nextToken = null;
+        do {
+            ListEndpointsByPlatformApplicationResult page;
+            for (int attempt = 0;; attempt++) {
+                try {
+                    page = client
+                            .listEndpointsByPlatformApplication(new ListEndpointsByPlatformApplicationRequest()
+                                    .withPlatformApplicationArn(applicationArn)
+                                    .withNextToken(nextToken));
+                    break;
+                } catch (AmazonServiceException ase) {
+                    if (!AdaptiveRateLimiter.isThrottling(ase)
+                            || attempt >= maxRetries) {
+                        throw ase;
+                    }
+                }
+                backOff.backOff(attempt);
+            }
+            for (Endpoint endpoint : page.getEndpoints()) {
+                Map<String, String> attributes = endpoint.getAttributes();
+                put(endpoint.getEndpointArn(), attributes.get(TOKEN),
+                        attributes.get(CUSTOM_USER_DATA),
+                        Boolean.parseBoolean(attributes.get(ENABLED)));
+                listed++;
+            }
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        return listed;
+    }
+
+    /**
+     * Returns the registration of the endpoint, or null if it is not known
+     * and GetEndpointAttributes has to be asked.
+     */
+    public Registration get(String endpointArn) {
+        Stripe stripe = stripe(endpointArn);
+        synchronized (stripe) {
+            Registration registration = stripe.byArn.get(endpointArn);
+            if (registration == null) {
+                stripe.misses++;
+            } else {
+                stripe.hits++;
+            }
+            return registration;
+        }
+    }
+
+    /**
+     * Returns true if the endpoint is known and disabled. An endpoint not
+     * known is taken to be enabled.
+     */
+    public boolean isDisabled(String endpointArn) {
+        Registration registration = get(endpointArn);
+        return registration != null && !registration.enabled;
+    }
+
+    /**
+     * Returns the registration of the endpoint last registered for the
+     * token, or null if none is known.
+     */
+    public Registration getByToken(String token) {
+        Registration registration = byToken.get(token);
+        if (registration == null) {
+            /*
+             * Misses are counted in the stripe of the token, as there is no
+             * ARN to choose one by.
+             */
+            Stripe stripe = stripe(token);
+            synchronized (stripe) {
+                stripe.misses++;
+            }
+            return null;
+        }
+        Stripe stripe = stripe(registration.endpointArn);
+        synchronized (stripe) {
+            stripe.hits++;
+            // Counts as a use of the endpoint for eviction
+            stripe.byArn.get(registration.endpointArn);
+        }
+        return registration;
+    }
+
+    /**
+     * Registers the endpoint, replacing what was known about it.
+     *
+     * @param token
+     *            - Device token, or null if not known
+     */
+    public void put(String endpointArn, String token, String userData,
+            boolean enabled) {
+        Registration registration = new Registration(endpointArn, token,
+                userData, enabled);
+        Stripe stripe = stripe(endpointArn);
+        synchronized (stripe) {
+            if (!stripe.byArn.containsKey(endpointArn)) {
+                entries.incrementAndGet();
+            }
+            Registration previous = stripe.byArn.put(endpointArn,
+                    registration);
+            if (previous != null) {
+                removeToken(previous);
+            }
+            if (token != null) {
+                byToken.put(token, registration);
+            }
+        }
+    }
+
+    /**
+     * Records an endpoint returned by CreatePlatformEndpoint. SNS returns
+     * the existing endpoint for a token it already knows, which is then
+     * updated.
+     */
+    public void onCreated(String endpointArn, String token, String userData) {
+        put(endpointArn, token, userData, true);
+    }
+
+    /**
+     * Records a successful publish, which shows the endpoint to be enabled.
+     */
+    public void onPublished(String endpointArn) {
+        Stripe stripe = stripe(endpointArn);
+        synchronized (stripe) {
+            Registration registration = stripe.byArn.get(endpointArn);
+            if (registration != null && !registration.enabled) {
+                put(endpointArn, registration.token, registration.userData,
+                        true);
+            }
+        }
+    }
+
+    /**
+     * Records a failed publish: an EndpointDisabled failure disables the
+     * endpoint and a NotFound failure removes it.
+     */
+    public void onPublishFailed(String endpointArn,
+            Exception exception) {
+        if (EndpointPruner.isEndpointDisabled(exception)) {
+            onDisabled(endpointArn);
+        } else if ("NotFound".equals(AsyncCallBatch.errorCode(exception))) {
+            onDeleted(endpointArn);
+        }
+    }
+
+    /**
+     * Records a known endpoint as disabled.
+     */
+    public void onDisabled(String endpointArn) {
+        Stripe stripe = stripe(endpointArn);
+        synchronized (stripe) {
+            Registration registration = stripe.byArn.get(endpointArn);
+            if (registration != null && registration.enabled) {
+                put(endpointArn, registration.token, registration.userData,
+                        false);
+            }
+        }
+    }
+
+    /**
+     * Records an endpoint removed by DeleteEndpoint.
+     */
+    public void onDeleted(String endpointArn) {
+        Stripe stripe = stripe(endpointArn);
+        synchronized (stripe) {
+            Registration registration = stripe.byArn.remove(endpointArn);
+            if (registration != null) {
+                entries.decrementAndGet();
+                removeToken(registration);
+            }
+        }
+    }
+
+    /**
+     * Applies the attributes given to SetEndpointAttributes to a known
+     * endpoint.
+     */
+    public void onAttributesSet(String endpointArn,
+            Map<String, String> attributes) {
+        Stripe stripe = stripe(endpointArn);
+        synchronized (stripe) {
+            Registration registration = stripe.byArn.get(endpointArn);
+            if (registration == null) {
+                return;
+            }
+            String token = attributes.containsKey(TOKEN) ? attributes
+                    .get(TOKEN) : registration.token;
+            String userData = attributes.containsKey(CUSTOM_USER_DATA) ? attributes
+                    .get(CUSTOM_USER_DATA) : registration.userData;
+            boolean enabled = attributes.containsKey(ENABLED) ? Boolean
+                    .parseBoolean(attributes.get(ENABLED))
+                    : registration.enabled;
+            put(endpointArn, token, userData, enabled);
+        }
+    }
+
+    public int size() {
+        return entries.get();
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return size() + " endpoints, " + getHits() + " hits, " + getMisses()
+                + " misses, " + getEvictions() + " evicted";
+    }
+
+    /*
+     * The maps of a stripe index their tables by the low bits of the hash,
+     * so the stripe is chosen by other bits, or each stripe would only use a
+     * part of its table.
+     */
+    private Stripe stripe(String key) {
+        return stripes[((key.hashCode() * 0x9E3779B9) >>> 16)
+                & (stripes.length - 1)];
+    }
+
+    /*
+     * Another endpoint may have been registered for the token since.
+     */
+    private void removeToken(Registration registration) {
+        if (registration.token != null) {
+            byToken.remove(registration.token, registration);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.sns.samples.bulkupload.AdaptiveRateLimiter;
+import com.amazonaws.sns.samples.bulkupload.SNSClientPool;
+
+/**
+ * Publishes one message to many endpoints. Each endpoint is published to
+ * with the async client of the endpoint's region, taken from a shared
+ * {@link SNSClientPool}, and at most maxInFlight calls are outstanding at
+ * once. Every region has its own {@link AdaptiveRateLimiter}, since SNS
+ * limits the publish rate per region.
+ *
+ * Throttled calls, server errors and client errors the SDK marks retryable
+ * are retried with backoff. Endpoints which still fail, or fail for other
+ * reasons such as a disabled endpoint, are written to the result file as
+ * 'endpointArn,errorCode,message'.
+ *
+ * With an {@link EndpointPruner}, endpoints it knows to be disabled are
+ * skipped and endpoints found disabled are recorded with it. An
+ * {@link EndpointRegistry} is kept current with the result of every publish,
+ * and the endpoints it knows to be disabled are skipped as well.
+ */
+public class FanOutPublisher {
+
+    private final SNSClientPool clientPool;
+    private final int maxInFlight;
+    private final double targetTps;
+    private final int maxRetries;
+    private final String resultFileName;
+    private volatile EndpointPruner endpointPruner;
+    private volatile EndpointRegistry endpointRegistry;
+    private volatile RegionRouter regionRouter;
+
+    /**
+     * @param clientPool
+     *            - Pool providing the async client of each region; its
+     *            maximum number of connections should be at least maxInFlight
+     * @param maxInFlight
+     *            - Maximum number of publish calls awaiting a response
+     * @param targetTps
+     *            - Maximum publish calls per second in each region, or 0 to
+     *            limit the rate only once throttling starts
+     * @param maxRetries
+     *            - Number of times a throttled or transient failure is
+     *            retried before the endpoint is written to the result file
+     * @param resultFileName
+     *            - File receiving the endpoints which failed
+     */
+    public FanOutPublisher(SNSClientPool clientPool, int maxInFlight,
+            double targetTps, int maxRetries, String resultFileName) {
+        this.clientPool = clientPool;
+        this.maxInFlight = maxInFlight;
+        this.targetTps = targetTps;
+        this.maxRetries = maxRetries;
+        this.resultFileName = resultFileName;
+    }
+
+    /**
+     * Sets the pruner which skips and records disabled endpoints, or null to
+     * publish to every endpoint.
+     */
+    public void setEndpointPruner(EndpointPruner endpointPruner) {
+        this.endpointPruner = endpointPruner;
+    }
+
+    /**
+     * Sets the registry kept current with the results of publishing, or
+     * null for none. Endpoints it knows to be disabled are not published to.
+     */
+    public void setEndpointRegistry(EndpointRegistry endpointRegistry) {
+        this.endpointRegistry = endpointRegistry;
+    }
+
+    /**
+     * Sets the router every publish goes through, or null to send each to
+     * the region of its ARN without one. The router should be built on the
+     * same client pool. Endpoints of a region it does not route to fail with
+     * InvalidParameter, and every publish counts in the averages of its
+     * region.
+     */
+    public void setRegionRouter(RegionRouter regionRouter) {
+        this.regionRouter = regionRouter;
+    }
+
+    /**
+     * Publishes the message to every endpoint and waits for the last call to
+     * complete. Endpoints are read from the iterator only as permits free up,
+     * so it may be backed by a file of any size.
+     *
+     * @param endpointArns
+     *            - Endpoints to publish to
+     * @param message
+     *            - Message to publish, shared by every request
+     */
+    public BatchSummary publish(Iterator<String> endpointArns,
+            PreparedMessage message) throws IOException, InterruptedException {
+        final EndpointPruner pruner = endpointPruner;
+        final EndpointRegistry registry = endpointRegistry;
+        RegionRouter router = regionRouter;
+        AsyncCallBatch<PublishRequest, PublishResult> batch = new AsyncCallBatch<PublishRequest, PublishResult>(
+                clientPool, maxInFlight, targetTps, maxRetries, resultFileName) {
+            @Override
+            protected Future<PublishResult> call(AmazonSNSAsync client,
+                    PublishRequest request,
+                    AsyncHandler<PublishRequest, PublishResult> handler) {
+                return client.publishAsync(request, handler);
+            }
+
+            @Override
+            protected String describe(PublishRequest request) {
+                return request.getTargetArn();
+            }
+
+            @Override
+            protected void onSuccess(PublishRequest request,
+                    PublishResult result) {
+                if (registry != null) {
+                    registry.onPublished(request.getTargetArn());
+                }
+            }
+
+            @Override
+            protected void onFailure(PublishRequest request,
+                    Exception exception) {
+                if (pruner != null) {
+                    pruner.recordFailure(request.getTargetArn(), exception);
+                }
+                if (registry != null) {
+                    registry.onPublishFailed(request.getTargetArn(),
+                            exception);
+                }
+            }
+        };
+        batch.setRegionRouter(router);
+        BatchSummary summary;
+        try {
+            while (endpointArns.hasNext()) {
+                String endpointArn = endpointArns.next();
+                if (pruner != null ? pruner.skip(endpointArn, registry)
+                        : registry != null && registry.isDisabled(endpointArn)) {
+                    continue;
+                }
+                String region;
+                if (router == null) {
+                    region = RegionRouter.regionOf(endpointArn);
+                    if (region == null) {
+                        batch.fail(endpointArn, "InvalidParameter",
+                                "Malformed endpoint ARN");
+                        continue;
+                    }
+                } else {
+                    try {
+                        region = router.route(endpointArn);
+                    } catch (IllegalArgumentException iae) {
+                        batch.fail(endpointArn, "InvalidParameter",
+                                iae.getMessage());
+                        continue;
+                    }
+                }
+                batch.submit(region, message.toPublishRequest(endpointArn));
+            }
+        } finally {
+            summary = batch.finish();
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Rewrites the files the samples keep between runs. The new contents are
+ * written to a file next to the target, synced, and then renamed over the
+ * target, so a crash leaves either the old file or the new one.
+ */
+final class FileReplacer {
+
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * Writes the new contents of a file.
+     */
+    interface Contents {
+        void write(BufferedWriter writer) throws IOException;
+    }
+
+    private FileReplacer() {
+    }
+
+    static void replace(String fileName, Contents contents) throws IOException {
+        File tempFile = new File(fileName + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    out, UTF8));
+            contents.write(writer);
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), new File(fileName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
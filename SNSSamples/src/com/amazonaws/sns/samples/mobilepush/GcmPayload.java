@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Message for GCM, whose data carries the text under "message".
+ */
+public final class GcmPayload extends PlatformPayload {
+
+    private final String collapseKey;
+    private final String message;
+    private final boolean delayWhileIdle;
+    private final int timeToLive;
+    private final boolean dryRun;
+
+    public GcmPayload(String collapseKey, String message,
+            boolean delayWhileIdle, int timeToLive, boolean dryRun) {
+        this.collapseKey = collapseKey;
+        this.message = message;
+        this.delayWhileIdle = delayWhileIdle;
+        this.timeToLive = timeToLive;
+        this.dryRun = dryRun;
+    }
+
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isDelayWhileIdle() {
+        return delayWhileIdle;
+    }
+
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    @Override
+    public String getText() {
+        return message;
+    }
+
+    @Override
+    public GcmPayload withText(String text) {
+        return new GcmPayload(collapseKey, text, delayWhileIdle, timeToLive,
+                dryRun);
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator generator) throws IOException {
+        generator.writeStringField("collapse_key", collapseKey);
+        generator.writeObjectFieldStart("data");
+        generator.writeStringField("message", message);
+        generator.writeEndObject();
+        generator.writeBooleanField("delay_while_idle", delayWhileIdle);
+        generator.writeNumberField("time_to_live", timeToLive);
+        generator.writeBooleanField("dry_run", dryRun);
+    }
+}
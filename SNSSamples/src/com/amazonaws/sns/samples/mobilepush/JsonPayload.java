@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A JSON object written with a streaming JsonGenerator instead of being
+ * assembled from maps and serialized by an ObjectMapper. Subclasses write
+ * their fields in the order jsonify wrote the maps they replace, so the
+ * messages are unchanged.
+ *
+ * Each thread writes into its own buffer, which is reused by every payload
+ * that thread serializes.
+ */
+public abstract class JsonPayload {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final ThreadLocal<StringBuilderWriter> buffers = new ThreadLocal<StringBuilderWriter>() {
+        @Override
+        protected StringBuilderWriter initialValue() {
+            return new StringBuilderWriter();
+        }
+    };
+
+    /**
+     * Writes the fields of the object, between its braces.
+     */
+    protected abstract void writeFields(JsonGenerator generator)
+            throws IOException;
+
+    /**
+     * Serializes the object. Payloads nested as strings are serialized
+     * before the object holding them, so one buffer per thread suffices.
+     */
+    public String toJson() {
+        StringBuilderWriter buffer = buffers.get();
+        buffer.reset();
+        write(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Returns the size of the serialized object in UTF-8 by counting the
+     * bytes as the generator writes them, without building the String.
+     */
+    public int getSizeInBytes() {
+        Utf8CountingWriter counter = new Utf8CountingWriter();
+        write(counter);
+        return counter.getCount();
+    }
+
+    private void write(Writer writer) {
+        try {
+            JsonGenerator generator = jsonFactory.createGenerator(writer);
+            generator.writeStartObject();
+            writeFields(generator);
+            generator.writeEndObject();
+            generator.close();
+        } catch (IOException ioe) {
+            // The writers are in memory and never fail
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /**
+     * Counts the bytes the characters written take in UTF-8. As in
+     * String.getBytes, a surrogate pair takes four bytes and an unpaired
+     * surrogate is replaced by one.
+     */
+    private static final class Utf8CountingWriter extends Writer {
+        private int count;
+        private boolean pendingHighSurrogate;
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                count(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                count(string.charAt(i));
+            }
+        }
+
+        private void count(char c) {
+            if (pendingHighSurrogate) {
+                pendingHighSurrogate = false;
+                if (Character.isLowSurrogate(c)) {
+                    count += 4;
+                    return;
+                }
+                count += 1;
+            }
+            if (c < 0x80) {
+                count += 1;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = true;
+            } else if (Character.isLowSurrogate(c)) {
+                count += 1;
+            } else {
+                count += 3;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        int getCount() {
+            return pendingHighSurrogate ? count + 1 : count;
+        }
+    }
+
+    private static final class StringBuilderWriter extends Writer {
+        private final StringBuilder buffer = new StringBuilder(1024);
+
+        void reset() {
+            buffer.setLength(0);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            buffer.append(chars, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            buffer.append(string, offset, offset + length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return buffer.toString();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import com.amazonaws.sns.samples.mobilepush.SNSMobilePush.Platform;
+
+/**
+ * Message published with MessageStructure 'json': the default message and the
+ * serialized payload of one platform.
+ */
+public final class MessageEnvelope extends JsonPayload {
+
+    /*
+     * jsonify wrote the envelope from a HashMap, whose order depends on the
+     * platform name. It is worked out once per platform.
+     */
+    private static final Map<Platform, Boolean> platformFirst = new EnumMap<Platform, Boolean>(
+            Platform.class);
+    static {
+        for (Platform platform : Platform.values()) {
+            Map<String, String> messageMap = new HashMap<String, String>();
+            messageMap.put("default", "");
+            messageMap.put(platform.name(), "");
+            platformFirst.put(platform, messageMap.keySet().iterator().next()
+                    .equals(platform.name()));
+        }
+    }
+
+    private final String defaultMessage;
+    private final Platform platform;
+    private final String payload;
+
+    public MessageEnvelope(String defaultMessage, Platform platform,
+            String payload) {
+        this.defaultMessage = defaultMessage;
+        this.platform = platform;
+        this.payload = payload;
+    }
+
+    public MessageEnvelope(String defaultMessage, Platform platform,
+            JsonPayload payload) {
+        this(defaultMessage, platform, payload.toJson());
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator generator) throws IOException {
+        if (platformFirst.get(platform)) {
+            generator.writeStringField(platform.name(), payload);
+            generator.writeStringField("default", defaultMessage);
+        } else {
+            generator.writeStringField("default", defaultMessage);
+            generator.writeStringField(platform.name(), payload);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A message personalized per recipient without serializing it again. The
+ * template is compiled from a serialized message in which values were
+ * replaced by the markers of {@link #textSlot} and {@link #numberSlot}. The
+ * JSON around the slots is kept as UTF-8 segments, and rendering copies the
+ * segments and writes each value with the escaping its position needs into
+ * a buffer owned by the calling thread.
+ *
+ * A slot may sit inside a platform payload, which the envelope holds as a
+ * JSON string. Its value is then escaped once for the payload and once more
+ * for the envelope, as Jackson would have done.
+ */
+public final class MessageTemplate {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char TEXT_MARKER = '\u0001';
+    private static final char NUMBER_MARKER = '\u0002';
+
+    /*
+     * A marker serialized one or more times: the escaped control character,
+     * the slot name and the escaped control character again.
+     */
+    private static final Pattern SERIALIZED_MARKER = Pattern
+            .compile("(\\\\+)u000([12])(\\w+)\\1u000\\2");
+
+    private static final String[] ESCAPES = new String[128];
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = String.format("\\u%04X", c);
+        }
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+    }
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private final String messageStructure;
+    private final List<String> slotNames;
+    /*
+     * segments[i] is written before slot i, and the last segment after the
+     * last slot.
+     */
+    private final byte[][] segments;
+    private final int[] slotValues;
+    private final int[] slotDepths;
+    private final boolean[] numberSlots;
+    private final int staticSize;
+
+    private MessageTemplate(String messageStructure, List<String> slotNames,
+            byte[][] segments, int[] slotValues, int[] slotDepths,
+            boolean[] numberSlots) {
+        this.messageStructure = messageStructure;
+        this.slotNames = slotNames;
+        this.segments = segments;
+        this.slotValues = slotValues;
+        this.slotDepths = slotDepths;
+        this.numberSlots = numberSlots;
+        int size = 0;
+        for (byte[] segment : segments) {
+            size += segment.length;
+        }
+        this.staticSize = size;
+    }
+
+    /**
+     * Returns the marker to put in a message map in place of a string, or
+     * inside a string, whose text differs per recipient.
+     */
+    public static String textSlot(String name) {
+        return TEXT_MARKER + name + TEXT_MARKER;
+    }
+
+    /**
+     * Returns the marker to put in a message map in place of a number which
+     * differs per recipient.
+     */
+    public static String numberSlot(String name) {
+        return NUMBER_MARKER + name + NUMBER_MARKER;
+    }
+
+    /**
+     * Compiles a serialized message holding slot markers.
+     *
+     * @param message
+     *            - Message serialized with Jackson, as JsonPayload and
+     *            jsonify do
+     * @param messageStructure
+     *            - MessageStructure of the rendered messages
+     * @param slotNames
+     *            - Names of the slots, in the order render takes their values
+     */
+    public static MessageTemplate compile(String message,
+            String messageStructure, String... slotNames) {
+        List<String> names = Collections.unmodifiableList(Arrays
+                .asList(slotNames.clone()));
+        List<byte[]> segments = new ArrayList<byte[]>();
+        List<Integer> values = new ArrayList<Integer>();
+        List<Integer> depths = new ArrayList<Integer>();
+        List<Boolean> numbers = new ArrayList<Boolean>();
+
+        Matcher matcher = SERIALIZED_MARKER.matcher(message);
+        int segmentStart = 0;
+        while (matcher.find()) {
+            int backslashes = matcher.group(1).length();
+            if (Integer.bitCount(backslashes) != 1) {
+                throw new IllegalArgumentException("Slot "
+                        + matcher.group(3) + " is not a serialized marker");
+            }
+            int depth = Integer.numberOfTrailingZeros(backslashes) + 1;
+            boolean number = matcher.group(2).equals("2");
+            int value = names.indexOf(matcher.group(3));
+            if (value < 0) {
+                throw new IllegalArgumentException("Slot "
+                        + matcher.group(3) + " is not declared");
+            }
+
+            int segmentEnd = matcher.start();
+            int nextStart = matcher.end();
+            if (number) {
+                // A number is written without the quotes of the marker string
+                String quote = quote(depth);
+                if (!message.startsWith(quote, segmentEnd - quote.length())
+                        || !message.startsWith(quote, nextStart)) {
+                    throw new IllegalArgumentException("Number slot "
+                            + matcher.group(3) + " is not a whole value");
+                }
+                segmentEnd -= quote.length();
+                nextStart += quote.length();
+            }
+            segments.add(message.substring(segmentStart, segmentEnd)
+                    .getBytes(UTF_8));
+            values.add(value);
+            depths.add(depth);
+            numbers.add(number);
+            segmentStart = nextStart;
+        }
+        segments.add(message.substring(segmentStart).getBytes(UTF_8));
+
+        int[] slotValues = new int[values.size()];
+        int[] slotDepths = new int[values.size()];
+        boolean[] numberSlots = new boolean[values.size()];
+        for (int i = 0; i < slotValues.length; i++) {
+            slotValues[i] = values.get(i);
+            slotDepths[i] = depths.get(i);
+            numberSlots[i] = numbers.get(i);
+        }
+        return new MessageTemplate(messageStructure, names,
+                segments.toArray(new byte[segments.size()][]), slotValues,
+                slotDepths, numberSlots);
+    }
+
+    /*
+     * A quote inside a string nested depth - 1 times
+     */
+    private static String quote(int depth) {
+        StringBuilder quote = new StringBuilder();
+        for (int i = 0; i < (1 << (depth - 1)) - 1; i++) {
+            quote.append('\\');
+        }
+        return quote.append('"').toString();
+    }
+
+    public List<String> getSlotNames() {
+        return slotNames;
+    }
+
+    /**
+     * Renders the message of one recipient.
+     *
+     * @param values
+     *            - Value of each slot, in the order of the slot names; values
+     *            of number slots must be integers
+     */
+    public PreparedMessage render(String... values) {
+        if (values.length != slotNames.size()) {
+            throw new IllegalArgumentException("Expected "
+                    + slotNames.size() + " values, got " + values.length);
+        }
+        Buffer buffer = buffers.get();
+        buffer.reset(staticSize);
+        for (int i = 0; i < slotValues.length; i++) {
+            buffer.write(segments[i]);
+            String value = values[slotValues[i]];
+            if (numberSlots[i]) {
+                buffer.writeNumber(slotNames.get(slotValues[i]), value);
+            } else {
+                buffer.writeEscaped(value, slotDepths[i]);
+            }
+        }
+        buffer.write(segments[slotValues.length]);
+        return new PreparedMessage(buffer.toString(), messageStructure,
+                buffer.length);
+    }
+
+    /**
+     * Bytes of the message being rendered by one thread. It grows to the
+     * largest message rendered and is reused from then on.
+     */
+    private static final class Buffer {
+        byte[] bytes = new byte[1024];
+        int length;
+        /*
+         * scratch[i] holds a value escaped i + 1 times
+         */
+        StringBuilder[] scratch = new StringBuilder[0];
+
+        void reset(int expectedSize) {
+            length = 0;
+            ensureCapacity(expectedSize);
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity,
+                        bytes.length * 2));
+            }
+        }
+
+        void write(byte[] segment) {
+            ensureCapacity(length + segment.length);
+            System.arraycopy(segment, 0, bytes, length, segment.length);
+            length += segment.length;
+        }
+
+        void writeNumber(String slotName, String value) {
+            int start = value.startsWith("-") ? 1 : 0;
+            if (value.length() == start) {
+                throw new IllegalArgumentException("Value of " + slotName
+                        + " is not an integer: " + value);
+            }
+            ensureCapacity(length + value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if ((c < '0' || c > '9') && i >= start) {
+                    throw new IllegalArgumentException("Value of " + slotName
+                            + " is not an integer: " + value);
+                }
+                bytes[length++] = (byte) c;
+            }
+        }
+
+        void writeEscaped(String value, int depth) {
+            CharSequence text = value;
+            if (depth > scratch.length + 1) {
+                int size = scratch.length;
+                scratch = Arrays.copyOf(scratch, depth - 1);
+                for (int i = size; i < scratch.length; i++) {
+                    scratch[i] = new StringBuilder();
+                }
+            }
+            // Every enclosing string but the outermost escapes the value once
+            for (int i = 0; i < depth - 1; i++) {
+                scratch[i].setLength(0);
+                escape(text, scratch[i]);
+                text = scratch[i];
+            }
+
+            ensureCapacity(length + text.length() * 6);
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    String escape = ESCAPES[c];
+                    if (escape == null) {
+                        bytes[length++] = (byte) c;
+                    } else {
+                        for (int j = 0; j < escape.length(); j++) {
+                            bytes[length++] = (byte) escape.charAt(j);
+                        }
+                    }
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xc0 | c >> 6);
+                    bytes[length++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c)
+                        && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c,
+                            text.charAt(++i));
+                    bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    // An unpaired surrogate has no UTF-8 form
+                    bytes[length++] = '?';
+                } else {
+                    bytes[length++] = (byte) (0xe0 | c >> 12);
+                    bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    bytes[length++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        private static void escape(CharSequence text, StringBuilder escaped) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                String escape = c < 0x80 ? ESCAPES[c] : null;
+                if (escape == null) {
+                    escaped.append(c);
+                } else {
+                    escaped.append(escape);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, UTF_8);
+        }
+    }
+}
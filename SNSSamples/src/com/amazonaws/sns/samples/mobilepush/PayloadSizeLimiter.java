@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.amazonaws.sns.samples.mobilepush.SNSMobilePush.Platform;
+
+/**
+ * Checks payloads against the size limits of SNS and of each platform
+ * before they are published, and truncates the ones that are too large with
+ * a {@link TruncationStrategy}. Sizes are counted in UTF-8 while the payload
+ * is generated, without building it.
+ */
+public class PayloadSizeLimiter {
+
+    /**
+     * Largest message SNS accepts, envelope included.
+     */
+    public static final int SNS_MAX_BYTES = 256 * 1024;
+
+    /**
+     * Rejects every payload that is too large.
+     */
+    public static final TruncationStrategy REJECT = new TruncationStrategy() {
+        @Override
+        public PlatformPayload truncate(PlatformPayload payload, int maxBytes) {
+            return null;
+        }
+    };
+
+    /**
+     * Shortens the text of the payload and appends an ellipsis, keeping as
+     * many whole characters as fit. The other fields are left as they are,
+     * so the payload stays valid JSON with the same structure.
+     */
+    public static class ShortenText implements TruncationStrategy {
+        private final String ellipsis;
+
+        public ShortenText(String ellipsis) {
+            this.ellipsis = ellipsis;
+        }
+
+        @Override
+        public PlatformPayload truncate(PlatformPayload payload, int maxBytes) {
+            String text = payload.getText();
+            if (text == null) {
+                return null;
+            }
+            // Binary search for the most code points that fit
+            PlatformPayload truncated = null;
+            int low = 0;
+            int high = text.codePointCount(0, text.length()) - 1;
+            while (low <= high) {
+                int keep = (low + high) >>> 1;
+                PlatformPayload candidate = payload.withText(text.substring(0,
+                        text.offsetByCodePoints(0, keep)) + ellipsis);
+                if (candidate.getSizeInBytes() <= maxBytes) {
+                    truncated = candidate;
+                    low = keep + 1;
+                } else {
+                    high = keep - 1;
+                }
+            }
+            return truncated;
+        }
+    }
+
+    private final Map<Platform, Integer> limits;
+    private final TruncationStrategy truncationStrategy;
+
+    /**
+     * @param limits
+     *            - Largest payload in bytes accepted by each platform;
+     *            platforms left out are only limited by SNS
+     * @param truncationStrategy
+     *            - Applied to payloads over their limit
+     */
+    public PayloadSizeLimiter(Map<Platform, Integer> limits,
+            TruncationStrategy truncationStrategy) {
+        this.limits = new EnumMap<Platform, Integer>(limits);
+        this.truncationStrategy = truncationStrategy;
+    }
+
+    /**
+     * Limits documented by the platforms: 4 KB for APNS and GCM, 6 KB for
+     * ADM.
+     */
+    public static Map<Platform, Integer> defaultLimits() {
+        Map<Platform, Integer> limits = new EnumMap<Platform, Integer>(
+                Platform.class);
+        limits.put(Platform.APNS, 4096);
+        limits.put(Platform.APNS_SANDBOX, 4096);
+        limits.put(Platform.GCM, 4096);
+        limits.put(Platform.ADM, 6144);
+        return limits;
+    }
+
+    public int getMaxBytes(Platform platform) {
+        Integer limit = limits.get(platform);
+        return limit == null ? SNS_MAX_BYTES : Math.min(limit, SNS_MAX_BYTES);
+    }
+
+    /**
+     * Returns the payload if it fits the platform, else its truncated form.
+     *
+     * @throws PayloadTooLargeException
+     *             if the payload is too large and cannot be truncated
+     */
+    public PlatformPayload fit(Platform platform, PlatformPayload payload) {
+        int maxBytes = getMaxBytes(platform);
+        int size = payload.getSizeInBytes();
+        if (size <= maxBytes) {
+            return payload;
+        }
+        PlatformPayload truncated = truncationStrategy.truncate(payload,
+                maxBytes);
+        if (truncated == null || truncated.getSizeInBytes() > maxBytes) {
+            throw new PayloadTooLargeException(platform.name(), size, maxBytes);
+        }
+        return truncated;
+    }
+
+    /**
+     * Checks the message that will be published against the limit of SNS.
+     *
+     * @throws PayloadTooLargeException
+     *             if SNS would reject the message
+     */
+    public PreparedMessage check(PreparedMessage message) {
+        if (message.getSizeInBytes() > SNS_MAX_BYTES) {
+            throw new PayloadTooLargeException("SNS",
+                    message.getSizeInBytes(), SNS_MAX_BYTES);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+/**
+ * Thrown before publishing a message which SNS or the platform would reject
+ * for its size.
+ */
+public class PayloadTooLargeException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String target;
+    private final int sizeInBytes;
+    private final int maxBytes;
+
+    public PayloadTooLargeException(String target, int sizeInBytes,
+            int maxBytes) {
+        super("Payload for " + target + " is " + sizeInBytes
+                + " bytes, the limit is " + maxBytes);
+        this.target = target;
+        this.sizeInBytes = sizeInBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the platform, or SNS for the whole message.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+/**
+ * Payload of one push platform, with the text shown to the user. The text is
+ * what a {@link TruncationStrategy} shortens when the payload is too large.
+ */
+public abstract class PlatformPayload extends JsonPayload {
+
+    /**
+     * Returns the text shown to the user.
+     */
+    public abstract String getText();
+
+    /**
+     * Returns a copy of the payload showing the given text.
+     */
+    public abstract PlatformPayload withText(String text);
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.nio.charset.Charset;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+
+/**
+ * A message serialized once and published to any number of endpoints. It is
+ * immutable, so one instance may be shared by every thread of a campaign;
+ * publishing it only builds the PublishRequest around the finished body.
+ */
+public final class PreparedMessage {
+
+    /**
+     * MessageStructure of a message with one entry per platform.
+     */
+    public static final String JSON_STRUCTURE = "json";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String message;
+    private final String messageStructure;
+    private final int sizeInBytes;
+
+    /**
+     * @param message
+     *            - Body sent as the Message parameter
+     * @param messageStructure
+     *            - {@link #JSON_STRUCTURE}, or null for the same text on
+     *            every platform
+     */
+    public PreparedMessage(String message, String messageStructure) {
+        if (message == null) {
+            throw new IllegalArgumentException("message must not be null");
+        }
+        this.message = message;
+        this.messageStructure = messageStructure;
+        this.sizeInBytes = message.getBytes(UTF_8).length;
+    }
+
+    /*
+     * For messages whose size the caller has counted while encoding them
+     */
+    PreparedMessage(String message, String messageStructure, int sizeInBytes) {
+        this.message = message;
+        this.messageStructure = messageStructure;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getMessageStructure() {
+        return messageStructure;
+    }
+
+    /**
+     * Size of the message in UTF-8, which is what SNS counts against its
+     * message size limit.
+     */
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Returns a new request publishing this message to the endpoint.
+     */
+    public PublishRequest toPublishRequest(String endpointArn) {
+        return new PublishRequest().withTargetArn(endpointArn)
+                .withMessage(message).withMessageStructure(messageStructure);
+    }
+
+    /**
+     * Returns a new request publishing this message to every subscriber of
+     * the topic.
+     */
+    public PublishRequest toTopicPublishRequest(String topicArn) {
+        return new PublishRequest().withTopicArn(topicArn)
+                .withMessage(message).withMessageStructure(messageStructure);
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.sns.samples.bulkupload.SNSClientPool;
+
+/**
+ * Sends each call to the region named in its ARN, with the clients of a
+ * shared {@link SNSClientPool}, and keeps an exponentially weighted moving
+ * average (EWMA) of the latency and error rate of every region.
+ *
+ * Calls that change SNS must go to the region of their resource, as must
+ * every call about an endpoint, whose ARN ends in an id of its region. An
+ * application running active-active keeps platform applications and topics
+ * of the same name in several regions, though, and reads of those may be
+ * answered by any of them. {@link #read} sends such a read to the ARN's
+ * region and, if it has not answered within a few times its average
+ * latency, hedges it with the same read in the fastest other region; the
+ * first answer wins. A region which is degraded, with a high error rate or
+ * a latency far above the fastest region, is failed over: reads go to the
+ * other regions first, and one read a second still probes it so that its
+ * averages can recover.
+ *
+ * {@link SNSMobilePush} and {@link FanOutPublisher} send their publishes
+ * through a router given to them, so that every publish goes to the region
+ * of its endpoint and counts in that region's averages.
+ */
+public class RegionRouter {
+
+    /**
+     * A call to SNS made with the client of the region it is routed to.
+     */
+    public interface RegionCall<T> {
+        /**
+         * @param client
+         *            - Client of the region
+         * @param arn
+         *            - ARN of the resource in that region
+         */
+        T call(AmazonSNS client, String arn);
+    }
+
+    /*
+     * Each call moves the averages a tenth of the way to its outcome.
+     */
+    private static final double ALPHA = 0.1;
+
+    /*
+     * A region is not judged degraded before it has answered this many calls.
+     */
+    private static final long MIN_CALLS = 10;
+
+    /*
+     * Before a region has answered, reads to it are hedged after this delay.
+     */
+    private static final long COLD_HEDGE_DELAY_MILLIS = 1000;
+
+    private static final long PROBE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Latency and error averages of one region.
+     */
+    public static class RegionStats {
+        private final String region;
+        private double latencyMillis;
+        private double errorRate;
+        private long calls;
+        private long errors;
+        private long lastProbeMillis;
+
+        RegionStats(String region) {
+            this.region = region;
+        }
+
+        synchronized void record(double latencyMillis, boolean error) {
+            if (calls == 0) {
+                this.latencyMillis = latencyMillis;
+            } else {
+                this.latencyMillis += ALPHA
+                        * (latencyMillis - this.latencyMillis);
+            }
+            errorRate += ALPHA * ((error ? 1 : 0) - errorRate);
+            calls++;
+            if (error) {
+                errors++;
+            }
+        }
+
+        /*
+         * Returns true for one caller each probe interval.
+         */
+        synchronized boolean claimProbe(long now) {
+            if (now - lastProbeMillis < PROBE_INTERVAL_MILLIS) {
+                return false;
+            }
+            lastProbeMillis = now;
+            return true;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        /**
+         * Average latency of the region's calls in milliseconds.
+         */
+        public synchronized double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * Average fraction of the region's calls failing with a server or
+         * connection error.
+         */
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        public synchronized long getCalls() {
+            return calls;
+        }
+
+        public synchronized long getErrors() {
+            return errors;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return region + ": " + calls + " call(s), "
+                    + String.format("%.1f", latencyMillis) + " ms, "
+                    + String.format("%.1f", errorRate * 100) + "% errors";
+        }
+    }
+
+    private final SNSClientPool clientPool;
+    private final List<String> regions;
+    private final Map<String, RegionStats> stats = new HashMap<String, RegionStats>();
+    private final ExecutorService executor;
+
+    private volatile double hedgeFactor = 3;
+    private volatile long minHedgeDelayMillis = 5;
+    private volatile double maxErrorRate = 0.25;
+    private volatile double slowFactor = 4;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * @param clientPool
+     *            - Pool providing the client of each region
+     * @param regions
+     *            - Regions calls may be routed to
+     * @throws IllegalArgumentException
+     *             if a region is not one of the SNS regions
+     */
+    public RegionRouter(SNSClientPool clientPool, List<String> regions) {
+        for (String region : regions) {
+            if (!SNSClientPool.isRegion(region)) {
+                throw new IllegalArgumentException("The region " + region
+                        + " is invalid");
+            }
+            stats.put(region, new RegionStats(region));
+        }
+        this.clientPool = clientPool;
+        this.regions = Collections.unmodifiableList(new ArrayList<String>(
+                regions));
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RegionRouter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets when a read is hedged: after latencyFactor times the average
+     * latency of the region it was sent to, but no sooner than minDelayMillis.
+     * Defaults to 3 times the average and 5 ms.
+     */
+    public void setHedging(double latencyFactor, long minDelayMillis) {
+        this.hedgeFactor = latencyFactor;
+        this.minHedgeDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Sets when a region is degraded: its average error rate is above
+     * maxErrorRate, or its average latency is more than slowFactor times that
+     * of the fastest region. Defaults to 0.25 and 4.
+     */
+    public void setDegradation(double maxErrorRate, double slowFactor) {
+        this.maxErrorRate = maxErrorRate;
+        this.slowFactor = slowFactor;
+    }
+
+    /**
+     * Returns the region of an ARN, or null if it is malformed.
+     */
+    public static String regionOf(String arn) {
+        String[] arnParts = arnParts(arn);
+        return arnParts == null ? null : arnParts[3];
+    }
+
+    /**
+     * Returns the ARN of the resource with the same name in another region,
+     * or null if the resource is identified by an id of its region, as
+     * endpoints and subscriptions are.
+     */
+    public static String inRegion(String arn, String region) {
+        String[] arnParts = arnParts(arn);
+        if (arnParts == null || arnParts.length != 6) {
+            return null;
+        }
+        String resource = arnParts[5];
+        if (!resource.startsWith("app/") && resource.indexOf('/') >= 0) {
+            return null;
+        }
+        arnParts[3] = region;
+        StringBuilder regional = new StringBuilder(arnParts[0]);
+        for (int i = 1; i < arnParts.length; i++) {
+            regional.append(':').append(arnParts[i]);
+        }
+        return regional.toString();
+    }
+
+    /*
+     * The colon separated parts of an ARN, of which a subscription ARN has
+     * seven and others six, or null if it is malformed.
+     */
+    private static String[] arnParts(String arn) {
+        String[] arnParts = arn.split(":", -1);
+        return arnParts.length < 6 || arnParts[3].length() == 0 ? null
+                : arnParts;
+    }
+
+    public List<String> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Returns the client of the ARN's region.
+     *
+     * @throws IllegalArgumentException
+     *             if the ARN is malformed or of a region not routed to
+     */
+    public AmazonSNS getClient(String arn) {
+        return clientPool.getClient(route(arn));
+    }
+
+    /**
+     * Makes the call in the ARN's region and records its outcome.
+     *
+     * @throws IllegalArgumentException
+     *             if the ARN is malformed or of a region not routed to
+     */
+    public <T> T execute(String arn, RegionCall<T> call) {
+        return timed(route(arn), arn, call);
+    }
+
+    /**
+     * Makes an idempotent read, hedging it or failing it over to the other
+     * regions if the resource is one kept in every region under the same
+     * name. Reads of other resources are made as by {@link #execute}.
+     *
+     * A server or connection error moves the read on to the next region.
+     * Any other error, e.g. NotFound, is the answer only when it comes from
+     * the ARN's own region; the copy in another region may differ, so such
+     * an error from there moves the read on as well, and a call still
+     * running is waited for. If every region fails, the error of the ARN's
+     * own region is thrown, or else the first. The calls left running when
+     * an answer arrives are not interrupted, so that their latency is still
+     * recorded.
+     *
+     * @throws IllegalArgumentException
+     *             if the ARN is malformed or of a region not routed to
+     */
+    public <T> T read(String arn, final RegionCall<T> call)
+            throws InterruptedException {
+        String home = route(arn);
+        List<String> candidates = candidates(arn, home);
+        if (candidates.size() == 1) {
+            return timed(home, arn, call);
+        }
+
+        CompletionService<T> completion = new ExecutorCompletionService<T>(
+                executor);
+        Map<Future<T>, String> started = new HashMap<Future<T>, String>();
+        int next = 0;
+        if (!candidates.get(0).equals(home)) {
+            failovers.incrementAndGet();
+            if (stats.get(home).claimProbe(System.currentTimeMillis())) {
+                candidates.remove(home);
+                started.put(submit(completion, home, arn, call), home);
+            }
+        }
+        started.put(submit(completion, candidates.get(next), arn, call),
+                candidates.get(next));
+        next++;
+
+        boolean hedged = false;
+        int pending = started.size();
+        RuntimeException failure = null;
+        while (pending > 0 || next < candidates.size()) {
+            if (pending == 0) {
+                // Every call so far failed with a region error
+                failovers.incrementAndGet();
+                started.put(submit(completion, candidates.get(next), arn,
+                        call), candidates.get(next));
+                next++;
+                pending++;
+                continue;
+            }
+            Future<T> done;
+            if (!hedged && next < candidates.size()) {
+                done = completion.poll(hedgeDelayMillis(candidates.get(0)),
+                        TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    hedged = true;
+                    hedges.incrementAndGet();
+                    started.put(submit(completion, candidates.get(next), arn,
+                            call), candidates.get(next));
+                    next++;
+                    pending++;
+                    continue;
+                }
+            } else {
+                done = completion.take();
+            }
+            pending--;
+            String region = started.get(done);
+            try {
+                T result = done.get();
+                if (hedged && !region.equals(candidates.get(0))) {
+                    hedgeWins.incrementAndGet();
+                }
+                return result;
+            } catch (ExecutionException ee) {
+                RuntimeException cause = unchecked(ee.getCause());
+                if (region.equals(home)) {
+                    if (!isRegionError(cause)) {
+                        throw cause;
+                    }
+                    failure = cause;
+                } else if (failure == null) {
+                    failure = cause;
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Returns true if the region's averages show it to be failing or much
+     * slower than the fastest region.
+     */
+    public boolean isDegraded(String region) {
+        RegionStats regionStats = stats.get(region);
+        synchronized (regionStats) {
+            if (regionStats.calls < MIN_CALLS) {
+                return false;
+            }
+            if (regionStats.errorRate > maxErrorRate) {
+                return true;
+            }
+        }
+        double fastest = Double.MAX_VALUE;
+        for (RegionStats other : stats.values()) {
+            synchronized (other) {
+                if (other.calls >= MIN_CALLS && other.errorRate <= maxErrorRate) {
+                    fastest = Math.min(fastest, other.latencyMillis);
+                }
+            }
+        }
+        return regionStats.getLatencyMillis() > slowFactor * fastest;
+    }
+
+    public RegionStats getStats(String region) {
+        return stats.get(region);
+    }
+
+    /**
+     * Number of reads sent to a second region because the first had not
+     * answered in time.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Number of hedged reads answered first by the second region.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Number of reads sent away from a degraded or failing region.
+     */
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * Stops the threads of hedged reads. The client pool is left to its
+     * owner.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder();
+        for (String region : regions) {
+            description.append(stats.get(region))
+                    .append(isDegraded(region) ? " (degraded)" : "")
+                    .append("; ");
+        }
+        return description.append(hedges.get()).append(" hedged, ")
+                .append(hedgeWins.get()).append(" won by the hedge, ")
+                .append(failovers.get()).append(" failed over").toString();
+    }
+
+    /**
+     * Returns the region of the ARN.
+     *
+     * @throws IllegalArgumentException
+     *             if the ARN is malformed or of a region not routed to
+     */
+    String route(String arn) {
+        String region = regionOf(arn);
+        if (region == null) {
+            throw new IllegalArgumentException("The ARN " + arn
+                    + " is malformed");
+        }
+        if (!stats.containsKey(region)) {
+            throw new IllegalArgumentException("The region " + region
+                    + " is not routed to");
+        }
+        return region;
+    }
+
+    /*
+     * The regions a read may go to, in the order to try them: the ARN's own
+     * region, unless it is degraded, and then the others from the fastest.
+     */
+    private List<String> candidates(String arn, String home) {
+        List<String> candidates = new ArrayList<String>();
+        candidates.add(home);
+        if (inRegion(arn, home) == null) {
+            return candidates;
+        }
+        List<String> others = new ArrayList<String>(regions);
+        others.remove(home);
+        final Map<String, Double> latencies = new HashMap<String, Double>();
+        for (String region : others) {
+            latencies.put(region, isDegraded(region) ? Double.MAX_VALUE
+                    : stats.get(region).getLatencyMillis());
+        }
+        Collections.sort(others, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(latencies.get(a), latencies.get(b));
+            }
+        });
+        if (isDegraded(home) && !others.isEmpty()
+                && latencies.get(others.get(0)) < Double.MAX_VALUE) {
+            candidates.add(0, others.remove(0));
+        }
+        candidates.addAll(others);
+        return candidates;
+    }
+
+    private long hedgeDelayMillis(String region) {
+        RegionStats regionStats = stats.get(region);
+        if (regionStats.getCalls() == 0) {
+            return COLD_HEDGE_DELAY_MILLIS;
+        }
+        return Math.max(minHedgeDelayMillis,
+                (long) (hedgeFactor * regionStats.getLatencyMillis()));
+    }
+
+    private <T> Future<T> submit(CompletionService<T> completion,
+            final String region, String arn, final RegionCall<T> call) {
+        final String regionalArn = inRegion(arn, region) != null ? inRegion(
+                arn, region) : arn;
+        return completion.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return timed(region, regionalArn, call);
+            }
+        });
+    }
+
+    /**
+     * Records the outcome of a call made in the region without the router,
+     * e.g. an async call started by {@link AsyncCallBatch}.
+     *
+     * @param exception
+     *            - Failure of the call, or null if it succeeded
+     */
+    void record(String region, long startNanos, Exception exception) {
+        stats.get(region).record(
+                (System.nanoTime() - startNanos) / 1e6,
+                exception instanceof RuntimeException
+                        && isRegionError((RuntimeException) exception));
+    }
+
+    private <T> T timed(String region, String arn, RegionCall<T> call) {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            T result = call.call(clientPool.getClient(region), arn);
+            error = false;
+            return result;
+        } catch (RuntimeException re) {
+            error = isRegionError(re);
+            throw re;
+        } finally {
+            stats.get(region).record((System.nanoTime() - start) / 1e6, error);
+        }
+    }
+
+    /*
+     * Errors which say something about the region rather than the request:
+     * server errors and failures to reach it. Throttling is a limit of the
+     * account, not a fault of the region.
+     */
+    private static boolean isRegionError(RuntimeException exception) {
+        if (exception instanceof AmazonServiceException) {
+            return ((AmazonServiceException) exception).getStatusCode() >= 500;
+        }
+        return exception instanceof AmazonClientException;
+    }
+
+    private static RuntimeException unchecked(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new AmazonClientException(cause.getMessage(), cause);
+    }
+}
@@ -27,7 +27,6 @@ import com.amazonaws.services.sns.model.CreatePlatformApplicationRequest;
 import com.amazonaws.services.sns.model.CreatePlatformApplicationResult;
 import com.amazonaws.services.sns.model.CreatePlatformEndpointRequest;
 import com.amazonaws.services.sns.model.CreatePlatformEndpointResult;
-import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
 import com.amazonaws.services.sns.model.DeletePlatformApplicationRequest;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -53,11 +52,59 @@ public class SNSMobilePush {
     }
 
     private final AmazonSNS snsClient;
-    
+    private boolean displayMessages = true;
+    private PayloadSizeLimiter payloadSizeLimiter = new PayloadSizeLimiter(
+            PayloadSizeLimiter.defaultLimits(), PayloadSizeLimiter.REJECT);
+    private EndpointPruner endpointPruner;
+    private EndpointRegistry endpointRegistry;
+    private RegionRouter regionRouter;
+
 	public SNSMobilePush(AmazonSNS sns) {
         snsClient = sns;
     }
 
+    /**
+     * Sets whether publish prints each message it sends. Load tests turn it
+     * off.
+     */
+    public void setDisplayMessages(boolean displayMessages) {
+        this.displayMessages = displayMessages;
+    }
+
+    /**
+     * Sets the limits and truncation strategy prepare applies to payloads.
+     * By default payloads over the platform limits are rejected.
+     */
+    public void setPayloadSizeLimiter(PayloadSizeLimiter payloadSizeLimiter) {
+        this.payloadSizeLimiter = payloadSizeLimiter;
+    }
+
+    /**
+     * Sets the pruner which skips and records disabled endpoints, or null to
+     * publish to every endpoint.
+     */
+    public void setEndpointPruner(EndpointPruner endpointPruner) {
+        this.endpointPruner = endpointPruner;
+    }
+
+    /**
+     * Sets the registry kept current with the endpoints created and the
+     * results of publishing, or null for none. Endpoints it knows to be
+     * disabled are not published to.
+     */
+    public void setEndpointRegistry(EndpointRegistry endpointRegistry) {
+        this.endpointRegistry = endpointRegistry;
+    }
+
+    /**
+     * Sets the router publish goes through, so that each publish is sent to
+     * the region of its endpoint's ARN and counts in that region's averages,
+     * or null to publish with the client given to the constructor.
+     */
+    public void setRegionRouter(RegionRouter regionRouter) {
+        this.regionRouter = regionRouter;
+    }
+
     public static void main(String[] args) throws IOException{
         /*
          * TODO: Be sure to fill in your AWS access credentials in the
@@ -68,7 +115,11 @@ public class SNSMobilePush {
                 SNSMobilePush.class
                         .getResourceAsStream("AwsCredentials.properties")));
 
-        sns.setEndpoint("https://sns.us-west-2.amazonaws.com");
+        // The region given on the command line is used instead of us-west-2,
+        // and an endpoint URL, such as a local stub, instead of a region.
+        String target = args.length > 0 ? args[0] : "us-west-2";
+        sns.setEndpoint(target.startsWith("http") ? target
+                : "https://sns." + target + ".amazonaws.com");
         System.out.println("===========================================\n");
         System.out.println("Getting Started with Amazon SNS");
         System.out.println("===========================================\n");
@@ -143,7 +194,11 @@ public class SNSMobilePush {
 
         // Publish a push notification to an Endpoint.
         PublishResult publishResult = publish(platformEndpointResult.getEndpointArn(), platform);
-        System.out.println("Published.  MessageId="+ publishResult.getMessageId());
+        if (publishResult == null) {
+            System.out.println("Skipped.  The endpoint is disabled");
+        } else {
+            System.out.println("Published.  MessageId="+ publishResult.getMessageId());
+        }
         // Delete the Platform Application since we will no longer be using it.
         deletePlatformApplication(platformApplicationArn);
     }
@@ -166,74 +221,179 @@ public class SNSMobilePush {
         platformEndpointRequest.setCustomUserData(customData);
         platformEndpointRequest.setToken(platformToken);
         platformEndpointRequest.setPlatformApplicationArn(applicationArn);
-        return snsClient.createPlatformEndpoint(platformEndpointRequest);
+        CreatePlatformEndpointResult result = snsClient
+                .createPlatformEndpoint(platformEndpointRequest);
+        if (endpointRegistry != null) {
+            endpointRegistry.onCreated(result.getEndpointArn(), platformToken,
+                    customData);
+        }
+        return result;
     }
 
-    private String getPlatformSampleMessage(Platform platform) {
+    PlatformPayload getPlatformSamplePayload(Platform platform) {
         switch (platform) {
         case APNS:
-            return getSampleAppleMessage();
+            return getSampleApplePayload("You have got email.", 9);
         case APNS_SANDBOX:
-            return getSampleAppleMessage();
+            return getSampleApplePayload("You have got email.", 9);
         case GCM:
-            return getSampleAndroidMessage();
+            return getSampleAndroidPayload("Hello World!");
         case ADM:
-            return getSampleKindleMessage();
+            return getSampleKindlePayload("Hello World!");
         default:
             throw new IllegalArgumentException("Platform Not supported : " + platform.name());
         }
     }
 
-    private String getSampleAppleMessage() {
-        Map<String, Object> appleMessageMap = new HashMap<String, Object>();
-        Map<String, Object> appMessageMap = new HashMap<String, Object>();
-        appMessageMap.put("alert", "You have got email.");
-        appMessageMap.put("badge", 9);
-        appMessageMap.put("sound", "default");
-        appleMessageMap.put("aps", appMessageMap);
-        return jsonify(appleMessageMap);
+    String getPlatformSampleMessage(Platform platform) {
+        return getPlatformSamplePayload(platform).toJson();
     }
 
-    private String getSampleKindleMessage() {
-        Map<String, Object> kindleMessageMap = new HashMap<String, Object>();
-        kindleMessageMap.put("data", getData());
-        kindleMessageMap.put("consolidationKey", "Welcome");
-        kindleMessageMap.put("expiresAfter", 1000);
-        return jsonify(kindleMessageMap);
+    ApnsPayload getSampleApplePayload(String alert, int badge) {
+        return new ApnsPayload(alert, badge, "default");
     }
 
-    private String getSampleAndroidMessage() {
-        Map<String, Object> androidMessageMap = new HashMap<String, Object>();
-        androidMessageMap.put("collapse_key", "Welcome");
-        androidMessageMap.put("data", getData());
-        androidMessageMap.put("delay_while_idle", true);
-        androidMessageMap.put("time_to_live", 125);
-        androidMessageMap.put("dry_run", false);
-        return jsonify(androidMessageMap);
+    AdmPayload getSampleKindlePayload(String message) {
+        return new AdmPayload(message, "Welcome", 1000);
     }
 
-    private Map<String, String> getData() {
-        Map<String, String> payload = new HashMap<String, String>();
-        payload.put("message", "Hello World!");
-        return payload;
+    GcmPayload getSampleAndroidPayload(String message) {
+        return new GcmPayload("Welcome", message, true, 125, false);
     }
 
-    private PublishResult publish(String endpointArn, Platform platform) {
-        PublishRequest publishRequest = new PublishRequest();
-        Map<String, String> messageMap = new HashMap<String, String>();
-        String message;
-        messageMap.put("default", defaultMessage);
-        messageMap.put(platform.name(), getPlatformSampleMessage(platform));
-        // For direct publish to mobile end points, topicArn is not relevant.
-        publishRequest.setTargetArn(endpointArn);
-        publishRequest.setMessageStructure("json");
-        message = jsonify(messageMap);
+    String getSampleAppleMessage() {
+        return getSampleAppleMessage("You have got email.", 9);
+    }
+
+    String getSampleAppleMessage(String alert, int badge) {
+        return getSampleApplePayload(alert, badge).toJson();
+    }
+
+    String getSampleKindleMessage() {
+        return getSampleKindleMessage("Hello World!");
+    }
+
+    String getSampleKindleMessage(String message) {
+        return getSampleKindlePayload(message).toJson();
+    }
+
+    String getSampleAndroidMessage() {
+        return getSampleAndroidMessage("Hello World!");
+    }
+
+    String getSampleAndroidMessage(String message) {
+        return getSampleAndroidPayload(message).toJson();
+    }
+
+    /**
+     * Serializes the message publish sends for the platform. Build it once
+     * and pass it to {@link #publish(String, PreparedMessage)} or
+     * {@link FanOutPublisher} to send the same content to many endpoints.
+     */
+    public PreparedMessage prepare(Platform platform) {
+        return prepare(platform, getPlatformSamplePayload(platform));
+    }
+
+    /**
+     * Serializes a message for the platform, after fitting the payload to
+     * the platform's size limit.
+     *
+     * @throws PayloadTooLargeException
+     *             if the payload is too large for the platform or the message
+     *             too large for SNS, and the payload cannot be truncated
+     */
+    public PreparedMessage prepare(Platform platform, PlatformPayload payload) {
+        PlatformPayload fitted = payloadSizeLimiter.fit(platform, payload);
+        return payloadSizeLimiter.check(new PreparedMessage(
+                new MessageEnvelope(defaultMessage, platform, fitted).toJson(),
+                PreparedMessage.JSON_STRUCTURE));
+    }
+
+    /**
+     * Compiles the platform message greeting each recipient by name. Render
+     * it with the values of the slots "name" and "badge"; only APNS shows
+     * the badge.
+     */
+    public MessageTemplate compileGreetingTemplate(Platform platform) {
+        String name = MessageTemplate.textSlot("name");
+        String platformMessage;
+        switch (platform) {
+        case APNS:
+        case APNS_SANDBOX:
+            platformMessage = getSampleApplePayload("Hello " + name
+                    + ", you have got email.", 0).withBadgeSlot("badge")
+                    .toJson();
+            break;
+        case GCM:
+            platformMessage = getSampleAndroidMessage("Hello " + name + "!");
+            break;
+        case ADM:
+            platformMessage = getSampleKindleMessage("Hello " + name + "!");
+            break;
+        default:
+            throw new IllegalArgumentException("Platform Not supported : " + platform.name());
+        }
+        return MessageTemplate.compile(new MessageEnvelope(defaultMessage,
+                platform, platformMessage).toJson(),
+                PreparedMessage.JSON_STRUCTURE, "name", "badge");
+    }
+
+    public PublishResult publish(String endpointArn, Platform platform) {
+        return publish(endpointArn, prepare(platform));
+    }
+
+    /**
+     * Publishes the message to the endpoint, unless the endpoint pruner or
+     * the endpoint registry knows it to be disabled. With a region router,
+     * the publish is sent to the region of the endpoint.
+     *
+     * @return the result, or null if the endpoint was skipped as disabled
+     * @throws IllegalArgumentException
+     *             if the router does not route to the endpoint's region
+     */
+    public PublishResult publish(String endpointArn,
+            final PreparedMessage message) {
+        if (endpointPruner != null ? endpointPruner.skip(endpointArn,
+                endpointRegistry) : endpointRegistry != null
+                && endpointRegistry.isDisabled(endpointArn)) {
+            return null;
+        }
 
         // Display the message that will be sent to the endpoint/
-        System.out.println(message);
+        if (displayMessages) {
+            System.out.println(message);
+        }
 
-        publishRequest.setMessage(message);
-        return snsClient.publish(publishRequest);
+        // For direct publish to mobile end points, topicArn is not relevant.
+        PublishResult publishResult;
+        try {
+            if (regionRouter == null) {
+                publishResult = snsClient.publish(message
+                        .toPublishRequest(endpointArn));
+            } else {
+                publishResult = regionRouter.execute(endpointArn,
+                        new RegionRouter.RegionCall<PublishResult>() {
+                            @Override
+                            public PublishResult call(AmazonSNS client,
+                                    String arn) {
+                                return client.publish(message
+                                        .toPublishRequest(arn));
+                            }
+                        });
+            }
+        } catch (AmazonServiceException ase) {
+            if (endpointPruner != null) {
+                endpointPruner.recordFailure(endpointArn, ase);
+            }
+            if (endpointRegistry != null) {
+                endpointRegistry.onPublishFailed(endpointArn, ase);
+            }
+            throw ase;
+        }
+        if (endpointRegistry != null) {
+            endpointRegistry.onPublished(endpointArn);
+        }
+        return publishResult;
     }
 
     private void deletePlatformApplication(String applicationArn) {
@@ -242,7 +402,7 @@ public class SNSMobilePush {
         snsClient.deletePlatformApplication(request);  
     }
 
-    private static String jsonify(Object message) {
+    static String jsonify(Object message) {
         try {
             return objectMapper.writeValueAsString(message);
         } catch (Exception e) {
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.sns.samples.mobilepush;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.sns.samples.bulkupload.AdaptiveRateLimiter;
+import com.amazonaws.sns.samples.bulkupload.SNSClientPool;
+
+/**
+ * Sends one message to every endpoint of a region through topics, so that a
+ * broadcast costs one Publish per topic instead of one per endpoint. The
+ * endpoints are spread over a fixed number of shards, each subscribed to its
+ * own topic named 'prefix-shard', which keeps every topic well below the
+ * subscription limit of SNS.
+ *
+ * The shard of an endpoint is derived from its ARN, so subscribing the same
+ * endpoints again lands on the same topics; SNS answers Subscribe for an
+ * existing subscription with that subscription. The ARNs of the topics are
+ * saved to the topic map file and read from it by later runs, which may then
+ * broadcast without subscribing again.
+ *
+ * Subscribe and Publish calls are made as by {@link FanOutPublisher}, with
+ * bounded concurrency, adaptive rate limiting and retries.
+ */
+public class TopicBroadcaster {
+
+    private static final String UTF8 = "UTF-8";
+    private static final String APPLICATION_PROTOCOL = "application";
+
+    private final SNSClientPool clientPool;
+    private final String region;
+    private final String topicNamePrefix;
+    private final int shards;
+    private final String topicMapFileName;
+    private final int maxInFlight;
+    private final double targetTps;
+    private final int maxRetries;
+
+    private List<String> topicArns;
+
+    /**
+     * @param clientPool
+     *            - Pool providing the clients of the region
+     * @param region
+     *            - Region of the endpoints and topics
+     * @param topicNamePrefix
+     *            - Start of the topic names
+     * @param shards
+     *            - Number of topics the endpoints are spread over; it cannot
+     *            change once endpoints are subscribed
+     * @param topicMapFileName
+     *            - File keeping the topic ARN of each shard
+     * @param maxInFlight
+     *            - Maximum number of calls awaiting a response
+     * @param targetTps
+     *            - Maximum calls per second, or 0 to limit the rate only once
+     *            throttling starts
+     * @param maxRetries
+     *            - Number of times a throttled or transient failure is
+     *            retried
+     */
+    public TopicBroadcaster(SNSClientPool clientPool, String region,
+            String topicNamePrefix, int shards, String topicMapFileName,
+            int maxInFlight, double targetTps, int maxRetries) {
+        this.clientPool = clientPool;
+        this.region = region;
+        this.topicNamePrefix = topicNamePrefix;
+        this.shards = shards;
+        this.topicMapFileName = topicMapFileName;
+        this.maxInFlight = maxInFlight;
+        this.targetTps = targetTps;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the shard the endpoint belongs to.
+     */
+    public int shardOf(String endpointArn) {
+        return (endpointArn.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * Returns the topic ARN of each shard, reading them from the topic map
+     * file or creating the topics and saving the file on first use.
+     *
+     * @throws IllegalStateException
+     *             if the topic map file was written for other topics
+     */
+    public synchronized List<String> getTopicArns() throws IOException,
+            InterruptedException {
+        if (topicArns == null) {
+            if (new File(topicMapFileName).exists()) {
+                topicArns = load();
+            } else {
+                topicArns = createTopics();
+                save();
+            }
+        }
+        return topicArns;
+    }
+
+    /**
+     * Subscribes every endpoint to the topic of its shard and waits for the
+     * last call to complete.
+     *
+     * @param endpointArns
+     *            - Endpoints to subscribe, e.g. from an
+     *            {@link EndpointArnReader}
+     * @param resultFileName
+     *            - File receiving the endpoints which could not be subscribed
+     */
+    public BatchSummary subscribe(Iterator<String> endpointArns,
+            String resultFileName) throws IOException, InterruptedException {
+        List<String> topicArns = getTopicArns();
+        AsyncCallBatch<SubscribeRequest, SubscribeResult> batch = new AsyncCallBatch<SubscribeRequest, SubscribeResult>(
+                clientPool, maxInFlight, targetTps, maxRetries, resultFileName) {
+            @Override
+            protected Future<SubscribeResult> call(AmazonSNSAsync client,
+                    SubscribeRequest request,
+                    AsyncHandler<SubscribeRequest, SubscribeResult> handler) {
+                return client.subscribeAsync(request, handler);
+            }
+
+            @Override
+            protected String describe(SubscribeRequest request) {
+                return request.getEndpoint();
+            }
+        };
+        BatchSummary summary;
+        try {
+            while (endpointArns.hasNext()) {
+                String endpointArn = endpointArns.next();
+                if (!region.equals(RegionRouter.regionOf(endpointArn))) {
+                    batch.fail(endpointArn, "InvalidParameter",
+                            "Endpoint is not in " + region);
+                    continue;
+                }
+                batch.submit(region, new SubscribeRequest()
+                        .withTopicArn(topicArns.get(shardOf(endpointArn)))
+                        .withProtocol(APPLICATION_PROTOCOL)
+                        .withEndpoint(endpointArn));
+            }
+        } finally {
+            summary = batch.finish();
+        }
+        return summary;
+    }
+
+    /**
+     * Publishes the message to every topic. SNS delivers it to each
+     * subscribed endpoint; platforms missing from a json message get its
+     * default entry.
+     *
+     * @param resultFileName
+     *            - File receiving the topics the message could not be
+     *            published to, or null
+     */
+    public BatchSummary broadcast(PreparedMessage message,
+            String resultFileName) throws IOException, InterruptedException {
+        List<String> topicArns = getTopicArns();
+        AsyncCallBatch<PublishRequest, PublishResult> batch = new AsyncCallBatch<PublishRequest, PublishResult>(
+                clientPool, maxInFlight, targetTps, maxRetries, resultFileName) {
+            @Override
+            protected Future<PublishResult> call(AmazonSNSAsync client,
+                    PublishRequest request,
+                    AsyncHandler<PublishRequest, PublishResult> handler) {
+                return client.publishAsync(request, handler);
+            }
+
+            @Override
+            protected String describe(PublishRequest request) {
+                return request.getTopicArn();
+            }
+        };
+        BatchSummary summary;
+        try {
+            for (String topicArn : topicArns) {
+                batch.submit(region, message.toTopicPublishRequest(topicArn));
+            }
+        } finally {
+            summary = batch.finish();
+        }
+        return summary;
+    }
+
+    /*
+     * CreateTopic returns the existing topic of the same name, so topics left
+     * by a run which did not save the map are reused.
+     */
+    private List<String> createTopics() throws InterruptedException {
+        AmazonSNS client = clientPool.getClient(region);
+        AdaptiveRateLimiter backOff = new AdaptiveRateLimiter(0);
+        List<String> created = new ArrayList<String>();
+        for (int shard = 0; shard < shards; shard++) {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    created.add(client.createTopic(
+                            new CreateTopicRequest().withName(topicNamePrefix
+                                    + "-" + shard)).getTopicArn());
+                    break;
+                } catch (AmazonServiceException ase) {
+                    if (!AdaptiveRateLimiter.isThrottling(ase)
+                            || attempt >= maxRetries) {
+                        throw ase;
+                    }
+                }
+                backOff.backOff(attempt);
+            }
+        }
+        return Collections.unmodifiableList(created);
+    }
+
+    /*
+     * The first line names the topics and the number of shards, each further
+     * line is 'shard<tab>topicArn'.
+     */
+    private String header() {
+        return region + "\t" + topicNamePrefix + "\t" + shards;
+    }
+
+    private List<String> load() throws IOException {
+        String[] loaded = new String[shards];
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(topicMapFileName), UTF8));
+        try {
+            String line = reader.readLine();
+            if (!header().equals(line)) {
+                throw new IllegalStateException("The topic map "
+                        + topicMapFileName + " was written for " + line);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 2);
+                if (fields.length != 2) {
+                    throw new IOException("Malformed line in "
+                            + topicMapFileName + ": " + line);
+                }
+                loaded[Integer.parseInt(fields[0])] = fields[1];
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Malformed topic map " + topicMapFileName,
+                    nfe);
+        } catch (ArrayIndexOutOfBoundsException aioobe) {
+            throw new IOException("Malformed topic map " + topicMapFileName,
+                    aioobe);
+        } finally {
+            reader.close();
+        }
+        if (Arrays.asList(loaded).contains(null)) {
+            throw new IOException("The topic map " + topicMapFileName
+                    + " is missing shards");
+        }
+        return Collections.unmodifiableList(Arrays.asList(loaded));
+    }
+
+    private void save() throws IOException {
+        FileReplacer.replace(topicMapFileName, new FileReplacer.Contents() {
+            @Override
+            public void write(BufferedWriter writer) throws IOException {
+                writer.write(header());
+                writer.newLine();
+                for (int shard = 0; shard < topicArns.size(); shard++) {
+                    writer.write(shard + "\t" + topicArns.get(shard));
+                    writer.newLine();
+                }
+            }
+        });
+    }
+}
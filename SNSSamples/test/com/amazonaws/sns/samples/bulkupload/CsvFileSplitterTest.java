@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that reading the ranges of a split file returns the same records as
+ * reading the whole file with one reader, however many ranges are asked for.
+ */
+public class CsvFileSplitterTest {
+
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void deleteFiles() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void escapedQuoteAtTheStartOfAFieldOpensAQuote() throws IOException {
+        assertSameRecords("tok1,a\ntok5,\\\"abc\ntok6,b\"\ntok7,c\ntok8,d\n");
+    }
+
+    @Test
+    public void escapedQuoteInsideAFieldIsAQuote() throws IOException {
+        assertSameRecords("tok1,a\ntok2,b\\\"c\ntok3,\"d\\\"e\"\ntok4,f\n");
+    }
+
+    @Test
+    public void lineStartingWithAnEscapeContinuesTheLastField()
+            throws IOException {
+        assertSameRecords("tok1,a\n\\\"tok2,b\"\ntok3,c\ntok4,d\ntok5,e\n");
+    }
+
+    @Test
+    public void doubledQuotes() throws IOException {
+        assertSameRecords("tok1,\"a\"\"b\"\ntok2,\"\"\ntok3,c\"\"\n\"\"tok4,d\n"
+                + "\"tok5\nx\",e\r\ntok6,f\r\n");
+    }
+
+    private void assertSameRecords(String content) throws IOException {
+        String fileName = write(content);
+        List<String> expected = records(new CsvRecordReader(fileName, 0,
+                Long.MAX_VALUE, ',', '"'));
+        for (int parts = 1; parts <= content.length(); parts++) {
+            List<String> actual = new ArrayList<String>();
+            long offset = 0;
+            for (CsvFileSplitter.Range range : CsvFileSplitter.split(fileName,
+                    parts, ',', '"')) {
+                assertEquals(content, offset, range.startOffset);
+                actual.addAll(records(new CsvRecordReader(fileName,
+                        range.startOffset, range.endOffset, ',', '"')));
+                offset = range.endOffset;
+            }
+            assertEquals(content.length(), offset);
+            assertEquals(content + " in " + parts + " parts", expected, actual);
+        }
+    }
+
+    private String write(String content) throws IOException {
+        File file = File.createTempFile("CsvFileSplitterTest", ".csv");
+        files.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    /*
+     * Every record with its fields and the offset after it.
+     */
+    private static List<String> records(CsvRecordReader reader)
+            throws IOException {
+        List<String> records = new ArrayList<String>();
+        try {
+            String[] fields;
+            while ((fields = reader.readNext()) != null) {
+                StringBuilder record = new StringBuilder();
+                for (String field : fields) {
+                    record.append('[').append(field).append(']');
+                }
+                records.add(record.append('@').append(reader.getOffset())
+                        .toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+}
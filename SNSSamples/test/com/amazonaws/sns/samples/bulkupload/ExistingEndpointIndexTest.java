@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.Endpoint;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationResult;
+
+public class ExistingEndpointIndexTest {
+
+    private static final String APPLICATION_ARN = "arn:aws:sns:us-east-1:123456789012:app/GCM/test";
+    private static final String ENDPOINT_ARN = "arn:aws:sns:us-east-1:123456789012:endpoint/GCM/test/";
+
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void deleteFiles() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void userDataIsComparedExactly() throws InterruptedException {
+        // "Aa" and "BB" have the same String.hashCode()
+        ExistingEndpointIndex index = ExistingEndpointIndex.list(
+                client(endpoint("1", "token1", "Aa", true),
+                        endpoint("2", "token2", null, true)),
+                APPLICATION_ARN, 0);
+        assertEquals(ENDPOINT_ARN + "1", index.getEndpointArn("token1", "Aa"));
+        assertNull(index.getEndpointArn("token1", "BB"));
+        assertEquals(ENDPOINT_ARN + "2", index.getEndpointArn("token2", ""));
+        assertNull(index.getEndpointArn("token2", "user2"));
+    }
+
+    @Test
+    public void disabledEndpointsAreNotIndexed() throws InterruptedException {
+        ExistingEndpointIndex index = ExistingEndpointIndex.list(
+                client(endpoint("1", "token1", "user1", false)),
+                APPLICATION_ARN, 0);
+        assertEquals(0, index.size());
+        assertNull(index.getEndpointArn("token1", "user1"));
+    }
+
+    @Test
+    public void snapshotIsReadBack() throws Exception {
+        ExistingEndpointIndex index = ExistingEndpointIndex.list(
+                client(endpoint("1", "token1", "Aa", true),
+                        endpoint("2", "token2", "user\u00e92", true)),
+                APPLICATION_ARN, 0);
+        File snapshot = newFile();
+        index.save(snapshot.getPath());
+
+        ExistingEndpointIndex loaded = ExistingEndpointIndex.load(
+                snapshot.getPath(), APPLICATION_ARN, 60000);
+        assertEquals(2, loaded.size());
+        assertEquals(index.getListedAtMillis(), loaded.getListedAtMillis());
+        assertEquals(ENDPOINT_ARN + "1", loaded.getEndpointArn("token1", "Aa"));
+        assertNull(loaded.getEndpointArn("token1", "BB"));
+        assertEquals(ENDPOINT_ARN + "2",
+                loaded.getEndpointArn("token2", "user\u00e92"));
+    }
+
+    @Test
+    public void oldSnapshotIsNotUsed() throws Exception {
+        ExistingEndpointIndex index = ExistingEndpointIndex.list(
+                client(endpoint("1", "token1", "user1", true)),
+                APPLICATION_ARN, 0);
+        File snapshot = newFile();
+        index.save(snapshot.getPath());
+        Thread.sleep(5);
+        assertNull(ExistingEndpointIndex.load(snapshot.getPath(),
+                APPLICATION_ARN, 0));
+    }
+
+    @Test
+    public void snapshotWithoutListingTimeIsNotUsed() throws Exception {
+        File snapshot = newFile();
+        FileOutputStream out = new FileOutputStream(snapshot);
+        try {
+            out.write((APPLICATION_ARN + "\ntoken1\t0\t1\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertNull(ExistingEndpointIndex.load(snapshot.getPath(),
+                APPLICATION_ARN, Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void snapshotOfAnotherApplicationIsRejected() throws Exception {
+        ExistingEndpointIndex index = ExistingEndpointIndex.list(
+                client(endpoint("1", "token1", "user1", true)),
+                APPLICATION_ARN, 0);
+        File snapshot = newFile();
+        index.save(snapshot.getPath());
+        ExistingEndpointIndex.load(snapshot.getPath(), APPLICATION_ARN
+                + "Other", 60000);
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("ExistingEndpointIndexTest", ".txt");
+        files.add(file);
+        return file;
+    }
+
+    private static Endpoint endpoint(String id, String token, String userData,
+            boolean enabled) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("Token", token);
+        attributes.put("Enabled", Boolean.toString(enabled));
+        if (userData != null) {
+            attributes.put("CustomUserData", userData);
+        }
+        return new Endpoint().withEndpointArn(ENDPOINT_ARN + id)
+                .withAttributes(attributes);
+    }
+
+    /*
+     * Lists the endpoints one per page.
+     */
+    private static AmazonSNSClient client(final Endpoint... endpoints) {
+        return new AmazonSNSClient(new BasicAWSCredentials("accessKey",
+                "secretKey")) {
+            @Override
+            public ListEndpointsByPlatformApplicationResult listEndpointsByPlatformApplication(
+                    ListEndpointsByPlatformApplicationRequest request) {
+                int page = request.getNextToken() == null ? 0 : Integer
+                        .parseInt(request.getNextToken());
+                return new ListEndpointsByPlatformApplicationResult()
+                        .withEndpoints(endpoints[page])
+                        .withNextToken(
+                                page + 1 < endpoints.length ? Integer
+                                        .toString(page + 1) : null);
+            }
+        };
+    }
+}
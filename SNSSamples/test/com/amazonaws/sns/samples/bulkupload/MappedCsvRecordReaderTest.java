@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that MappedCsvRecordReader returns the same records as
+ * CsvRecordReader, including for the malformed endings of a truncated file.
+ */
+public class MappedCsvRecordReaderTest {
+
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void deleteFiles() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void unterminatedQuotedLastLine() throws IOException {
+        String fileName = write("token1,user1\n\"token2,user2");
+        for (CsvRecordSource reader : readers(fileName)) {
+            try {
+                assertArrayEquals(new String[] { "token1", "user1" },
+                        reader.readNext());
+                assertNull(reader.readNext());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void unterminatedQuoteInLastField() throws IOException {
+        String fileName = write("token1,user1\ntoken2,\"user2\n");
+        for (CsvRecordSource reader : readers(fileName)) {
+            try {
+                assertArrayEquals(new String[] { "token1", "user1" },
+                        reader.readNext());
+                assertArrayEquals(new String[] { "token2" }, reader.readNext());
+                assertNull(reader.readNext());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void sameRecordsAsCsvRecordReader() throws IOException {
+        String[] contents = {
+                "",
+                "token1,user1",
+                "token1,user1\r\ntoken2\r\n",
+                "token1,user1\n\ntoken2,\"user,2\"\n",
+                "token1,\"user\n1\"\ntoken2,user2\n",
+                "token1,\"user \\\"1\\\"\"\ntoken2,user2,extra\n",
+                "\"token1\n" };
+        for (String content : contents) {
+            String fileName = write(content);
+            assertEquals(content, records(new CsvRecordReader(fileName, 0,
+                    Long.MAX_VALUE, ',', '"')), records(new MappedCsvRecordReader(
+                    fileName, 0, Long.MAX_VALUE, ',', '"')));
+        }
+    }
+
+    private String write(String content) throws IOException {
+        File file = File.createTempFile("MappedCsvRecordReaderTest", ".csv");
+        files.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    private static CsvRecordSource[] readers(String fileName)
+            throws IOException {
+        return new CsvRecordSource[] {
+                new CsvRecordReader(fileName, 0, Long.MAX_VALUE, ',', '"'),
+                new MappedCsvRecordReader(fileName, 0, Long.MAX_VALUE, ',',
+                        '"') };
+    }
+
+    /*
+     * Every record with its fields and the offset after it, until readNext
+     * returns null.
+     */
+    private static List<String> records(CsvRecordSource reader)
+            throws IOException {
+        List<String> records = new ArrayList<String>();
+        try {
+            String[] fields;
+            while ((fields = reader.readNext()) != null) {
+                StringBuilder record = new StringBuilder();
+                for (String field : fields) {
+                    record.append('[').append(field).append(']');
+                }
+                records.add(record.append('@').append(reader.getOffset())
+                        .toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+}
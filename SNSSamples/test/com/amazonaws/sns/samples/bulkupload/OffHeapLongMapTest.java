@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.sns.samples.bulkupload;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class OffHeapLongMapTest {
+
+    /*
+     * Buffers of 16 slots stand in for the 2^26 slots of a real buffer, so
+     * that growing past one buffer is tested without allocating gigabytes.
+     */
+    @Test
+    public void entriesSurviveGrowingAcrossBuffers() {
+        OffHeapLongMap map = new OffHeapLongMap(4, 4);
+        for (long key = 1; key <= 1000; key++) {
+            assertEquals(-1, map.putIfAbsent(key << 32, key, -1));
+        }
+        map.put(5L << 32, 55);
+        assertEquals(1000, map.size());
+        assertEquals(2048 * 16, map.memoryBytes());
+        assertEquals(55, map.get(5L << 32, -1));
+        for (long key = 1; key <= 1000; key++) {
+            if (key != 5) {
+                assertEquals(key, map.get(key << 32, -1));
+            }
+        }
+        assertEquals(-1, map.get(1001L << 32, -1));
+    }
+
+    @Test
+    public void growingPastOneBufferKeepsTheEntries() {
+        OffHeapLongMap map = new OffHeapLongMap(8, 4);
+        for (long key = 1; key <= 8; key++) {
+            map.putNew(key * 17, key);
+        }
+        assertEquals(16 * 16, map.memoryBytes());
+        map.putNew(9 * 17, 9);
+        assertEquals(32 * 16, map.memoryBytes());
+        for (long key = 1; key <= 9; key++) {
+            assertEquals(key, map.get(key * 17, -1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeAboveTheLimitIsRejected() {
+        new OffHeapLongMap(OffHeapLongMap.MAX_SIZE + 1);
+    }
+}